@@ -0,0 +1,161 @@
+package org.bcm.hgsc.cancer;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bcm.hgsc.cancer.bed.BEDRegion;
+
+/**
+ * The part of the genome handled by one run of {@link VCFMergeAndAnnotate}.  A run over a shard only reports allele sets that start
+ * inside the shard, so the outputs of shards that cover the genome can be merged back into the output of a single run.
+ *
+ * Shards are either given as i/N, where the contigs of the reference are dealt out to N shards so that each gets about the same
+ * number of bases, or as explicit regions (chr, chr:start or chr:start-end, 1 based and inclusive).  Whole contig shards give exactly
+ * the output of an unsharded run.  Allele sets are not joined across the edge of an explicit region, so regions that split a contig
+ * should be cut where there are no variants within the buffer of each other.
+ * @author covingto
+ *
+ */
+public class GenomeShard {
+	private final String name;
+	// regions by contig, in order of start
+	private final Map<String, List<BEDRegion>> regions = new HashMap<String, List<BEDRegion>>();
+
+	private GenomeShard(String name, List<BEDRegion> regionList){
+		this.name = name;
+		for (BEDRegion r : regionList){
+			List<BEDRegion> contigRegions = this.regions.get(r.getSequence());
+			if (contigRegions == null){
+				contigRegions = new ArrayList<BEDRegion>();
+				this.regions.put(r.getSequence(), contigRegions);
+			}
+			contigRegions.add(r);
+		}
+		for (List<BEDRegion> contigRegions : this.regions.values()){
+			Collections.sort(contigRegions);
+		}
+	}
+
+	/**
+	 * Deals the contigs of the dictionary out to n shards, largest first, each to the shard with the fewest bases so far.
+	 * @param spec i/N where i is in 1..N
+	 * @throws Exception if the spec is malformed
+	 */
+	public static GenomeShard fromShardSpec(String spec, SAMSequenceDictionary dict) throws Exception{
+		final String[] parts = spec.split("/");
+		if (parts.length != 2){
+			throw new Exception("Shard must be given as i/N, found: " + spec);
+		}
+		final int i = Integer.parseInt(parts[0].trim());
+		final int n = Integer.parseInt(parts[1].trim());
+		if (n < 1 || i < 1 || i > n){
+			throw new Exception("Shard " + spec + " is not in 1/N to N/N");
+		}
+		final List<SAMSequenceRecord> contigs = new ArrayList<SAMSequenceRecord>(dict.getSequences());
+		Collections.sort(contigs, new Comparator<SAMSequenceRecord>(){
+			@Override
+			public int compare(SAMSequenceRecord a, SAMSequenceRecord b) {
+				if (a.getSequenceLength() != b.getSequenceLength()){
+					return a.getSequenceLength() > b.getSequenceLength() ? -1 : 1;
+				}
+				return a.getSequenceIndex() - b.getSequenceIndex();
+			}
+		});
+		final long[] shardBases = new long[n];
+		final List<BEDRegion> mine = new ArrayList<BEDRegion>();
+		for (SAMSequenceRecord contig : contigs){
+			int lightest = 0;
+			for (int s = 1; s < n; s++){
+				if (shardBases[s] < shardBases[lightest]){ lightest = s; }
+			}
+			shardBases[lightest] += contig.getSequenceLength();
+			if (lightest == i - 1){
+				mine.add(new BEDRegion(contig.getSequenceName(), 1, Math.max(1, contig.getSequenceLength())));
+			}
+		}
+		return new GenomeShard("shard " + spec, mine);
+	}
+
+	/**
+	 * @param specs regions as chr, chr:start or chr:start-end
+	 * @throws Exception if a region is malformed or its contig is not in the dictionary
+	 */
+	public static GenomeShard fromRegions(String[] specs, SAMSequenceDictionary dict) throws Exception{
+		final List<BEDRegion> regionList = new ArrayList<BEDRegion>(specs.length);
+		for (String spec : specs){
+			final int colon = spec.lastIndexOf(':');
+			final String chr = colon < 0 ? spec : spec.substring(0, colon);
+			final SAMSequenceRecord contig = dict.getSequence(chr);
+			if (contig == null){
+				throw new Exception("Region " + spec + " is not on a contig of the reference");
+			}
+			int start = 1;
+			int end = Math.max(1, contig.getSequenceLength());
+			if (colon >= 0){
+				final String range = spec.substring(colon + 1).replace(",", "");
+				final int dash = range.indexOf('-');
+				try {
+					if (dash < 0){
+						start = Integer.parseInt(range);
+					} else {
+						start = Integer.parseInt(range.substring(0, dash));
+						end = Integer.parseInt(range.substring(dash + 1));
+					}
+				} catch (NumberFormatException e){
+					throw new Exception("Region must be chr, chr:start or chr:start-end, found: " + spec);
+				}
+			}
+			if (start < 1 || end < start){
+				throw new Exception("Region " + spec + " is empty");
+			}
+			regionList.add(new BEDRegion(chr, start, end));
+		}
+		return new GenomeShard("regions " + specs.length, regionList);
+	}
+
+	public boolean containsContig(String chr){
+		return this.regions.containsKey(chr);
+	}
+
+	/**
+	 * @return true if the 1 based position is in one of the regions
+	 */
+	public boolean contains(String chr, int pos){
+		final List<BEDRegion> contigRegions = this.regions.get(chr);
+		if (contigRegions == null){ return false; }
+		for (int i = 0; i < contigRegions.size(); i++){
+			final BEDRegion r = contigRegions.get(i);
+			if (pos < r.getStart()){ return false; }
+			if (pos <= r.getEnd()){ return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * @return the regions of this shard in reference order
+	 */
+	public List<BEDRegion> getRegions(SAMSequenceDictionary dict){
+		final List<BEDRegion> all = new ArrayList<BEDRegion>();
+		for (SAMSequenceRecord contig : dict.getSequences()){
+			final List<BEDRegion> contigRegions = this.regions.get(contig.getSequenceName());
+			if (contigRegions != null){ all.addAll(contigRegions); }
+		}
+		return all;
+	}
+
+	@Override
+	public String toString(){
+		int n = 0;
+		for (List<BEDRegion> contigRegions : this.regions.values()){
+			n += contigRegions.size();
+		}
+		return "GenomeShard [" + this.name + ", contigs=" + this.regions.size() + ", regions=" + n + "]";
+	}
+}
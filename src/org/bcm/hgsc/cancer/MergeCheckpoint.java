@@ -0,0 +1,200 @@
+package org.bcm.hgsc.cancer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+/**
+ * The progress of a {@link VCFMergeAndAnnotate} run, kept next to the output as output.checkpoint.  A checkpoint is only written after
+ * every container up to and including the last one it names has been written and the output flushed to disk, so the output up to
+ * {@link #getBytes()} is always a valid VCF and a run can be resumed from it.
+ * @author covingto
+ *
+ */
+public class MergeCheckpoint {
+	public static final String EXTENSION = ".checkpoint";
+	private final long containers;
+	private final String chr;
+	private final int start;
+	private final long bytes;
+	private final int interval;
+	private final String shard;
+
+	/**
+	 * @param containers the number of containers written
+	 * @param chr contig of the last container written
+	 * @param start start of the last container written
+	 * @param bytes length of the output after the last container
+	 * @param interval containers between checkpoints
+	 * @param shard the shard being processed, or null for the whole genome
+	 */
+	public MergeCheckpoint(long containers, String chr, int start, long bytes, int interval, String shard){
+		this.containers = containers;
+		this.chr = chr;
+		this.start = start;
+		this.bytes = bytes;
+		this.interval = interval;
+		this.shard = shard == null ? "" : shard;
+	}
+
+	public static File checkpointFile(File output){
+		return new File(output.getPath() + EXTENSION);
+	}
+
+	/**
+	 * @throws Exception if there is no checkpoint for the output or it can not be read
+	 */
+	public static MergeCheckpoint read(File output) throws Exception{
+		final File file = checkpointFile(output);
+		if (!file.isFile()){
+			throw new Exception("No checkpoint to resume from: " + file);
+		}
+		final Properties props = new Properties();
+		final InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		try {
+			return new MergeCheckpoint(Long.parseLong(props.getProperty("containers")), props.getProperty("chr"),
+					Integer.parseInt(props.getProperty("start")), Long.parseLong(props.getProperty("bytes")),
+					Integer.parseInt(props.getProperty("interval")), props.getProperty("shard"));
+		} catch (RuntimeException e){
+			throw new Exception("Malformed checkpoint " + file, e);
+		}
+	}
+
+	/**
+	 * Replaces the checkpoint of the output, the old checkpoint stays in place until the new one is complete.
+	 */
+	public void write(File output) throws IOException{
+		final File file = checkpointFile(output);
+		final File tmp = new File(file.getPath() + ".tmp");
+		final Properties props = new Properties();
+		props.setProperty("containers", Long.toString(this.containers));
+		props.setProperty("chr", this.chr);
+		props.setProperty("start", Integer.toString(this.start));
+		props.setProperty("bytes", Long.toString(this.bytes));
+		props.setProperty("interval", Integer.toString(this.interval));
+		props.setProperty("shard", this.shard);
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			props.store(out, "VCFMergeAndAnnotate checkpoint");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)){
+			// renameTo does not replace on every platform
+			file.delete();
+			if (!tmp.renameTo(file)){
+				throw new IOException("Could not move checkpoint " + tmp + " to " + file);
+			}
+		}
+	}
+
+	public long getContainers(){
+		return this.containers;
+	}
+
+	public String getChr(){
+		return this.chr;
+	}
+
+	public int getStart(){
+		return this.start;
+	}
+
+	public long getBytes(){
+		return this.bytes;
+	}
+
+	public int getInterval(){
+		return this.interval;
+	}
+
+	public String getShard(){
+		return this.shard;
+	}
+
+	@Override
+	public String toString(){
+		return "MergeCheckpoint [containers=" + this.containers + ", last=" + this.chr + ":" + this.start + ", bytes=" + this.bytes + "]";
+	}
+
+	/**
+	 * The output of a checkpointed run.  Counts the bytes written so a checkpoint can record where the output ends, and can drop
+	 * writes so that the header of a resumed run is not written a second time.
+	 */
+	public static class Output extends FilterOutputStream {
+		private final FileOutputStream file;
+		private long position;
+		private boolean discarding = false;
+
+		private Output(FileOutputStream file, long position){
+			super(new BufferedOutputStream(file, 1 << 16));
+			this.file = file;
+			this.position = position;
+		}
+
+		/**
+		 * Opens the output of a new run, or of a resumed run with everything after the checkpoint removed.
+		 * @param resumeFrom null for a new run
+		 */
+		public static Output open(File output, MergeCheckpoint resumeFrom) throws IOException{
+			if (resumeFrom == null){
+				return new Output(new FileOutputStream(output), 0);
+			}
+			if (output.length() < resumeFrom.getBytes()){
+				throw new IOException("Output " + output + " is shorter than its checkpoint");
+			}
+			final RandomAccessFile raf = new RandomAccessFile(output, "rw");
+			try {
+				raf.setLength(resumeFrom.getBytes());
+			} finally {
+				raf.close();
+			}
+			return new Output(new FileOutputStream(output, true), resumeFrom.getBytes());
+		}
+
+		public void setDiscarding(boolean discarding){
+			this.discarding = discarding;
+		}
+
+		/**
+		 * @return bytes in the output file, including those not yet flushed
+		 */
+		public long getPosition(){
+			return this.position;
+		}
+
+		/**
+		 * Flushes everything written so far to disk.
+		 */
+		public void sync() throws IOException{
+			this.flush();
+			this.file.getFD().sync();
+		}
+
+		@Override
+		public void write(int b) throws IOException{
+			if (this.discarding){ return; }
+			this.out.write(b);
+			this.position++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			if (this.discarding){ return; }
+			this.out.write(b, off, len);
+			this.position += len;
+		}
+	}
+}
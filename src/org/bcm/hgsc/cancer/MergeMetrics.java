@@ -0,0 +1,317 @@
+package org.bcm.hgsc.cancer;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bcm.hgsc.utils.AlleleResolver;
+import org.bcm.hgsc.utils.LatencyHistogram;
+import org.bcm.hgsc.utils.MemoryBudget;
+import org.bcm.hgsc.utils.ReadAheadIterator;
+import org.bcm.hgsc.utils.ReorderBuffer;
+
+/**
+ * Live counters for each stage of a {@link VCFMergeAndAnnotate} run.  Allele containers are counted as they are read, started by
+ * a worker, resolved (or failed) and written, with latency histograms for fetching reads, resolving alleles, genotyping and writing.
+ * With -readAhead the depth the read ahead buffers reached is reported too, a low depth with many stalls means decoding is behind.
+ * The metrics are registered as an MBean under org.bcm.hgsc:type=VCFMergeAndAnnotate and can be logged every few seconds.
+ * All counters may be updated from any thread.
+ * @author covingto
+ *
+ */
+public class MergeMetrics implements MergeMetricsMBean {
+	private static Logger log = Logger.getLogger(MergeMetrics.class.getName());
+	final AtomicLong containersRead = new AtomicLong();
+	final AtomicLong containersStarted = new AtomicLong();
+	final AtomicLong containersResolved = new AtomicLong();
+	final AtomicLong containersFailed = new AtomicLong();
+	final AtomicLong containersWritten = new AtomicLong();
+	private final AtomicLong depthCapped = new AtomicLong();
+	final LatencyHistogram fetchLatency = new LatencyHistogram();
+	final LatencyHistogram resolveLatency = new LatencyHistogram();
+	final LatencyHistogram genotypeLatency = new LatencyHistogram();
+	final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final String[] samples;
+	private final AtomicLong[] readsFetched;
+	private final AtomicLong[] readsConformed;
+	private final long startExpansions = AlleleResolver.getExpansions();
+	// the read ahead totals are kept for the process, so only what this run adds is reported
+	private final long startReadAheadElements = ReadAheadIterator.getTotalElements();
+	private final long startReadAheadStalls = ReadAheadIterator.getTotalStalls();
+	private final long startReadAheadBuffers = ReadAheadIterator.getTotalBuffers();
+	private final long startReadAheadMaxBuffered = ReadAheadIterator.getTotalMaxBuffered();
+	private final long startNanos = System.nanoTime();
+	private volatile ThreadPoolExecutor executor = null;
+	private volatile ReorderBuffer<?> writerQueue = null;
+	private volatile MemoryBudget budget = null;
+	private ScheduledExecutorService reporter = null;
+	private ObjectName name = null;
+
+	/**
+	 * @param samples sample names in the order the BAMs are given
+	 */
+	public MergeMetrics(List<String> samples){
+		this.samples = samples.toArray(new String[samples.size()]);
+		this.readsFetched = new AtomicLong[this.samples.length];
+		this.readsConformed = new AtomicLong[this.samples.length];
+		for (int i = 0; i < this.samples.length; i++){
+			this.readsFetched[i] = new AtomicLong();
+			this.readsConformed[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * The queues whose depth is reported.
+	 */
+	public void setQueues(ThreadPoolExecutor executor, ReorderBuffer<?> writerQueue){
+		this.executor = executor;
+		this.writerQueue = writerQueue;
+	}
+
+	/**
+	 * The budget on the memory held by queued and running containers.
+	 */
+	public void setBudget(MemoryBudget budget){
+		this.budget = budget;
+	}
+
+	/**
+	 * @param sample index of the BAM
+	 * @param fetched reads returned for an allele container
+	 * @param conformed reads conformed to do so, fewer than fetched if conformed reads were reused
+	 */
+	void addReads(int sample, long fetched, long conformed){
+		this.readsFetched[sample].addAndGet(fetched);
+		this.readsConformed[sample].addAndGet(conformed);
+	}
+
+	/**
+	 * Records the depth of one sample at one container when the depth is capped.
+	 */
+	void addDepth(int seen, int maxDepth){
+		if (seen > maxDepth){
+			this.depthCapped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Registers the MBean and starts logging the summary every interval seconds, an interval of 0 only registers.
+	 * @param id distinguishes runs in the same JVM
+	 */
+	public void start(String id, int interval){
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName objectName = new ObjectName("org.bcm.hgsc:type=VCFMergeAndAnnotate,name=" + ObjectName.quote(id));
+			if (!server.isRegistered(objectName)){
+				server.registerMBean(this, objectName);
+				this.name = objectName;
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Could not register metrics with JMX", e);
+		}
+		if (interval > 0){
+			this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "merge-metrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.reporter.scheduleAtFixedRate(new Runnable(){
+				@Override
+				public void run() {
+					log.log(Level.INFO, getSummary());
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic log and unregisters the MBean.
+	 */
+	public void stop(){
+		if (this.reporter != null){
+			this.reporter.shutdownNow();
+			this.reporter = null;
+		}
+		if (this.name != null){
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+			} catch (Exception e) {
+				log.log(Level.FINE, "Could not unregister metrics", e);
+			}
+			this.name = null;
+		}
+	}
+
+	@Override
+	public long getContainersRead() {
+		return this.containersRead.get();
+	}
+
+	@Override
+	public long getContainersStarted() {
+		return this.containersStarted.get();
+	}
+
+	@Override
+	public long getContainersResolved() {
+		return this.containersResolved.get();
+	}
+
+	@Override
+	public long getContainersFailed() {
+		return this.containersFailed.get();
+	}
+
+	@Override
+	public long getContainersWritten() {
+		return this.containersWritten.get();
+	}
+
+	@Override
+	public int getExecutorQueueDepth() {
+		final ThreadPoolExecutor e = this.executor;
+		return e == null ? 0 : e.getQueue().size();
+	}
+
+	@Override
+	public long getWriterQueueDepth() {
+		final ReorderBuffer<?> q = this.writerQueue;
+		return q == null ? 0 : q.getOutstanding();
+	}
+
+	@Override
+	public long getReadMemoryUsed() {
+		final MemoryBudget b = this.budget;
+		return b == null ? 0 : b.getUsed();
+	}
+
+	@Override
+	public long getReadMemoryPeak() {
+		final MemoryBudget b = this.budget;
+		return b == null ? 0 : b.getPeak();
+	}
+
+	@Override
+	public long getReadMemoryLimit() {
+		final MemoryBudget b = this.budget;
+		return b == null ? 0 : b.getLimit();
+	}
+
+	@Override
+	public long getReadMemoryWaitMillis() {
+		final MemoryBudget b = this.budget;
+		return b == null ? 0 : b.getWaitMillis();
+	}
+
+	@Override
+	public long getReadsFetched() {
+		long total = 0;
+		for (AtomicLong n : this.readsFetched){
+			total += n.get();
+		}
+		return total;
+	}
+
+	@Override
+	public long getReadsConformed() {
+		long total = 0;
+		for (AtomicLong n : this.readsConformed){
+			total += n.get();
+		}
+		return total;
+	}
+
+	@Override
+	public long getDepthCapped() {
+		return this.depthCapped.get();
+	}
+
+	@Override
+	public String getReadsPerSample() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < this.samples.length; i++){
+			if (i > 0){ sb.append(", "); }
+			sb.append(this.samples[i]).append(": ").append(this.readsFetched[i].get()).append(" fetched/")
+					.append(this.readsConformed[i].get()).append(" conformed");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public long getAlleleExpansions() {
+		return AlleleResolver.getExpansions() - this.startExpansions;
+	}
+
+	@Override
+	public long getReadAheadElements() {
+		return ReadAheadIterator.getTotalElements() - this.startReadAheadElements;
+	}
+
+	@Override
+	public long getReadAheadStalls() {
+		return ReadAheadIterator.getTotalStalls() - this.startReadAheadStalls;
+	}
+
+	@Override
+	public double getReadAheadMeanBuffered() {
+		final long buffers = ReadAheadIterator.getTotalBuffers() - this.startReadAheadBuffers;
+		return buffers == 0 ? 0 : (ReadAheadIterator.getTotalMaxBuffered() - this.startReadAheadMaxBuffered) / (double) buffers;
+	}
+
+	@Override
+	public long getReadAheadPeakBuffered() {
+		return ReadAheadIterator.getPeakBuffered();
+	}
+
+	@Override
+	public String getFetchLatency() {
+		return this.fetchLatency.toString();
+	}
+
+	@Override
+	public String getResolveLatency() {
+		return this.resolveLatency.toString();
+	}
+
+	@Override
+	public String getGenotypeLatency() {
+		return this.genotypeLatency.toString();
+	}
+
+	@Override
+	public String getWriteLatency() {
+		return this.writeLatency.toString();
+	}
+
+	@Override
+	public double getContainersPerSecond() {
+		final double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+		return seconds <= 0 ? 0 : this.containersWritten.get() / seconds;
+	}
+
+	@Override
+	public String getSummary() {
+		return String.format("Containers read %d started %d resolved %d failed %d written %d (%.1f/s), queued for workers %d, outstanding in reorder buffer %d; " +
+				"read memory %dMB of %dMB (peak %dMB, submission blocked %dms); reads fetched %d conformed %d, depth capped %d times; " + 
+				"read ahead %d elements, %d stalls, buffered %.1f on average at most, peak %d; expansions %d; fetch [%s] resolve [%s] genotype [%s] write [%s]",
+				this.getContainersRead(), this.getContainersStarted(), this.getContainersResolved(), this.getContainersFailed(),
+				this.getContainersWritten(), this.getContainersPerSecond(), this.getExecutorQueueDepth(), this.getWriterQueueDepth(),
+				this.getReadMemoryUsed() >> 20, this.getReadMemoryLimit() >> 20, this.getReadMemoryPeak() >> 20, this.getReadMemoryWaitMillis(),
+				this.getReadsFetched(), this.getReadsConformed(), this.getDepthCapped(), this.getReadAheadElements(), this.getReadAheadStalls(),
+				this.getReadAheadMeanBuffered(), this.getReadAheadPeakBuffered(), this.getAlleleExpansions(), this.getFetchLatency(), this.getResolveLatency(),
+				this.getGenotypeLatency(), this.getWriteLatency());
+	}
+}
@@ -0,0 +1,41 @@
+package org.bcm.hgsc.cancer;
+
+/**
+ * JMX view of a running {@link VCFMergeAndAnnotate}, see {@link MergeMetrics}.
+ * @author covingto
+ *
+ */
+public interface MergeMetricsMBean {
+	long getContainersRead();
+	long getContainersStarted();
+	long getContainersResolved();
+	long getContainersFailed();
+	long getContainersWritten();
+	int getExecutorQueueDepth();
+	long getWriterQueueDepth();
+	long getReadMemoryUsed();
+	long getReadMemoryPeak();
+	long getReadMemoryLimit();
+	long getReadMemoryWaitMillis();
+	long getReadsFetched();
+	long getReadsConformed();
+	long getDepthCapped();
+	String getReadsPerSample();
+	long getAlleleExpansions();
+	long getReadAheadElements();
+	long getReadAheadStalls();
+	/**
+	 * @return the most elements each read ahead buffer held, averaged over the buffers closed in this run
+	 */
+	double getReadAheadMeanBuffered();
+	/**
+	 * @return the most elements any read ahead buffer in the process held
+	 */
+	long getReadAheadPeakBuffered();
+	String getFetchLatency();
+	String getResolveLatency();
+	String getGenotypeLatency();
+	String getWriteLatency();
+	double getContainersPerSecond();
+	String getSummary();
+}
@@ -1,8 +1,8 @@
 package org.bcm.hgsc.cancer;
 
 import htsjdk.samtools.SAMSequenceDictionary;
-import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.CloseableTribbleIterator;
 import htsjdk.tribble.FeatureReader;
@@ -12,15 +12,20 @@ import htsjdk.variant.vcf.VCFCodec;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.StringUtils;
+import org.bcm.hgsc.cancer.bed.BEDRegion;
 
 
 /**
@@ -82,16 +87,14 @@ public class MultiVCFReader {
 	private final int buffer; // the buffer size for finding variants
 	//private final Map<String, CloseableTribbleIterator<VariantContext>> tumorReaders = new HashMap<String, CloseableTribbleIterator<VariantContext>>();
 	//private final Map<String, CloseableTribbleIterator<VariantContext>> normalReaders = new HashMap<String, CloseableTribbleIterator<VariantContext>>();
-	private final Map<String, CloseableTribbleIterator<VariantContext>> vcfReaders = new HashMap<String, CloseableTribbleIterator<VariantContext>>();
-	//private final Map<String, VariantContext> tumorNext = new HashMap<String, VariantContext>();
-	//private final Map<String, VariantContext> normalNext = new HashMap<String, VariantContext>();
-	private final Map<String, VariantContext> vcfNext = new HashMap<String, VariantContext>();
+	private final Map<String, Iterator<VariantContext>> vcfReaders = new HashMap<String, Iterator<VariantContext>>();
+	private final List<FeatureReader<VariantContext>> featureReaders = new ArrayList<FeatureReader<VariantContext>>();
+	// the next record of each source, the head is the next record to return
+	private final PriorityQueue<Head> vcfNext;
 	private final SAMSequenceDictionary sequenceDict;
-	private SAMSequenceRecord currentSequenceRegion = null;
-	private int currentSequenceRecordIndex = 0;
-	private String lastSource;
-	private VariantContext nextVariantContext;
 	private final int maxSize;
+	private final GenomeShard shard; // null for the whole genome
+	private int skipped = 0;
 	
 	static {
 		log.setLevel(Level.ALL);
@@ -170,50 +173,162 @@ public class MultiVCFReader {
 		
 	}
 	
+	/**
+	 * The next record from one source, ordered by reference position and then by the order the sources were given in.
+	 */
+	private static class Head {
+		private final VariantContext vc;
+		private final String source;
+		private final int contig;
+		private final int order;
+		
+		Head(VariantContext vc, String source, int contig, int order){
+			this.vc = vc;
+			this.source = source;
+			this.contig = contig;
+			this.order = order;
+		}
+	}
+	
+	private static final Comparator<Head> HEADORDER = new Comparator<Head>(){
+		@Override
+		public int compare(Head a, Head b) {
+			if (a.contig != b.contig){ return a.contig < b.contig ? -1 : 1; }
+			if (a.vc.getStart() != b.vc.getStart()){ return a.vc.getStart() < b.vc.getStart() ? -1 : 1; }
+			return a.order - b.order;
+		}
+	};
+	
+	/**
+	 * The records of an indexed VCF that start in each region in turn, a record is returned once even if the regions overlap.
+	 */
+	private static class RegionIterator implements Iterator<VariantContext> {
+		private final FeatureReader<VariantContext> reader;
+		private final List<BEDRegion> regions;
+		private int regionIndex = -1;
+		private BEDRegion region = null;
+		private int minStart = 0;
+		private int coveredEnd = 0; // end of the regions on this contig so far, records starting up to here were already returned
+		private CloseableTribbleIterator<VariantContext> query = null;
+		private VariantContext next = null;
+		
+		RegionIterator(FeatureReader<VariantContext> reader, List<BEDRegion> regions) throws IOException{
+			this.reader = reader;
+			this.regions = regions;
+			this.advance();
+		}
+		
+		private void advance() throws IOException{
+			this.next = null;
+			while (true){
+				while (this.query != null && this.query.hasNext()){
+					final VariantContext vc = this.query.next();
+					if (vc.getStart() >= this.minStart && vc.getStart() <= this.region.getEnd()){
+						this.next = vc;
+						return;
+					}
+				}
+				if (this.query != null){
+					this.query.close();
+					this.query = null;
+				}
+				if (++this.regionIndex >= this.regions.size()){
+					return;
+				}
+				final BEDRegion last = this.region;
+				this.region = this.regions.get(this.regionIndex);
+				this.minStart = this.region.getStart();
+				if (last != null && last.getSequence().equals(this.region.getSequence())){
+					// records starting in any earlier region of the contig were already returned, an earlier region may hold this one
+					this.minStart = Math.max(this.minStart, this.coveredEnd + 1);
+					this.coveredEnd = Math.max(this.coveredEnd, this.region.getEnd());
+				} else {
+					this.coveredEnd = this.region.getEnd();
+				}
+				if (this.minStart > this.region.getEnd()){
+					continue;
+				}
+				this.query = this.reader.query(this.region.getSequence(), this.region.getStart(), this.region.getEnd());
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
+		}
+		
+		@Override
+		public VariantContext next() {
+			final VariantContext vc = this.next;
+			try {
+				this.advance();
+			} catch (IOException e){
+				throw new RuntimeException("Failed to query VCF", e);
+			}
+			return vc;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
 	MultiVCFReader(List<File> vcfFiles, int buffer, int maxSize, File fastaFile) throws FileNotFoundException, Exception{
 		this(vcfFiles, buffer, maxSize, new IndexedFastaSequenceFile(fastaFile));
 	}
 	
-	MultiVCFReader(List<File> vcfFiles, int buffer, int maxSize, IndexedFastaSequenceFile fastaref) throws Exception{
+	MultiVCFReader(List<File> vcfFiles, int buffer, int maxSize, ReferenceSequenceFile fastaref) throws Exception{
+		this(vcfFiles, buffer, maxSize, fastaref, null);
+	}
+	
+	/**
+	 * Reads only the variants that start inside the shard, a null shard reads everything.  VCFs with a tribble or tabix index are
+	 * queried for the regions of the shard, others are read from the start and the records outside of the shard skipped.
+	 */
+	public MultiVCFReader(List<File> vcfFiles, int buffer, int maxSize, ReferenceSequenceFile fastaref, GenomeShard shard) throws Exception{
 		this.buffer = buffer;
 		this.sequenceDict = fastaref.getSequenceDictionary();
 		this.maxSize = maxSize;
+		this.shard = shard;
 		if (this.sequenceDict == null){
 			throw new Exception("Fasta sequence dictionary is null");
 		}
-		this.currentSequenceRegion = this.sequenceDict.getSequence(this.currentSequenceRecordIndex);
-		for (File vcf : vcfFiles){
+		this.vcfNext = new PriorityQueue<Head>(Math.max(1, vcfFiles.size()), HEADORDER);
+		for (int i = 0; i < vcfFiles.size(); i++){
+			final File vcf = vcfFiles.get(i);
 			final VCFCodec vcfCodec = new VCFCodec();
 			boolean requireIndex=false;
-			FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(
+			AbstractFeatureReader<VariantContext, ?> reader = AbstractFeatureReader.getFeatureReader(
 					vcf.getAbsolutePath(), vcfCodec, requireIndex);
+			this.featureReaders.add(reader);
 			final String key = vcf.getAbsolutePath();
-			vcfReaders.put(key, reader.iterator());
-			vcfNext.put(key, vcfReaders.get(key).next());
+			if (this.shard != null && reader.hasIndex()){
+				log.log(Level.FINE, "Querying " + this.shard + " from indexed " + key);
+				vcfReaders.put(key, new RegionIterator(reader, this.shard.getRegions(this.sequenceDict)));
+			} else {
+				vcfReaders.put(key, reader.iterator());
+			}
+			this._addHead(key, i, 0);
 		}
-		this._setNewNext(); // set up the iterator
-		//try {
-			// log.log(Level.ALL, "Next context: " + this.nextVariantContext.toString());
-		//} catch (Exception e) {
-		//	log.log(Level.ALL, "Caught exception from file: " + this.lastSource);
-		//	throw e;
-		//}
-		
 	}
 	
 	private VariantContext _next(){
-		return this.nextVariantContext;
+		final Head head = this.vcfNext.peek();
+		return head == null ? null : head.vc;
 	}
 	
-	private VariantContext _takeNextFromReader(String source){
-		return _takeNextFromReader(vcfReaders.get(source));
+	private String _nextSource(){
+		final Head head = this.vcfNext.peek();
+		return head == null ? null : head.source;
 	}
 	
-	private VariantContext _takeNextFromReader(CloseableTribbleIterator<VariantContext> reader){
+	private VariantContext _takeNextFromReader(Iterator<VariantContext> reader){
 		try {
 			while (reader.hasNext()){
 				VariantContext next = reader.next();
 				if (next.getEnd() - next.getStart() > this.maxSize){ continue; }
+				if (this.shard != null && !this.shard.contains(next.getChr(), next.getStart())){ continue; }
 				return next;
 			}
 			return null;
@@ -223,79 +338,45 @@ public class MultiVCFReader {
 		}
 	}
 	
-	/** Take the variant in next and index up the variants */
-	private VariantContext _takeNext(){
-		VariantContext oldNext = this._next();
-		if (vcfReaders.containsKey(this.lastSource)){
-			if (vcfReaders.get(this.lastSource).hasNext()){
-				// TODO: What should happen when next fails because of malformed lines?
-				VariantContext c = null;
-				final CloseableTribbleIterator<VariantContext> reader = vcfReaders.get(this.lastSource);
-				while (reader.hasNext() && c == null){
-					c = _takeNextFromReader(this.lastSource); // take may throw errors that are captured, but the reader doesn't stop
-				}
-				if (c == null){
-					vcfNext.remove(this.lastSource);
-				} else {
-					vcfNext.put(this.lastSource, c);
-				}
-			} else {
-				vcfNext.remove(this.lastSource);
+	/**
+	 * Queues the next usable record of the source.  Records on contigs that are not in the reference, or on contigs that come
+	 * before the last record of the source (the VCF is not in reference order), are skipped.
+	 */
+	private void _addHead(String source, int order, int lastContig){
+		final Iterator<VariantContext> reader = vcfReaders.get(source);
+		VariantContext vc;
+		while ((vc = _takeNextFromReader(reader)) != null){
+			final int contig = this.sequenceDict.getSequenceIndex(vc.getChr());
+			if (contig >= 0 && contig >= lastContig){
+				this.vcfNext.add(new Head(vc, source, contig, order));
+				return;
 			}
+			this.skipped++;
+			log.log(Level.FINE, "Skipping record not in reference order: " + vc.getChr() + ":" + vc.getStart() + " from " + source);
 		}
-		// index up the next container that was the source for the last next
-//		if (vcfNext.containsKey(this.lastSource)){
-//			vcfNext.put(this.lastSource, vcfReaders.get(this.lastSource).next());
-//		} else {
-//			normalNext.put(this.lastSource, normalReaders.get(this.lastSource).next());
-//		}
-		
-		// set the new next
-		this._setNewNext();
-		
-		return oldNext;
 	}
 	
-	private void _setNewNext() {
-		VariantContext nvc = null;
-		String nsource = null;
-		
-		for (String k : vcfNext.keySet()){
-			VariantContext vc = vcfNext.get(k);
-			if (vc == null){ continue; }
-			if (!vc.getChr().equals(this.currentSequenceRegion.getSequenceName())){ continue; } // can't add since this is not the current record
-			if (nvc == null){
-				nvc = vc;
-				nsource = k;
-			} else {
-				if (vc.getStart() < nvc.getStart()){
-					nvc = vc;
-					nsource = k;
-				}
+	/** Take the variant in next and index up the variants */
+	private VariantContext _takeNext(){
+		final Head head = this.vcfNext.poll();
+		if (head == null){ return null; }
+		this._addHead(head.source, head.order, head.contig);
+		return head.vc;
+	}
+	
+	/**
+	 * Closes the VCF readers.
+	 */
+	public void close(){
+		for (FeatureReader<VariantContext> reader : this.featureReaders){
+			try {
+				reader.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "VCF reader did not close as expected", e);
 			}
 		}
-
-		// now we have the minimal set (we hope)
-		// check if the nvc is null, this will happen when we move chromosomes (~24 times in a run) If that is the case, index the chr and update
-		if (nvc == null){
-			this.currentSequenceRecordIndex++;
-			// log.log(Level.FINEST, "Moving to next chromosome contig: " + this.currentSequenceRecordIndex);
-			// System.out.println("Moving to next chromosome contig: " + this.currentSequenceRecordIndex);
-			// System.out.println("seqdictSize: " + this.sequenceDict.size() + " currentindex: " + this.currentSequenceRecordIndex);
-			if (this.currentSequenceRecordIndex < this.sequenceDict.size()){
-				this.currentSequenceRegion = this.sequenceDict.getSequence(this.currentSequenceRecordIndex);
-				log.log(Level.INFO, "New sequence region: " + this.currentSequenceRegion.getSequenceName());
-				// System.out.println("New sequence region: " + this.currentSequenceRegion);
-				this._setNewNext();
-			} else {
-				log.log(Level.INFO, "End of readers");
-				// System.out.println("End of readers");
-				this.nextVariantContext = null;
-				this.lastSource = null;
-			}
-		} else {
-			this.nextVariantContext = nvc;
-			this.lastSource = nsource;
+		if (this.skipped > 0){
+			log.log(Level.WARNING, "Skipped " + this.skipped + " records that were not on reference contigs or not in reference order");
 		}
 	}
 
@@ -303,10 +384,10 @@ public class MultiVCFReader {
 		log.log(Level.FINE, "Collecting allele set");
 		List<Allele> alleleSet = new LinkedList<Allele>(); // add the new alleles to this.
 		List<VariantContext> contexts = new LinkedList<VariantContext>(); // the variant contexts from where the alleles will be derived
-		List<String> initialCallPaths = new LinkedList<String>(); // collects the caller paths by checking lastSource
+		List<String> initialCallPaths = new LinkedList<String>(); // collects the caller paths by checking the source of the next record
 		// find the very next allele to grab;
 		
-		initialCallPaths.add(this.lastSource);
+		initialCallPaths.add(this._nextSource());
 		VariantContext vc = this._takeNext(); // get the next vc in the stack
 		if (vc == null){ return null; } // this means we have reached the end, this state will lock here
 		contexts.add(vc);
@@ -318,7 +399,7 @@ public class MultiVCFReader {
 		
 		// grab the nearby alleles within the buffer.
 		while (this._next() != null && vc.getChr().equals(this._next().getChr()) && contextsEnd > (this._next().getStart() - this.buffer)){
-			initialCallPaths.add(this.lastSource);
+			initialCallPaths.add(this._nextSource());
 			vc = this._takeNext();
 			contextsEnd = Math.max(contextsEnd, vc.getEnd());
 			contexts.add(vc);
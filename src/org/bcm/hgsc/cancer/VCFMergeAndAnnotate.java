@@ -1,29 +1,51 @@
 package org.bcm.hgsc.cancer;
 
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.FeatureReader;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.TribbleException;
+import htsjdk.tribble.index.IndexFactory;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
 import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFHeaderLineType;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,6 +65,14 @@ import org.bcm.hgsc.utils.AlleleResolver.AlleleSet;
 import org.bcm.hgsc.utils.BAMInterface;
 import org.bcm.hgsc.utils.BAMUtils;
 import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+import org.bcm.hgsc.utils.ConformedReadCache;
+import org.bcm.hgsc.utils.DepthSampler;
+import org.bcm.hgsc.utils.IOThreads;
+import org.bcm.hgsc.utils.MemoryBudget;
+import org.bcm.hgsc.utils.PackedReferenceSequenceFile;
+import org.bcm.hgsc.utils.ReadAheadIterator;
+import org.bcm.hgsc.utils.ReadFilter;
+import org.bcm.hgsc.utils.ReorderBuffer;
 import org.bcm.hgsc.utils.Settings;
 import org.bcm.hgsc.utils.Utils;
 
@@ -61,6 +91,15 @@ import org.bcm.hgsc.utils.Utils;
 public class VCFMergeAndAnnotate {
 	private static Logger log = Logger.getLogger("");
 	public static List<ThreadedAlleleResolver> workers = null;
+	private int checkpointInterval = 0;
+	private boolean resume = false;
+	private int metricsInterval = 60;
+	private int maxInFlight = 0;
+	private int maxFetches = 16;
+	private long readMemory = 0;
+	private int ioThreads = 0;
+	private boolean elasticIO = false;
+	private MergeMetrics metrics = null;
 
 	private static enum State {
 		READING, PROCESSING, WRITING, DONE
@@ -137,76 +176,133 @@ public class VCFMergeAndAnnotate {
 		}
 	}
 
+	/**
+	 * The result for one allele container, the variant context is null if the container failed.
+	 */
+	private static class ResolvedContainer {
+		private final AlleleContainer container;
+		private final VariantContext vc;
+
+		ResolvedContainer(AlleleContainer container, VariantContext vc){
+			this.container = container;
+			this.vc = vc;
+		}
+	}
+
+	/**
+	 * Writes variant contexts in the order their containers were read, each as soon as it and every earlier container is resolved.
+	 * With a checkpoint output the output is synced and a {@link MergeCheckpoint} written every interval containers.
+	 */
 	private class ThreadedAlleleWriter implements Runnable {
 		private final VariantContextWriter writer;
-		private final BlockingQueue<AlleleContainer> alleleContainer; // this is the writer container
-		private final Map<AlleleContainer, VariantContext> resultMap;
-		private boolean done = false;
-		private final StateMonitor monitor;
+		private final ReorderBuffer<ResolvedContainer> results;
+		private final MergeCheckpoint.Output checkpointOutput;
+		private final File outputFile;
+		private final int interval;
+		private final String shard;
+		private long written;
 
 		public ThreadedAlleleWriter(VariantContextWriter writer,
-				BlockingQueue<AlleleContainer> alleleContainer,
-				Map<AlleleContainer, VariantContext> resultMap,
-				StateMonitor monitor) {
+				ReorderBuffer<ResolvedContainer> results) {
+			this(writer, results, null, null, 0, 0, null);
+		}
+
+		/**
+		 * @param checkpointOutput the stream under the writer, or null for no checkpoints
+		 * @param written containers already in the output of a resumed run
+		 */
+		public ThreadedAlleleWriter(VariantContextWriter writer,
+				ReorderBuffer<ResolvedContainer> results, MergeCheckpoint.Output checkpointOutput,
+				File outputFile, int interval, long written, String shard) {
 			this.writer = writer;
-			this.alleleContainer = alleleContainer;
-			this.resultMap = resultMap;
-			this.monitor = monitor;
+			this.results = results;
+			this.checkpointOutput = checkpointOutput;
+			this.outputFile = outputFile;
+			this.interval = interval;
+			this.written = written;
+			this.shard = shard;
 		}
 
 		@Override
 		public void run() {
-			while (!Thread.currentThread().isInterrupted()
-					&& !monitor.getState().equals(State.WRITING)) {
-				try {
-					/**
-					 * @note it is important that the writer does poll instead of take
-					 * because there is the possibility that the alleleContainer is empty before 
-					 * @ref State.WRITING can be set.
-					 */
-					final AlleleContainer ac = this.alleleContainer.poll(30, TimeUnit.SECONDS);
-					if (ac != null){
-						resolve(ac);
+			try {
+				ReorderBuffer.Entry<ResolvedContainer> entry;
+				while ((entry = this.results.take()) != null) {
+					if (log.isLoggable(Level.FINE)){
+						log.fine("Allele container " + entry.getSequence() + " resolved in " + entry.getCompletionMillis() + "ms, waited " + 
+								entry.getWaitingMillis() + "ms on earlier containers");
+					}
+					final ResolvedContainer resolved = entry.getValue();
+					if (resolved.vc != null) {
+						final long writeStart = System.nanoTime();
+						writer.add(resolved.vc);
+						metrics.writeLatency.recordSince(writeStart);
+					} else {
+						log.log(Level.WARNING, "Failed to find variant context " + resolved.container.toString());
+					}
+					this.written++;
+					metrics.containersWritten.incrementAndGet();
+					if (this.checkpointOutput != null && this.interval > 0 && this.written % this.interval == 0){
+						this.checkpoint(resolved.container);
 					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
 				}
+			} catch (InterruptedException e) {
+				log.log(Level.SEVERE, "Writer interrupted, output is incomplete");
+				Thread.currentThread().interrupt();
 			}
-			final List<AlleleContainer> finalContainers = new ArrayList<AlleleContainer>();
-			this.alleleContainer.drainTo(finalContainers);
-			for (final AlleleContainer ac : finalContainers) {
-				resolve(ac);
-			}
-			this.done = true;
 		}
-		
-		private void resolve(AlleleContainer ac) {
-			log.fine("Resolving allele container " + ac.toString());
-			while (!resultMap.containsKey(ac) && !monitor.getState().equals(State.WRITING)) {
-				try {
-					log.finer("Waiting for allele " + ac.toString() + " to become available");
-					Thread.sleep(1000);
-					
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
+
+		private void checkpoint(AlleleContainer last){
+			try {
+				this.checkpointOutput.sync();
+				new MergeCheckpoint(this.written, last.getChr(), last.getStart(), this.checkpointOutput.getPosition(), this.interval, this.shard)
+						.write(this.outputFile);
+				log.log(Level.FINE, "Checkpoint after " + this.written + " containers at " + last.getChr() + ":" + last.getStart());
+			} catch (IOException e) {
+				// the last checkpoint is still good, so carry on
+				log.log(Level.WARNING, "Failed to write checkpoint", e);
 			}
-			final VariantContext vc = resultMap.get(ac);
-			if (vc != null) {
-				log.fine("Adding variant to writer");
-				writer.add(vc);
-				log.fine("Variant added to writer");
-			} else {
-				log.log(Level.WARNING, "Failed to find variant context " + ac.toString());
+		}
+	}
+
+	/**
+	 * Runs the tasks on the pool and waits for all of them.  The first task runs on the calling thread so the pool only takes the rest,
+	 * without a pool every task runs in turn on the calling thread.
+	 * @return the results in the order of the tasks
+	 * @throws Exception the first failure, once every task has finished
+	 */
+	private static <T> List<T> runAll(ExecutorService pool, List<Callable<T>> tasks) throws Exception {
+		final List<T> results = new ArrayList<T>(tasks.size());
+		if (pool == null || tasks.size() < 2){
+			for (Callable<T> task : tasks){
+				results.add(task.call());
 			}
-			synchronized (resultMap) {
-				resultMap.remove(ac);
+			return results;
+		}
+		final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size() - 1);
+		for (int i = 1; i < tasks.size(); i++){
+			futures.add(pool.submit(tasks.get(i)));
+		}
+		Exception failure = null;
+		try {
+			results.add(tasks.get(0).call());
+		} catch (Exception e){
+			failure = e;
+		}
+		// every task is waited on even after a failure, they share state with the caller
+		for (Future<T> future : futures){
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e){
+				if (failure == null){
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
 			}
 		}
-
-		public boolean done() {
-			return done;
+		if (failure != null){
+			throw failure;
 		}
+		return results;
 	}
 
 	private class SingleThrowThreadedAlleleResolver implements Runnable {
@@ -217,12 +313,21 @@ public class VCFMergeAndAnnotate {
 		// will be used only once to add the variant
 		private final AlleleResolver.ResolutionType resolution;
 		private final SampleGenotyper genotyper;
-		private final File fastafile;
+		private final ReferenceSequenceFile fastaref;
 		private final int padding;
 		// private final VariantContextWriter writer;
 		private final AlleleContainer alleleContainer;
-		private final Map<AlleleContainer, VariantContext> resultMap;
+		private final ReorderBuffer<ResolvedContainer> results;
+		private final ReorderBuffer.Ticket ticket;
 		private final StateMonitor monitor;
+		private final ThreadLocal<ConformedReadCache[]> readCaches; // null to query every BAM for every container
+		private final MemoryBudget budget;
+		private long charged; // bytes of the budget held by this task
+		private final ExecutorService ioPool; // null to fetch and genotype the samples in turn on this thread
+		private final ExecutorService cpuPool; // null to fetch and resolve on one thread, otherwise the records are fetched by fetchRecords
+		private AtomicReferenceArray<List<SAMRecord>> records = null; // the records of each sample from fetchRecords, to be conformed here
+		private int[] seen = null;
+		private volatile Exception fetchError = null;
 
 		/**
 		 * Class initialization should contain all information required to run
@@ -233,45 +338,281 @@ public class VCFMergeAndAnnotate {
 		public SingleThrowThreadedAlleleResolver(int padding,
 				AlleleResolver.ResolutionType resolution,
 				SampleGenotyper genotyper, List<BAMInterface> baminterfaces,
-				Map<AlleleContainer, VariantContext> resultMap, File fastafile,
+				ReorderBuffer<ResolvedContainer> results, ReorderBuffer.Ticket ticket, ReferenceSequenceFile fastaref,
 				AlleleContainer container, StateMonitor monitor,
-				int f, int F) {
+				int f, int F, ThreadLocal<ConformedReadCache[]> readCaches, MemoryBudget budget, long reserved, ExecutorService ioPool, ExecutorService cpuPool) {
 			// this.alleleContainer = alleleContainer;
 			this.resolution = resolution;
 			this.genotyper = genotyper;
 			this.baminterfaces = baminterfaces;
 			// this.variantContextQueue = variantContextQueue;
 			this.padding = padding;
-			this.fastafile = fastafile;
-			this.resultMap = resultMap;
+			this.fastaref = fastaref;
+			this.results = results;
+			this.ticket = ticket;
 			this.alleleContainer = container;
 			this.monitor = monitor;
 			this.includeFlag = f;
 			this.excludeFlag = F;
+			this.readCaches = readCaches;
+			this.budget = budget;
+			this.charged = reserved;
+			this.ioPool = ioPool;
+			this.cpuPool = cpuPool;
+		}
+
+		/**
+		 * Queries each BAM for the records of this container on the I/O threads, without conforming them.  Each query holds a reader
+		 * of the shared pool of its BAM, so the readers in use are bounded by the threads of io.  The last query to finish hands this
+		 * task to cpuPool, where the records are conformed and resolved.
+		 */
+		public void fetchRecords(ExecutorService io){
+			metrics.containersStarted.incrementAndGet();
+			final int n = baminterfaces.size();
+			final int start = alleleContainer.getStart() - padding;
+			final int end = alleleContainer.getEnd() + padding;
+			final long fetchStart = System.nanoTime();
+			final AtomicInteger pending = new AtomicInteger(n);
+			this.records = new AtomicReferenceArray<List<SAMRecord>>(n);
+			this.seen = new int[n];
+			for (int b = 0; b < n; b++){
+				final int sample = b;
+				io.execute(new Runnable(){
+					@Override
+					public void run() {
+						try {
+							records.set(sample, queryRecords(sample, alleleContainer.getChr(), start, end));
+						} catch (Exception e) {
+							// given to the worker so the failure is logged and completed like any other
+							fetchError = e;
+						} finally {
+							if (pending.decrementAndGet() == 0){
+								metrics.fetchLatency.recordSince(fetchStart);
+								cpuPool.execute(SingleThrowThreadedAlleleResolver.this);
+							}
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * The records of sample b that may cover [start, end], capped with -maxDepth.  Runs on an I/O thread.
+		 */
+		private List<SAMRecord> queryRecords(int b, String chr, int start, int end) throws InterruptedException{
+			final BAMInterface bi = baminterfaces.get(b);
+			ReadFilter filter = ReadFilter.flags(this.includeFlag, this.excludeFlag);
+			DepthSampler<SAMRecord> sampler = null;
+			if (Settings.maxDepth > 0){
+				// only reads that span the container without a skip can be used, and only a sample of those is conformed
+				filter = filter.spanning(start, end);
+				sampler = new DepthSampler<SAMRecord>(Settings.maxDepth);
+			}
+			final SamReader sam = bi.leaseSharedSamReader();
+			boolean healthy = false;
+			try {
+				final List<SAMRecord> found = BAMUtils.getRecords(sam, chr, start, end, filter, sampler);
+				healthy = true;
+				if (sampler != null){
+					this.seen[b] = sampler.getSeen();
+					metrics.addDepth(sampler.getSeen(), Settings.maxDepth);
+				}
+				return found;
+			} finally {
+				if (healthy){
+					bi.releaseSharedSamReader(sam);
+				} else {
+					bi.discardSharedSamReader(sam);
+				}
+			}
+		}
+
+		/**
+		 * Conforms the records from {@link #fetchRecords(ExecutorService)} on this worker and settles the budget of this
+		 * task to them.
+		 * @return the reads of each sample in BAM order
+		 */
+		private List<List<ConformedRead>> conformRecords(int start, int end){
+			final List<List<ConformedRead>> conformed = new ArrayList<List<ConformedRead>>(baminterfaces.size());
+			long readBytes = 0;
+			for (int b = 0; b < baminterfaces.size(); b++){
+				final List<SAMRecord> sampleRecords = this.records.get(b);
+				final List<ConformedRead> reads = new ArrayList<ConformedRead>(sampleRecords.size());
+				final List<ConformedRead> all = BAMUtils.conformRecords(sampleRecords, this.fastaref, start, end, Settings.conformFlank);
+				for (ConformedRead cr : all){
+					if (coversRange(cr, start, end)){
+						reads.add(cr);
+						readBytes += cr.estimatedBytes();
+					}
+				}
+				metrics.addReads(b, sampleRecords.size(), all.size());
+				conformed.add(reads);
+			}
+			// the worker holds the conformed reads from here
+			this.records = null;
+			this.charged = this.budget.settle(this.charged, readBytes);
+			return conformed;
 		}
 
 		@Override
 		public void run() {
 			log.log(Level.FINEST, "Allele processing");
+			if (this.cpuPool == null){
+				metrics.containersStarted.incrementAndGet();
+			}
+			VariantContext newv = null;
 			try {
-				final VariantContext newv = processAlleleContainer(alleleContainer);
-				synchronized (this.resultMap) {
-					log.log(Level.FINEST, "Adding allele result to resultMap");
-					this.resultMap.put(alleleContainer, newv);
-					log.log(Level.FINEST, "Allele added to resultMap");
-				}
+				newv = processAlleleContainer(alleleContainer);
 			} catch (Exception e) {
-				log.log(Level.SEVERE, "Caught exception while processing allele", e);
-				synchronized (this.resultMap) {
-					log.log(Level.FINEST, "Adding null result to resultMap");
-					this.resultMap.put(alleleContainer, null);
-					log.log(Level.FINEST, "Allele null added to resultMap");
+				log.log(Level.SEVERE, "Caught exception while processing allele " + alleleContainer.toString(), e);
+			} finally {
+				if (newv == null){
+					metrics.containersFailed.incrementAndGet();
+				} else {
+					metrics.containersResolved.incrementAndGet();
+				}
+				// the reads are dropped with this task
+				this.budget.release(this.charged);
+				// the writer waits on every ticket in turn so a result, even a null one, must always be given
+				this.results.complete(this.ticket, new ResolvedContainer(alleleContainer, newv));
+			}
+		}
+
+		/**
+		 * if null, we don't want it
+		 * if not covering slice, we don't want it
+		 * if covering undefined (dot) bases (like introns), we don't want it
+		 */
+		private boolean coversRange(ConformedRead cr, int start, int end){
+			if (cr == null || cr.readStart() > start || cr.readEnd() < end) {
+				return false;
+			}
+			// log.log(Level.FINE, "Read contains 'dot' in " + start + "-" + end + ":\n" + cr.toString());
+			return !ArrayUtils.contains(cr.getReadAtGenomicRange(start, end).bytes, BAMUtils.dot);
+		}
+
+		/**
+		 * The reads of sample b that cover [start, end], capped with -maxDepth.
+		 * @param cache the read window of this worker for the sample, null to query the BAM
+		 * @param depthSeen takes the depth of the sample before capping, only with -maxDepth
+		 */
+		private List<ConformedRead> fetchSample(int b, ConformedReadCache cache, String chr, int start, int end, int[] depthSeen) throws IOException{
+			final BAMInterface bi = baminterfaces.get(b);
+			final List<ConformedRead> reads = new ArrayList<ConformedRead>(1000);
+			if (cache != null){
+				final long conformedBefore = cache.getFetched();
+				final List<ConformedRead> cached = cache.getReads(chr, start, end);
+				if (Settings.maxDepth > 0){
+					// the window is shared with other containers so all of it is conformed, the cap only saves the work below
+					final DepthSampler<ConformedRead> sampler = new DepthSampler<ConformedRead>(Settings.maxDepth);
+					for (ConformedRead cr : cached){
+						if (coversRange(cr, start, end)){
+							sampler.offer(cr.getReadName(), cr);
+						}
+					}
+					reads.addAll(sampler.getSample());
+					depthSeen[b] = sampler.getSeen();
+					metrics.addDepth(sampler.getSeen(), Settings.maxDepth);
+				} else {
+					for (ConformedRead cr : cached){
+						if (coversRange(cr, start, end)){
+							reads.add(cr);
+						}
+					}
 				}
+				metrics.addReads(b, cached.size(), cache.getFetched() - conformedBefore);
+				return reads;
 			}
+			if (Settings.maxDepth > 0){
+				// only reads that span the container without a skip can be used, and only a sample of those is conformed
+				final DepthSampler<SAMRecord> sampler = new DepthSampler<SAMRecord>(Settings.maxDepth);
+				final SamReader sam = bi.leaseSamReader();
+				boolean healthy = false;
+				List<ConformedRead> sampled = null;
+				try {
+					sampled = BAMUtils.getConformedReads(sam, chr, start, end,
+							ReadFilter.flags(this.includeFlag, this.excludeFlag).spanning(start, end), this.fastaref, Settings.conformFlank, sampler);
+					healthy = true;
+				} finally {
+					if (healthy){
+						bi.releaseSamReader(sam);
+					} else {
+						bi.discardSamReader(sam);
+					}
+				}
+				for (ConformedRead cr : sampled){
+					if (coversRange(cr, start, end)){
+						reads.add(cr);
+					}
+				}
+				depthSeen[b] = sampler.getSeen();
+				metrics.addDepth(sampler.getSeen(), Settings.maxDepth);
+				metrics.addReads(b, sampled.size(), sampled.size());
+				return reads;
+			}
+			final SamReader sam = bi.leaseSamReader();
+			final ReadAheadIterator<ConformedRead> cri = BAMUtils.getConformedReadsIterator(
+					sam, chr,
+					start, end,
+					this.includeFlag, this.excludeFlag,
+					this.fastaref, Settings.readAhead, Settings.conformFlank);
+			// readers go back to the pool for the next container, unless iterating failed
+			boolean healthy = false;
+			long fetched = 0;
+			try {
+				while (cri.hasNext()){
+					final ConformedRead cr = cri.next();
+					if (cr != null){ fetched++; }
+					if (coversRange(cr, start, end)){
+						reads.add(cr);
+					}
+				}
+				healthy = true;
+			} finally {
+				cri.close();
+				if (healthy){
+					bi.releaseSamReader(sam);
+				} else {
+					bi.discardSamReader(sam);
+				}
+				metrics.addReads(b, fetched, fetched);
+			}
+			return reads;
+		}
+
+		/**
+		 * Fetches the reads of every sample, side by side on the I/O pool, and settles the budget of this task to them.
+		 * @param seen takes the depth of each sample before capping, only with -maxDepth
+		 * @return the reads of each sample in BAM order
+		 */
+		private List<List<ConformedRead>> fetchAll(final int start, final int end, final int[] seen) throws Exception{
+			final long fetchStart = System.nanoTime();
+			// the samples are fetched side by side on the I/O pool, the caches of this thread are only used by this container
+			final ConformedReadCache[] caches = this.readCaches == null ? null : this.readCaches.get();
+			final List<Callable<List<ConformedRead>>> fetches = new ArrayList<Callable<List<ConformedRead>>>(baminterfaces.size());
+			for (int b = 0; b < baminterfaces.size(); b++) {
+				final int sample = b;
+				fetches.add(new Callable<List<ConformedRead>>(){
+					@Override
+					public List<ConformedRead> call() throws Exception {
+						return fetchSample(sample, caches == null ? null : caches[sample], alleleContainer.getChr(), start, end, seen);
+					}
+				});
+			}
+			final List<List<ConformedRead>> fetched = runAll(this.ioPool, fetches);
+			metrics.fetchLatency.recordSince(fetchStart);
+			long readBytes = 0;
+			for (List<ConformedRead> reads : fetched){
+				for (ConformedRead cr : reads){
+					readBytes += cr.estimatedBytes();
+				}
+			}
+			this.charged = this.budget.settle(this.charged, readBytes);
+			return fetched;
 		}
 
 		private VariantContext processAlleleContainer(
-				AlleleContainer alleleContainer) {
+				final AlleleContainer alleleContainer) {
 			VariantContext newv = null;
 			final int start = alleleContainer.getStart() - padding;
 			final int end = alleleContainer.getEnd() + padding;
@@ -280,46 +621,35 @@ public class VCFMergeAndAnnotate {
 				final List<ConformedRead> allReads = new ArrayList<ConformedRead>(
 						1000);
 				final Map<String, List<ConformedRead>> sampleReads = new HashMap<String, List<ConformedRead>>();
+				// depth of each sample before capping, only with -maxDepth
+				final Map<String, Integer> depthSeen = new HashMap<String, Integer>();
 				AlleleSet alleles = null;
 				try {
 					// IndexedFastaSequenceFile fasta = new IndexedFastaSequenceFile(this.fastafile);
-					for (BAMInterface bi : baminterfaces) {
-						final SamReader sam = bi.getSamfilereader();
-						
-						final List<ConformedRead> reads = new ArrayList<ConformedRead>(1000);
-						sampleReads.put(bi.getSampleName(), reads);
-						Iterator<ConformedRead> cri = BAMUtils.getConformedReadsIterator(
-								sam, alleleContainer.getChr(),
-								start, end,
-								this.includeFlag, this.excludeFlag,
-								new IndexedFastaSequenceFile(this.fastafile));
-						while (cri.hasNext()){
-							final ConformedRead cr = cri.next();
-							// if null, we don't want it
-							// if not covering slice, we don't want it
-							// if covering undefined (dot) bases (like introns), we don't want it
-							if (cr == null || cr.readStart() > start || cr.readEnd() < end) {
-								continue;
-							} 
-							if (ArrayUtils.contains(cr.getReadAtGenomicRange(start, end).bytes, BAMUtils.dot)){
-								// log.log(Level.FINE, "Read contains 'dot' in " + start + "-" + end + ":\n" + cr.toString());
-								continue;
-							}
-							reads.add(cr);
+					if (this.fetchError != null){
+						throw this.fetchError;
+					}
+					final int[] seen = this.records != null ? this.seen : new int[baminterfaces.size()];
+					final List<List<ConformedRead>> fetched = this.records != null ? conformRecords(start, end) : fetchAll(start, end, seen);
+					for (int b = 0; b < baminterfaces.size(); b++) {
+						final String sampleName = baminterfaces.get(b).getSampleName();
+						sampleReads.put(sampleName, fetched.get(b));
+						allReads.addAll(fetched.get(b));
+						if (Settings.maxDepth > 0){
+							depthSeen.put(sampleName, seen[b]);
 						}
-						
-						allReads.addAll(reads);
-						sam.close();
 					}
 					// synchronized (log) {
 					// log.log(Level.FINE, "Simplifying allele");
 					// }
+					final long resolveStart = System.nanoTime();
 					alleles = AlleleResolver.resolveAlleles(allReads,
 							alleleContainer.getChr(),
 							alleleContainer.getStart() - padding,
 							alleleContainer.getEnd() + padding, resolution,
-							new IndexedFastaSequenceFile(this.fastafile),
+							this.fastaref,
 							this.padding).simplify();
+					metrics.resolveLatency.recordSince(resolveStart);
 
 					// add the info to the variant context builder
 					if (alleles == null || alleles.getAlleles().size() == 0) {
@@ -354,12 +684,24 @@ public class VCFMergeAndAnnotate {
 						List<Genotype> genotypes = new ArrayList<Genotype>(
 								sampleReads.size());
 						// do the genotyping
-						for (String k : sampleReads.keySet()) {
-							final List<ConformedRead> reads = sampleReads
-									.get(k);
-							genotypes
-									.add(genotyper.genotype(k, alleles, reads));
+						final long genotypeStart = System.nanoTime();
+						final AlleleSet resolved = alleles;
+						final List<Callable<Genotype>> genotypings = new ArrayList<Callable<Genotype>>(sampleReads.size());
+						for (final String k : sampleReads.keySet()) {
+							genotypings.add(new Callable<Genotype>(){
+								@Override
+								public Genotype call() throws Exception {
+									final Genotype g = genotyper.genotype(k, resolved, sampleReads.get(k));
+									if (depthSeen.containsKey(k)){
+										return new GenotypeBuilder(g).attribute("SDP", depthSeen.get(k)).make();
+									}
+									return g;
+								}
+							});
 						}
+						// with a worker pool for the CPU work the samples are genotyped in turn, the I/O pool is only for reads
+						genotypes.addAll(runAll(this.cpuPool != null ? null : this.ioPool, genotypings));
+						metrics.genotypeLatency.recordSince(genotypeStart);
 						// TODO: filter the genotypes for quality
 						vcbuilder
 								.loc(alleleContainer.getChr(),
@@ -393,7 +735,7 @@ public class VCFMergeAndAnnotate {
 		// will be used only once to add the variant
 		private final AlleleResolver.ResolutionType resolution;
 		private final SampleGenotyper genotyper;
-		private final File fastafile;
+		private final ReferenceSequenceFile fastaref;
 		private final int padding;
 		// private final VariantContextWriter writer;
 		private final BlockingQueue<AlleleContainer> container;
@@ -409,7 +751,7 @@ public class VCFMergeAndAnnotate {
 		public ThreadedAlleleResolver(int padding,
 				AlleleResolver.ResolutionType resolution,
 				SampleGenotyper genotyper, List<BAMInterface> baminterfaces,
-				Map<AlleleContainer, VariantContext> resultMap, File fastafile,
+				Map<AlleleContainer, VariantContext> resultMap, ReferenceSequenceFile fastaref,
 				BlockingQueue<AlleleContainer> container, StateMonitor monitor,
 				int f, int F) {
 			// this.alleleContainer = alleleContainer;
@@ -418,7 +760,7 @@ public class VCFMergeAndAnnotate {
 			this.baminterfaces = baminterfaces;
 			// this.variantContextQueue = variantContextQueue;
 			this.padding = padding;
-			this.fastafile = fastafile;
+			this.fastaref = fastaref;
 			this.resultMap = resultMap;
 			this.container = container;
 			this.monitor = monitor;
@@ -474,31 +816,41 @@ public class VCFMergeAndAnnotate {
 				try {
 					// IndexedFastaSequenceFile fasta = new IndexedFastaSequenceFile(this.fastafile);
 					for (BAMInterface bi : baminterfaces) {
-						final SamReader sam = bi.getSamfilereader();
+						final SamReader sam = bi.leaseSamReader();
 						final List<ConformedRead> reads = new ArrayList<ConformedRead>(1000);
 						sampleReads.put(bi.getSampleName(), reads);
-						Iterator<ConformedRead> cri = BAMUtils.getConformedReadsIterator(
+						final ReadAheadIterator<ConformedRead> cri = BAMUtils.getConformedReadsIterator(
 								sam, alleleContainer.getChr(),
 								start, end,
 								this.includeFlag, this.excludeFlag,
-								new IndexedFastaSequenceFile(this.fastafile));
-						while (cri.hasNext()){
-							final ConformedRead cr = cri.next();
-							// if null, we don't want it
-							// if not covering slice, we don't want it
-							// if covering undefined (dot) bases (like introns), we don't want it
-							if (cr == null || cr.readStart() > start || cr.readEnd() < end) {
-								continue;
-							} 
-							if (ArrayUtils.contains(cr.getReadAtGenomicRange(start, end).bytes, BAMUtils.dot)){
-								log.log(Level.FINE, "Read contains 'dot' in " + start + "-" + end + ":\n" + cr.toString());
-								continue;
+								this.fastaref, Settings.readAhead, Settings.conformFlank);
+						// readers go back to the pool for the next container, unless iterating failed
+						boolean healthy = false;
+						try {
+							while (cri.hasNext()){
+								final ConformedRead cr = cri.next();
+								// if null, we don't want it
+								// if not covering slice, we don't want it
+								// if covering undefined (dot) bases (like introns), we don't want it
+								if (cr == null || cr.readStart() > start || cr.readEnd() < end) {
+									continue;
+								} 
+								if (ArrayUtils.contains(cr.getReadAtGenomicRange(start, end).bytes, BAMUtils.dot)){
+									log.log(Level.FINE, "Read contains 'dot' in " + start + "-" + end + ":\n" + cr.toString());
+									continue;
+								}
+								reads.add(cr);
+							}
+							healthy = true;
+						} finally {
+							cri.close();
+							if (healthy){
+								bi.releaseSamReader(sam);
+							} else {
+								bi.discardSamReader(sam);
 							}
-							reads.add(cr);
 						}
-						
 						allReads.addAll(reads);
-						sam.close();
 					}
 					// synchronized (log) {
 					// log.log(Level.FINE, "Simplifying allele");
@@ -507,7 +859,7 @@ public class VCFMergeAndAnnotate {
 							alleleContainer.getChr(),
 							alleleContainer.getStart() - padding,
 							alleleContainer.getEnd() + padding, resolution,
-							new IndexedFastaSequenceFile(this.fastafile),
+							this.fastaref,
 							this.padding).simplify();
 
 					// add the info to the variant context builder
@@ -581,6 +933,74 @@ public class VCFMergeAndAnnotate {
 		}
 	}
 
+	/**
+	 * @param interval write a {@link MergeCheckpoint} every interval allele sets, 0 for none
+	 */
+	public void setCheckpointInterval(int interval) {
+		this.checkpointInterval = interval;
+	}
+
+	/**
+	 * @param resume continue from the {@link MergeCheckpoint} of the output instead of starting over
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * @param interval seconds between logging the {@link MergeMetrics} of a run, 0 to only log them at the end
+	 */
+	public void setMetricsInterval(int interval) {
+		this.metricsInterval = interval;
+	}
+
+	/**
+	 * @param maxInFlight allele sets that may be queued, running or waiting to be written at once, 0 for 16 per worker
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param bytes estimated memory the reads of queued and running allele sets may hold before no more are submitted, 0 for a quarter
+	 * of the maximum heap
+	 */
+	public void setReadMemory(long bytes) {
+		this.readMemory = bytes;
+	}
+
+	/**
+	 * @param threads threads that fetch and genotype the samples of an allele set side by side, shared by all of the workers.  0 handles
+	 * the samples in turn on the worker
+	 */
+	public void setIOThreads(int threads) {
+		this.ioThreads = threads;
+	}
+
+	/**
+	 * @param elastic fetch the records of each allele set on {@link IOThreads} started as needed, up to the max fetches,
+	 * and conform, resolve and genotype them on one worker per core.  Replaces the I/O threads and the worker count taken from the thread count
+	 */
+	public void setElasticIO(boolean elastic) {
+		this.elasticIO = elastic;
+	}
+
+	/**
+	 * @param maxFetches BAM queries running at once with -elasticIO, which bounds the I/O threads and the readers open on each BAM.
+	 * Every reader keeps a file handle, a BGZF buffer and the cached index of its BAM open until the run ends, so the default of 16
+	 * is kept near the queries a local or network disk serves at once rather than the allele sets in flight
+	 */
+	public void setMaxFetches(int maxFetches) {
+		this.maxFetches = maxFetches;
+	}
+
+	/**
+	 * @return the metrics of the current or last run, null before the first run
+	 */
+	public MergeMetrics getMetrics() {
+		return this.metrics;
+	}
+
 	public static void main(String[] args) throws Exception {
 
 		// build a VCF reader object, this returns VCF records in batches for processing through the site lookup,
@@ -602,7 +1022,7 @@ public class VCFMergeAndAnnotate {
 		//options.addOption("normalBAM", true, "normal BAM file");
 		//options.addOption("tumorName", true, "name of the tumor sample. default is to extract from BAM name [basename <tumorBAM> .bam]");
 		//options.addOption("normalName", true, "name of the normal sample. default is to extract from BAM name [basename <normalBAM> .bam]");
-		options.addOption("r", true, "indexed reference file (required)");
+		options.addOption("r", true, "indexed reference file or packed reference (required)");
 		options.addOption("b", true, "buffer for VCF allele lookup.  variants within the buffer will be considered jointly for genotyping and allele resolution. [20]");
 		options.addOption("p", true, "padding to be applied around allele sets (based on buffer).  padding prevents expansion of alleles but does not prevent re-genotyping (nothing does)");
 		options.addOption("minExp", false, "provide minimal expansion of alleles, alleles only expand when SNP is beside INDEL");
@@ -616,6 +1036,32 @@ public class VCFMergeAndAnnotate {
 		options.addOption("minAlleleCount", true, "Do not report alleles below this minimum value.  " + 
 				"In general it is not recomended to use this because the user should be filtering at a later step." + 
 				"  However, for some technologies, the error mode is so high that a reasonable filter can be implemented.");
+		options.addOption("conformFlank", true, "only conform the part of each read within this many bases of the allele set (plus padding), -1 conforms whole reads.  " +
+				"This saves a lot of work on long reads but alleles will not be expanded past the flank [-1]");
+		options.addOption("readAhead", true, "number of reads to decode ahead of allele resolution on a background thread for each BAM, 0 to decode on the worker thread [0]");
+		options.addOption("maxDepth", true, "cap the reads used for each sample at each allele set to this many, chosen by read name so the same reads are " + 
+				"chosen on every run.  Only reads usable at the allele set are counted, their depth before capping is reported as SDP [0, no cap]");
+		options.addOption("readCache", false, "keep a window of conformed reads for each BAM on each worker, so reads shared by nearby allele sets are conformed once.  " + 
+				"Not used with -conformFlank");
+		options.addOption("shard", true, "only process shard i of N (given as i/N), contigs are dealt out to shards by size.  Merge the shard outputs with -mergeShards");
+		Option regionOption = new Option("region", true, "only process allele sets starting in these regions (chr, chr:start or chr:start-end).  " + 
+				"Allele sets are not joined across region edges so split contigs where there are no nearby variants");
+		regionOption.setArgs(Option.UNLIMITED_VALUES);
+		options.addOption(regionOption);
+		options.addOption("metricsInterval", true, "log pipeline metrics every this many seconds, 0 to only log them at the end.  " + 
+				"The metrics are also available over JMX as org.bcm.hgsc:type=VCFMergeAndAnnotate [60]");
+		options.addOption("ioThreads", true, "number of threads that fetch and genotype the BAMs of an allele set side by side, shared by all workers.  " + 
+				"Helps with many BAMs on slow or network storage [0, each worker reads the BAMs in turn]");
+		options.addOption("elasticIO", false, "fetch reads on threads started as needed, up to -maxFetches, so many allele sets can be waiting on the BAMs at once, " + 
+				"and conform, resolve and genotype on one worker per core.  -nThreads and -ioThreads are not used, bound the reads in flight with -maxInFlight and -readMemory");
+		options.addOption("maxFetches", true, "maximum number of BAM queries running at once with -elasticIO, which bounds the I/O threads and the readers open on each BAM.  " + 
+				"Each reader holds the index of its BAM, raise this for high latency storage [16]");
+		options.addOption("maxInFlight", true, "maximum number of allele sets queued, being resolved or waiting to be written at once [16 per worker]");
+		options.addOption("readMemory", true, "megabytes of reads that queued and running allele sets may hold, estimated from the read count and length.  " + 
+				"No more allele sets are queued while this is used [a quarter of the maximum heap]");
+		options.addOption("checkpoint", true, "write a checkpoint every this many allele sets so an interrupted run can be resumed with -resume [0, no checkpoints]");
+		options.addOption("resume", false, "resume an interrupted run from the checkpoint of the output (-o), all other arguments must be the same as the first run");
+		options.addOption("mergeShards", false, "merge the shard VCFs given with -v into -o in reference order, -r is required for the reference order");
 		HelpFormatter formatter = new HelpFormatter();
 		CommandLine line = parser.parse(options, args);
 		Settings.debug = line.hasOption("d");
@@ -631,6 +1077,11 @@ public class VCFMergeAndAnnotate {
 			log.setLevel(Level.INFO);
 		}
 
+		if (line.hasOption("mergeShards") && line.hasOption("vcf") && line.hasOption("r") && line.hasOption("o")){
+			mergeShards(Arrays.asList(Utils.filesFromStrings(line.getOptionValues("vcf"))), new File(line.getOptionValue("r")), 
+					new File(line.getOptionValue("o")));
+			return;
+		}
 		if (! line.hasOption("vcf") || ! line.hasOption("bam") || ! line.hasOption("r") || line.hasOption("h")){
 			log.log( Level.SEVERE, "Required args not supplied.");
 			formatter.printHelp("Wheeljack.jar", options);
@@ -682,8 +1133,32 @@ public class VCFMergeAndAnnotate {
 		Integer		F			=	Integer.decode(line.getOptionValue("F", "1284"));
 		AlleleResolver.minAlleleCount = Integer.decode(line.getOptionValue("minAlleleCount", "1"));
 		Integer		maxSize		=	Integer.decode(line.getOptionValue("maxSize", "20"));
+		Settings.readAhead = Integer.decode(line.getOptionValue("readAhead", "0"));
+		Settings.conformFlank = Integer.decode(line.getOptionValue("conformFlank", "-1"));
+		Settings.readCache = line.hasOption("readCache");
+		Settings.maxDepth = Integer.decode(line.getOptionValue("maxDepth", "0"));
+
+		GenomeShard shard = null;
+		if (line.hasOption("shard") || line.hasOption("region")){
+			final ReferenceSequenceFile dictref = PackedReferenceSequenceFile.openShared(fastafile);
+			if (line.hasOption("shard")){
+				shard = GenomeShard.fromShardSpec(line.getOptionValue("shard"), dictref.getSequenceDictionary());
+			} else {
+				shard = GenomeShard.fromRegions(line.getOptionValues("region"), dictref.getSequenceDictionary());
+			}
+			dictref.close();
+			log.log(Level.INFO, "Processing " + shard.toString());
+		}
 
 		VCFMergeAndAnnotate merger = new VCFMergeAndAnnotate();
+		merger.setCheckpointInterval(Integer.decode(line.getOptionValue("checkpoint", "0")));
+		merger.setResume(line.hasOption("resume"));
+		merger.setMetricsInterval(Integer.decode(line.getOptionValue("metricsInterval", "60")));
+		merger.setMaxInFlight(Integer.decode(line.getOptionValue("maxInFlight", "0")));
+		merger.setIOThreads(Integer.decode(line.getOptionValue("ioThreads", "0")));
+		merger.setElasticIO(line.hasOption("elasticIO"));
+		merger.setMaxFetches(Integer.decode(line.getOptionValue("maxFetches", "16")));
+		merger.setReadMemory(Long.decode(line.getOptionValue("readMemory", "0")) * 1024 * 1024);
 		File vcfoutputFile = new File(outputVCF);
 		AlleleResolver.ResolutionType resolution = null;
 		if (line.hasOption("p")){
@@ -693,13 +1168,24 @@ public class VCFMergeAndAnnotate {
 		} else {
 			resolution = AlleleResolver.ResolutionType.EXPANDING;
 		}
-		merger.run(baminterfaces, Arrays.asList(vcffiles), buffer, fastafile, vcfoutputFile, resolution, padding, null, f, F, maxSize);
+		merger.run(baminterfaces, Arrays.asList(vcffiles), buffer, fastafile, vcfoutputFile, resolution, padding, null, f, F, maxSize, shard);
 	}
 
 	public void run(List<BAMInterface> baminterfaces, List<File> variantFiles,
 			int buffer, File fastafile, File outputFile,
 			AlleleResolver.ResolutionType resolution, int padding,
 			File sampleInfo, int f, int F, int maxSize) throws Exception {
+		run(baminterfaces, variantFiles, buffer, fastafile, outputFile, resolution, padding, sampleInfo, f, F, maxSize, null);
+	}
+
+	/**
+	 * Merges and annotates only the allele sets that start in the shard, a null shard processes the whole genome.
+	 * Shards can be run in separate processes or on separate nodes and put back together with {@link #mergeShards(List, File, File)}.
+	 */
+	public void run(final List<BAMInterface> baminterfaces, List<File> variantFiles,
+			int buffer, File fastafile, File outputFile,
+			AlleleResolver.ResolutionType resolution, int padding,
+			File sampleInfo, int f, int F, int maxSize, GenomeShard shard) throws Exception {
 		List<String> samples = new ArrayList<String>();
 		for (BAMInterface bi : baminterfaces) {
 			samples.add(bi.getSampleName());
@@ -707,72 +1193,212 @@ public class VCFMergeAndAnnotate {
 		}
 
 		StateMonitor monitor = new StateMonitor();
-		MultiVCFReader reader = new MultiVCFReader(variantFiles, buffer, maxSize,
-				fastafile);
-		// VCFWriter writer = new VCFWriter();
-		CARNACSampleGenotyper carnacGenotyper = new CARNACSampleGenotyper();
-		VCFHeader vcfHeader = new VCFHeader(
-				CARNACSampleGenotyper.getHeaderLines(samples, sampleInfo),
-				samples);
-		IndexedFastaSequenceFile fastaref = new IndexedFastaSequenceFile(
-				fastafile);
-		VariantContextWriter writer = new VariantContextWriterBuilder()
-				.setReferenceDictionary(fastaref.getSequenceDictionary())
-				.setOutputFile(outputFile).build();
-		fastaref.close();
-		writer.writeHeader(vcfHeader);
-		log.log(Level.INFO, "Starting threads");
-
-		int nWorkers = Settings.threadCount > 3 ? Settings.threadCount * 2 : 3; 
-
-		// BlockingQueue<AlleleContainer> container = new LinkedBlockingQueue<AlleleContainer>(
-		// 		nWorkers * 2);
-		BlockingQueue<AlleleContainer> writercontainer = new LinkedBlockingQueue<AlleleContainer>(
-				nWorkers * 2);
-		Map<AlleleContainer, VariantContext> resultMap = Collections
-				.synchronizedMap(new HashMap<AlleleContainer, VariantContext>());
-		// ThreadedAlleleContainerLoader loader = new ThreadedAlleleContainerLoader(
-		//		reader, container, writercontainer, monitor);
-		// Thread loaderThread = new Thread(loader);
-		// loaderThread.start();
+		this.metrics = new MergeMetrics(samples);
+		this.metrics.start(outputFile.getName(), this.metricsInterval);
+		try {
+			// one reference reader is shared by all of the workers
+			final ReferenceSequenceFile fastaref = PackedReferenceSequenceFile.openShared(fastafile);
+			MultiVCFReader reader = new MultiVCFReader(variantFiles, buffer, maxSize,
+					fastaref, shard);
+			// VCFWriter writer = new VCFWriter();
+			CARNACSampleGenotyper carnacGenotyper = new CARNACSampleGenotyper();
+			final Set<VCFHeaderLine> headerLines = new HashSet<VCFHeaderLine>(CARNACSampleGenotyper.getHeaderLines(samples, sampleInfo));
+			if (Settings.maxDepth > 0){
+				headerLines.add(new VCFFormatHeaderLine("SDP", 1, VCFHeaderLineType.Integer, "Usable reads (covering the site without a skip) before the depth was capped to " + 
+						Settings.maxDepth + " (-maxDepth), the other counts are from the capped reads"));
+			}
+			VCFHeader vcfHeader = new VCFHeader(headerLines, samples);
+			final String shardName = shard == null ? null : shard.toString();
+			MergeCheckpoint resumeFrom = null;
+			if (this.resume){
+				resumeFrom = MergeCheckpoint.read(outputFile);
+				if (!resumeFrom.getShard().equals(shardName == null ? "" : shardName)){
+					throw new Exception("Checkpoint is for " + resumeFrom.getShard() + " not " + shardName);
+				}
+				log.log(Level.INFO, "Resuming from " + resumeFrom.toString());
+			}
+			final int interval = this.checkpointInterval > 0 || resumeFrom == null ? this.checkpointInterval : resumeFrom.getInterval();
+			// checkpointed output is written through a stream we can sync, the index is built once the output is complete
+			final MergeCheckpoint.Output checkpointOutput = interval > 0 || resumeFrom != null ? MergeCheckpoint.Output.open(outputFile, resumeFrom) : null;
+			VariantContextWriter writer;
+			if (checkpointOutput == null){
+				writer = new VariantContextWriterBuilder()
+						.setReferenceDictionary(fastaref.getSequenceDictionary())
+						.setOutputFile(outputFile).build();
+			} else {
+				writer = new VariantContextWriterBuilder()
+						.setReferenceDictionary(fastaref.getSequenceDictionary())
+						.setOutputVCFStream(checkpointOutput).unsetOption(htsjdk.variant.variantcontext.writer.Options.INDEX_ON_THE_FLY).unsetBuffering().build();
+			}
+			// a resumed output already has its header, but the writer still has to be given it
+			if (resumeFrom != null){ checkpointOutput.setDiscarding(true); }
+			writer.writeHeader(vcfHeader);
+			if (resumeFrom != null){ checkpointOutput.setDiscarding(false); }
+			log.log(Level.INFO, "Starting threads");
+
+			// the workers block on the BAMs unless the reads are fetched on the I/O threads, then they only need the cores
+			int nWorkers = this.elasticIO ? IOThreads.cores() : Settings.threadCount > 3 ? Settings.threadCount * 2 : 3; 
+
+			// BlockingQueue<AlleleContainer> container = new LinkedBlockingQueue<AlleleContainer>(
+			// 		nWorkers * 2);
+			// results may run well ahead of the writer so one slow container does not leave the workers idle
+			final int inFlight = this.maxInFlight > 0 ? this.maxInFlight : nWorkers * 16;
+			final ReorderBuffer<ResolvedContainer> results = new ReorderBuffer<ResolvedContainer>(inFlight);
+			// every queued or running container holds all of its reads, on deep data the count alone does not keep them off the heap
+			final long readMemory = this.readMemory > 0 ? this.readMemory : Runtime.getRuntime().maxMemory() / 4;
+			final MemoryBudget budget = new MemoryBudget(readMemory, readMemory / inFlight);
+			log.log(Level.INFO, "Up to " + inFlight + " allele sets in flight holding up to " + (readMemory >> 20) + "MB of reads");
+			// ThreadedAlleleContainerLoader loader = new ThreadedAlleleContainerLoader(
+			//		reader, container, writercontainer, monitor);
+			// Thread loaderThread = new Thread(loader);
+			// loaderThread.start();
 		
-		// set up the writer
-		ThreadedAlleleWriter alleleWriter = new ThreadedAlleleWriter(writer,
-				writercontainer, resultMap, monitor);
-		Thread writerThread = new Thread(alleleWriter);
-		writerThread.start();
+			// one window of conformed reads per BAM for each worker thread, the caches are collected for the summary
+			final ThreadLocal<ConformedReadCache[]> readCaches;
+			final List<ConformedReadCache> allCaches = Collections.synchronizedList(new ArrayList<ConformedReadCache>());
+			if (Settings.readCache && Settings.conformFlank >= 0){
+				log.log(Level.WARNING, "The read cache holds whole conformed reads so is not used with -conformFlank");
+				readCaches = null;
+			} else if (Settings.readCache && this.elasticIO){
+				// a window for every I/O thread would come and go with the threads and rarely see the next allele set
+				log.log(Level.WARNING, "The read cache is kept by each worker so is not used with -elasticIO");
+				readCaches = null;
+			} else if (Settings.readCache){
+				final ReadFilter readFilter = ReadFilter.flags(f, F);
+				readCaches = new ThreadLocal<ConformedReadCache[]>(){
+					@Override
+					protected ConformedReadCache[] initialValue(){
+						final ConformedReadCache[] caches = new ConformedReadCache[baminterfaces.size()];
+						for (int b = 0; b < caches.length; b++){
+							caches[b] = new ConformedReadCache(baminterfaces.get(b), readFilter, fastaref, Settings.readAhead);
+							allCaches.add(caches[b]);
+						}
+						return caches;
+					}
+				};
+			} else {
+				readCaches = null;
+			}
 		
+			// set up the writer
+			ThreadedAlleleWriter alleleWriter = new ThreadedAlleleWriter(writer, results, checkpointOutput, outputFile, interval,
+					resumeFrom == null ? 0 : resumeFrom.getContainers(), shardName);
+			Thread writerThread = new Thread(alleleWriter);
+			writerThread.start();
 		
-		// using executorservice
 		
-		final ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
-		int allelesAdded = 0;
-		while (reader.hasNext()){
-			AlleleContainer ac = reader.nextAlleleSet();
-			// start executing the thread before the writer is expecting to see it
-			pool.execute(new SingleThrowThreadedAlleleResolver(padding, resolution, carnacGenotyper, baminterfaces,
-					resultMap, fastafile, ac, monitor, f, F));
-			writercontainer.put(ac);
-			allelesAdded += 1;
-		}
-		pool.shutdown();
-		while (!pool.isTerminated()){
-			try {
-				pool.awaitTermination(10, TimeUnit.SECONDS);
-				log.fine("Waiting for pool to shut down");
-			} catch (InterruptedException e) {
-				// this should never happen
-				log.fine("Interrupted while shutting down pool.");
+			// using executorservice
+		
+			final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(nWorkers);
+			// I/O tasks never wait on other tasks, so a bounded pool can not deadlock the workers
+			final ExecutorService ioPool = this.elasticIO || this.ioThreads < 1 || baminterfaces.size() < 2 ? null : Executors.newFixedThreadPool(this.ioThreads);
+			// each fetch holds an I/O thread and a shared reader of its BAM, the pool bounds both whatever the allele sets in flight
+			final ThreadPoolExecutor fetchPool = this.elasticIO ? IOThreads.pool(this.maxFetches) : null;
+			if (this.elasticIO){
+				for (BAMInterface bi : baminterfaces){
+					bi.setSharedReaderLimit(this.maxFetches);
+				}
+				log.log(Level.INFO, "Fetching reads on up to " + this.maxFetches + " I/O threads and resolving on " + nWorkers + " workers");
+			}
+			metrics.setQueues(pool, results);
+			metrics.setBudget(budget);
+			int allelesAdded = 0;
+			if (resumeFrom != null){
+				// containers come out of the reader in the same order every time, so the written ones are the first ones
+				AlleleContainer ac = null;
+				for (long i = 0; i < resumeFrom.getContainers(); i++){
+					if (!reader.hasNext()){
+						throw new Exception("Inputs have fewer allele sets than the checkpoint, were they changed?");
+					}
+					ac = reader.nextAlleleSet();
+				}
+				if (ac != null && (!ac.getChr().equals(resumeFrom.getChr()) || ac.getStart() != resumeFrom.getStart())){
+					throw new Exception("Checkpoint ends at " + resumeFrom.getChr() + ":" + resumeFrom.getStart() + " but the inputs give " + 
+							ac.getChr() + ":" + ac.getStart() + ", were they changed?");
+				}
+				log.log(Level.INFO, "Skipped " + resumeFrom.getContainers() + " allele sets that were already written");
+			}
+			while (reader.hasNext()){
+				AlleleContainer ac = reader.nextAlleleSet();
+				// the ticket fixes the place of this container in the output
+				final ReorderBuffer.Ticket ticket = results.submit();
+				final long reserved = budget.reserve();
+				metrics.containersRead.incrementAndGet();
+				if (this.elasticIO){
+					// the container moves on to the workers once its records are fetched
+					new SingleThrowThreadedAlleleResolver(padding, resolution, carnacGenotyper, baminterfaces,
+							results, ticket, fastaref, ac, monitor, f, F, readCaches, budget, reserved, null, pool).fetchRecords(fetchPool);
+				} else {
+					pool.execute(new SingleThrowThreadedAlleleResolver(padding, resolution, carnacGenotyper, baminterfaces,
+							results, ticket, fastaref, ac, monitor, f, F, readCaches, budget, reserved, ioPool, null));
+				}
+				allelesAdded += 1;
+			}
+			reader.close();
+			results.close();
+			if (this.elasticIO){
+				// containers still being fetched have yet to reach the workers, the writer ends once the last has been resolved
+				writerThread.join();
+				log.log(Level.INFO, "Fetches ran on at most " + fetchPool.getLargestPoolSize() + " I/O threads");
+				fetchPool.shutdown();
+			}
+			pool.shutdown();
+			while (!pool.isTerminated()){
+				try {
+					pool.awaitTermination(10, TimeUnit.SECONDS);
+					log.fine("Waiting for pool to shut down");
+				} catch (InterruptedException e) {
+					// this should never happen
+					log.fine("Interrupted while shutting down pool.");
+				}
+			}
+			if (ioPool != null){
+				// the workers are done so nothing is left on the I/O pool
+				ioPool.shutdown();
+			}
+			log.log(Level.INFO, "Setting monitor to writing");
+			monitor.setWriting();
+			// now close the writer thread
+			// writerThread.interrupt();
+			log.log(Level.INFO, "Joining writer thread");
+			writerThread.join();
+			writer.close();
+			log.log(Level.INFO, results.getLatencySummary());
+			if (checkpointOutput != null){
+				// the output is complete
+				MergeCheckpoint.checkpointFile(outputFile).delete();
+				try {
+					IndexFactory.writeIndex(IndexFactory.createDynamicIndex(outputFile, new VCFCodec()), Tribble.indexFile(outputFile));
+				} catch (TribbleException e) {
+					// expanded alleles can start before the allele set before them
+					log.log(Level.WARNING, "Could not index " + outputFile + ", " + e.getMessage());
+				}
+			}
+			if (readCaches != null){
+				long fetched = 0;
+				long served = 0;
+				synchronized (allCaches){
+					for (ConformedReadCache cache : allCaches){
+						fetched += cache.getFetched();
+						served += cache.getServed();
+					}
+				}
+				log.log(Level.INFO, "Read cache conformed " + fetched + " reads and served " + served);
+			}
+			fastaref.close();
+			for (BAMInterface bi : baminterfaces){
+				bi.closePooledReaders();
+				log.log(Level.INFO, bi.getPoolSummary());
 			}
+			if (Settings.readAhead > 0){
+				log.log(Level.INFO, ReadAheadIterator.getReadAheadSummary());
+			}
+			log.log(Level.INFO, "Processed " + allelesAdded + " allele sets.");
+			log.log(Level.INFO, metrics.getSummary());
+		} finally {
+			// a failed or refused run must not leave the MBean registered or the reporter running
+			this.metrics.stop();
 		}
-		log.log(Level.INFO, "Setting monitor to writing");
-		monitor.setWriting();
-		// now close the writer thread
-		// writerThread.interrupt();
-		log.log(Level.INFO, "Joining writer thread");
-		writerThread.join();
-		writer.close();
-		log.log(Level.INFO, "Processed " + allelesAdded + " allele sets.");
 		
 		/*
 		List<Thread> workerThreads = new ArrayList<Thread>(nWorkers);
@@ -813,4 +1439,93 @@ public class VCFMergeAndAnnotate {
 		*/
 	}
 
+	/**
+	 * Writes the records of shard outputs to one VCF in reference order.  Each shard is already sorted so this is a k-way merge
+	 * of the shards, which takes one record per shard of memory.  All shards must have the same samples, the header of the first
+	 * shard is used for the output.
+	 * @param shardFiles VCFs written by runs over shards of the genome
+	 * @param fastafile the reference used for the runs, sets the contig order
+	 * @param outputFile
+	 * @throws Exception if the shards do not have the same samples or have contigs not in the reference
+	 */
+	public static void mergeShards(List<File> shardFiles, File fastafile, File outputFile) throws Exception {
+		final ReferenceSequenceFile fastaref = PackedReferenceSequenceFile.openShared(fastafile);
+		final SAMSequenceDictionary dict = fastaref.getSequenceDictionary();
+		fastaref.close();
+		if (dict == null){
+			throw new Exception("Fasta sequence dictionary is null");
+		}
+		final List<FeatureReader<VariantContext>> readers = new ArrayList<FeatureReader<VariantContext>>(shardFiles.size());
+		final List<CloseableTribbleIterator<VariantContext>> iterators = new ArrayList<CloseableTribbleIterator<VariantContext>>(shardFiles.size());
+		VCFHeader header = null;
+		for (File shardFile : shardFiles){
+			final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(shardFile.getAbsolutePath(), new VCFCodec(), false);
+			final VCFHeader shardHeader = (VCFHeader) reader.getHeader();
+			if (header == null){
+				header = shardHeader;
+			} else if (!header.getGenotypeSamples().equals(shardHeader.getGenotypeSamples())){
+				throw new Exception("Shard " + shardFile + " has samples " + shardHeader.getGenotypeSamples() + 
+						" but the first shard has " + header.getGenotypeSamples());
+			}
+			readers.add(reader);
+			iterators.add(reader.iterator());
+		}
+		if (header == null){
+			throw new Exception("No shards to merge");
+		}
+		// heads of the shards, ordered by position and then by shard so ties keep the order shards were given in
+		final PriorityQueue<ShardHead> heads = new PriorityQueue<ShardHead>(Math.max(1, shardFiles.size()), new Comparator<ShardHead>(){
+			@Override
+			public int compare(ShardHead a, ShardHead b) {
+				if (a.contig != b.contig){ return a.contig < b.contig ? -1 : 1; }
+				if (a.vc.getStart() != b.vc.getStart()){ return a.vc.getStart() < b.vc.getStart() ? -1 : 1; }
+				return a.shard - b.shard;
+			}
+		});
+		for (int i = 0; i < iterators.size(); i++){
+			addShardHead(heads, iterators.get(i), i, dict);
+		}
+		final VariantContextWriter writer = new VariantContextWriterBuilder()
+				.setReferenceDictionary(dict)
+				.setOutputFile(outputFile).build();
+		writer.writeHeader(header);
+		long records = 0;
+		while (!heads.isEmpty()){
+			final ShardHead head = heads.poll();
+			writer.add(head.vc);
+			records++;
+			addShardHead(heads, iterators.get(head.shard), head.shard, dict);
+		}
+		writer.close();
+		for (int i = 0; i < readers.size(); i++){
+			iterators.get(i).close();
+			readers.get(i).close();
+		}
+		log.log(Level.INFO, "Merged " + records + " records from " + shardFiles.size() + " shards");
+	}
+
+	private static class ShardHead {
+		private final VariantContext vc;
+		private final int contig;
+		private final int shard;
+
+		ShardHead(VariantContext vc, int contig, int shard){
+			this.vc = vc;
+			this.contig = contig;
+			this.shard = shard;
+		}
+	}
+
+	private static void addShardHead(PriorityQueue<ShardHead> heads, CloseableTribbleIterator<VariantContext> iterator, int shardIndex,
+			SAMSequenceDictionary dict) throws Exception {
+		if (iterator.hasNext()){
+			final VariantContext vc = iterator.next();
+			final int contig = dict.getSequenceIndex(vc.getChr());
+			if (contig < 0){
+				throw new Exception("Shard record on contig " + vc.getChr() + " which is not in the reference");
+			}
+			heads.add(new ShardHead(vc, contig, shardIndex));
+		}
+	}
+
 }
@@ -1,6 +1,6 @@
 package org.bcm.hgsc.cancer.pacbio;
 
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.util.SequenceUtil;
 
 import org.apache.commons.lang3.StringUtils;
@@ -22,15 +22,15 @@ public class BlastRow {
 	public static final Unique AMBIGUOUS = Unique.AMBIGUOUS;
 	public static final Unique UNIQUE = Unique.UNIQUE;
 	public static final Unique REDUNDANT = Unique.REDUNDANT;
-	public final IndexedFastaSequenceFile reffasta;
+	public final ReferenceSequenceFile reffasta;
 	
 	public Unique unique = Unique.UNIQUE;
 	
-	public BlastRow(String s, IndexedFastaSequenceFile reffasta){
+	public BlastRow(String s, ReferenceSequenceFile reffasta){
 		this(s.split("\t"), reffasta);
 	}
 	
-	public BlastRow(String q, Integer qstart, Integer qend, String schr, Integer sstart, Integer send, IndexedFastaSequenceFile reffasta, String str){
+	public BlastRow(String q, Integer qstart, Integer qend, String schr, Integer sstart, Integer send, ReferenceSequenceFile reffasta, String str){
 		this.q = q;
 		this.reffasta = reffasta;
 		this.qstart = qstart;
@@ -46,7 +46,7 @@ public class BlastRow {
 		this.string = str;
 	}
 	
-	public BlastRow(String[] vals, IndexedFastaSequenceFile reffasta) throws NumberFormatException, IndexOutOfBoundsException{
+	public BlastRow(String[] vals, ReferenceSequenceFile reffasta) throws NumberFormatException, IndexOutOfBoundsException{
 		this(vals[0], 
 				Integer.parseInt(vals[6]), // query start position
 				Integer.parseInt(vals[7]), // query end position
@@ -1,6 +1,6 @@
 package org.bcm.hgsc.cancer.pacbio;
 
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -17,7 +17,7 @@ public class BlastStruct {
 	
 	private Map<String, BlastGroup> mappings = new HashMap<String, BlastGroup>();
 	
-	public BlastStruct(File blastres, IndexedFastaSequenceFile reffasta) throws IOException{
+	public BlastStruct(File blastres, ReferenceSequenceFile reffasta) throws IOException{
 		this(blastres, false, false, reffasta);
 	}
 	
@@ -25,7 +25,7 @@ public class BlastStruct {
 		this(blastres, false, false, null);
 	}
 	
-	public BlastStruct(File blastres, boolean allowrandom, boolean allowun, IndexedFastaSequenceFile reffasta) throws IOException{
+	public BlastStruct(File blastres, boolean allowrandom, boolean allowun, ReferenceSequenceFile reffasta) throws IOException{
 		FileReader fr = new FileReader(blastres);
 		BufferedReader reader = new BufferedReader(fr);
 		String line;
@@ -1,6 +1,6 @@
 package org.bcm.hgsc.cancer.pacbio;
 
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.bcm.hgsc.utils.PackedReferenceSequenceFile;
+
 public class RefMaker {
 	
 	
@@ -31,7 +33,7 @@ public class RefMaker {
 		File assemblies = new File(outbase, "assemblies");
 		assemblies.mkdirs(); // make the directories if they don't exist
 		
-		IndexedFastaSequenceFile fasta = new IndexedFastaSequenceFile(reffasta);
+		ReferenceSequenceFile fasta = PackedReferenceSequenceFile.openShared(reffasta);
 		
 		System.out.println("Building read library");
 		BlastStruct reads = new BlastStruct(splitreads, fasta);
@@ -23,6 +23,7 @@ import org.bcm.hgsc.cancer.utils.LimitingStreamingWalkAcceptor;
 import org.bcm.hgsc.cancer.utils.StreamingWalkAcceptor;
 import org.bcm.hgsc.cancer.utils.WalkAcceptor;
 import org.bcm.hgsc.utils.BAMInterface;
+import org.bcm.hgsc.utils.ReadFilter;
 import org.bcm.hgsc.utils.Settings;
 
 public class RefWalker {
@@ -34,6 +35,7 @@ public class RefWalker {
 	boolean test = false;
 	
 	SAMRecord lastRecord = null;
+	private final ReadFilter filter = new ReadFilter().excludeDuplicates().excludeUnmapped().minMappingQuality(20);
 	/**
 	 * This utility walks the reference and generates a set of channels representing the level of variation
 	 * in a sliding window along the genome.  Window sizes and spacings can be set by the user.
@@ -274,9 +276,7 @@ public class RefWalker {
 		}
 		while(sri.hasNext() && lastpos < end){
 			final SAMRecord sr = sri.next();
-			if (sr.getDuplicateReadFlag()) continue;
-			if (sr.getReadUnmappedFlag()) continue;
-			if (sr.getMappingQuality() < 20) continue;
+			if (!filter.passes(sr)) continue;
 			lastpos = sr.getAlignmentEnd();
 			records.add(sr);
 		}
@@ -16,11 +16,10 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.lang3.StringUtils;
+import org.bcm.hgsc.utils.AlleleIndex;
 import org.bcm.hgsc.utils.AlleleResolver.AlleleSet;
 import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
-import org.bcm.hgsc.utils.ByteContainer;
-import org.bcm.hgsc.utils.Utils;
+import org.bcm.hgsc.utils.ByteView;
 
 
 /**
@@ -35,6 +34,11 @@ public class CARNACSampleGenotyper extends SampleGenotyper{
 	private static Logger log = Logger.getLogger(AlleleSet.class.getName());
 	public static int ENDBUFFER = 15;
 	public static int MAXMAPQ = 60;
+	// the per allele FORMAT fields, in the order they are held in the metrics table
+	private static final int AC = 0, AQC = 1, ASQ = 2, FC = 3, RC = 4, FQC = 5, RQC = 6, MR = 7, MMQ = 8, MRQ = 9,
+			R1C = 10, R2C = 11, R1QC = 12, R2QC = 13, FIELDS = 14;
+	private static final String[] FIELD_NAMES = { "AC", "AQC", "ASQ", "FC", "RC", "FQC", "RQC", "MR", "MMQ", "MRQ",
+			"R1C", "R2C", "R1QC", "R2QC" };
 	static {
 		headerlines.add(new VCFHeaderLine("Genotyper", "org.bcm.hgsc.cancer.CARNACSampleGenotyper"));
 		headerlines.add(new VCFFormatHeaderLine("GT", 1, VCFHeaderLineType.String, "Genotype"));
@@ -115,22 +119,10 @@ public class CARNACSampleGenotyper extends SampleGenotyper{
 		final List<Allele> alleles = new ArrayList<Allele>(alleleset.getAlleles());
 		Collections.sort(alleles);
 		
-		// we will be filling in data for each allele for the following values
+		// one int for each field of each allele, field by field so each field is a contiguous run of alleles
 		final int arraySize = alleles.size();
-		int[] forwardCoverage = new int[arraySize];
-		int[] reverseCoverage = new int[arraySize];
-		int[] forwardQ20Coverage = new int[arraySize];
-		int[] reverseQ20Coverage = new int[arraySize];
-		int[] midReadCoverage = new int[arraySize];
-		int[] alleleCoverage = new int[arraySize];
-		int[] alleleQ20Coverage = new int[arraySize];
-		int[] alleleSumQual = new int[arraySize];
-		int[] alleleMaxMapQual = new int[arraySize];
-		int[] midReadQ20Coverage = new int[arraySize];
-		int[] r1Coverage		=	new int[arraySize];
-		int[] r2Coverage		=	new int[arraySize];
-		int[] r1Q20Coverage		=	new int[arraySize];
-		int[] r2Q20Coverage		=	new int[arraySize];
+		final int[] metrics = new int[FIELDS * arraySize];
+		final AlleleIndex alleleIndex = new AlleleIndex(alleles);
 		int totalCoverage = 0;
 		int maxMapQualCount = 0;
 
@@ -144,83 +136,68 @@ public class CARNACSampleGenotyper extends SampleGenotyper{
 			if (cr.getMapQuality() >= MAXMAPQ){
 				maxMapQualCount++;
 			}
-			ByteContainer seqAllele = cr.getSeqAllele(sliceStart, sliceEnd);
-			ByteContainer seqQuality = cr.getSeqQuality(sliceStart, sliceEnd);
-			if (seqAllele.bytes.length - rightSliceOffset < leftSliceOffset){
+			final ByteView seqAllele = cr.getSeqAlleleView(sliceStart, sliceEnd);
+			if (seqAllele.length() - rightSliceOffset < leftSliceOffset){
 				// this can apparently rarely happen
-				log.log(Level.FINE, "Error processing allele for a read: Sequence: " + new String(seqAllele.bytes) + " leftSliceOffset: " + leftSliceOffset + " rightSliceOffset: " + rightSliceOffset);
+				log.log(Level.FINE, "Error processing allele for a read: Sequence: " + seqAllele + " leftSliceOffset: " + leftSliceOffset + " rightSliceOffset: " + rightSliceOffset);
 				continue;
 			}
-			for (int i = 0; i < arraySize; i++){
-				final Allele thisAllele = alleles.get(i);
-				if (thisAllele.basesMatch(Arrays.copyOfRange(seqAllele.bytes, leftSliceOffset, seqAllele.bytes.length - rightSliceOffset))){
-					alleleCoverage[i]++;
-					// TODO: for quality we would like to indicate the quality of the first non-reference base
-					// for now report the minimum quality of the allele
-					int qual = seqQuality.bytes[0];
-					for (int j = 0; j < seqQuality.bytes.length; j++){
-						qual = Math.min(qual, seqQuality.bytes[j]);
-					}
-					final int deltaStart = start - cr.readStart();
-					final int deltaEnd = cr.readEnd() - end;
-					final int minEndDist = Math.min(deltaStart, deltaEnd);
-					alleleSumQual[i] += qual;
-					if (qual > 20){
-						alleleQ20Coverage[i]++;
-					}
-					if (minEndDist > ENDBUFFER ){
-						midReadCoverage[i]++;
-						if (qual > 20){
-							midReadQ20Coverage[i]++;
-						}
-					}
-					if (cr.isForward()){
-						forwardCoverage[i]++;
-						if (qual > 20){
-							forwardQ20Coverage[i]++;
-						}
-					} else {
-						reverseCoverage[i]++;
-						if (qual > 20){
-							reverseQ20Coverage[i]++;
-						}
-					}
-					if (cr.getMapQuality() > alleleMaxMapQual[i]){
-						alleleMaxMapQual[i] = cr.getMapQuality();
-					}
-					if (cr.isRead1()){
-						r1Coverage[i]++;
-						if (qual > 20){
-							r1Q20Coverage[i]++;
-						}
-					} else {
-						r2Coverage[i]++;
-						if (qual > 20){
-							r2Q20Coverage[i]++;
-						}
-					}
-					break;
+			final int i = alleleIndex.indexOf(seqAllele, leftSliceOffset, seqAllele.length() - rightSliceOffset);
+			if (i < 0){
+				continue;
+			}
+			// TODO: for quality we would like to indicate the quality of the first non-reference base
+			// for now report the minimum quality of the allele
+			final int qual = cr.getSeqQualityView(sliceStart, sliceEnd).min();
+			final boolean q20 = qual > 20;
+			final int deltaStart = start - cr.readStart();
+			final int deltaEnd = cr.readEnd() - end;
+			final int minEndDist = Math.min(deltaStart, deltaEnd);
+			metrics[AC * arraySize + i]++;
+			metrics[ASQ * arraySize + i] += qual;
+			if (q20){
+				metrics[AQC * arraySize + i]++;
+			}
+			if (minEndDist > ENDBUFFER ){
+				metrics[MR * arraySize + i]++;
+				if (q20){
+					metrics[MRQ * arraySize + i]++;
+				}
+			}
+			if (cr.isForward()){
+				metrics[FC * arraySize + i]++;
+				if (q20){
+					metrics[FQC * arraySize + i]++;
+				}
+			} else {
+				metrics[RC * arraySize + i]++;
+				if (q20){
+					metrics[RQC * arraySize + i]++;
+				}
+			}
+			if (cr.getMapQuality() > metrics[MMQ * arraySize + i]){
+				metrics[MMQ * arraySize + i] = cr.getMapQuality();
+			}
+			if (cr.isRead1()){
+				metrics[R1C * arraySize + i]++;
+				if (q20){
+					metrics[R1QC * arraySize + i]++;
+				}
+			} else {
+				metrics[R2C * arraySize + i]++;
+				if (q20){
+					metrics[R2QC * arraySize + i]++;
 				}
 			}
 		}
 
 		GenotypeBuilder genotypeBuilder = new GenotypeBuilder(sampleName, alleles);
 		genotypeBuilder.DP(totalCoverage);
-		genotypeBuilder.attribute("AC",  StringUtils.join(Utils.intArrayToIntegerList(alleleCoverage), ","));
-		genotypeBuilder.attribute("AQC", StringUtils.join(Utils.intArrayToIntegerList(alleleQ20Coverage), ","));
-		genotypeBuilder.attribute("ASQ", StringUtils.join(Utils.intArrayToIntegerList(alleleSumQual), ","));
-		genotypeBuilder.attribute("FC",  StringUtils.join(Utils.intArrayToIntegerList(forwardCoverage), ","));
-		genotypeBuilder.attribute("RC",  StringUtils.join(Utils.intArrayToIntegerList(reverseCoverage), ","));
-		genotypeBuilder.attribute("FQC", StringUtils.join(Utils.intArrayToIntegerList(forwardQ20Coverage), ","));
-		genotypeBuilder.attribute("RQC", StringUtils.join(Utils.intArrayToIntegerList(reverseQ20Coverage), ","));
-		genotypeBuilder.attribute("MR",  StringUtils.join(Utils.intArrayToIntegerList(midReadCoverage), ","));
-		genotypeBuilder.attribute("MMQ", StringUtils.join(Utils.intArrayToIntegerList(alleleMaxMapQual), ","));
+		// the per allele fields are left as int arrays, the VCF writer joins them with commas as it writes the record
+		for (int f = 0; f < FIELDS; f++){
+			genotypeBuilder.attribute(FIELD_NAMES[f], Arrays.copyOfRange(metrics, f * arraySize, (f + 1) * arraySize));
+		}
 		genotypeBuilder.attribute("MMQC", maxMapQualCount);
-		genotypeBuilder.attribute("MRQ", StringUtils.join(Utils.intArrayToIntegerList(midReadQ20Coverage), ","));
-		genotypeBuilder.attribute("R1C", StringUtils.join(Utils.intArrayToIntegerList(r1Coverage), ","));
-		genotypeBuilder.attribute("R2C", StringUtils.join(Utils.intArrayToIntegerList(r2Coverage), ","));
-		genotypeBuilder.attribute("R1QC", StringUtils.join(Utils.intArrayToIntegerList(r1Q20Coverage), ","));
-		genotypeBuilder.attribute("R2QC", StringUtils.join(Utils.intArrayToIntegerList(r2Q20Coverage), ","));
 		
 		return genotypeBuilder.make();
 	}
@@ -0,0 +1,113 @@
+package org.bcm.hgsc.utils;
+
+import java.util.Arrays;
+
+/**
+ * Counts the distinct alleles seen at a site.  Alleles are keyed by {@link ByteView#hash64()} in an open addressing table of primitive
+ * arrays, a hit on the hash is confirmed by comparing the bytes.  Counts are ints, nothing is boxed, and the first view of each distinct
+ * allele is kept as its key so nothing is copied.  The table grows with the number of distinct alleles, not the depth, and is kept
+ * between sites by {@link #clear()}.
+ *
+ * A counter is not thread safe, keep one per thread.
+ * Ex;
+ * 	counter.clear();
+ * 	for (ConformedRead cr : reads){ counter.add(cr.getSeqAlleleView(start, end)); }
+ * 	for (int i = 0; i < counter.size(); i++){ ... counter.getAllele(i), counter.getCount(i) ... }
+ * @author covingto
+ *
+ */
+public class AlleleCounter {
+	// entries in the order they were first seen
+	private ByteView[] alleles;
+	private long[] hashes;
+	private int[] counts;
+	private int size = 0;
+	// open addressing table of entry index + 1, 0 is empty
+	private int[] slots;
+
+	public AlleleCounter(){
+		this(8);
+	}
+
+	/**
+	 * @param expected distinct alleles expected at a site
+	 */
+	public AlleleCounter(int expected){
+		int tableSize = 16;
+		while (tableSize < expected * 2){ tableSize <<= 1; }
+		this.slots = new int[tableSize];
+		this.alleles = new ByteView[tableSize / 2];
+		this.hashes = new long[tableSize / 2];
+		this.counts = new int[tableSize / 2];
+	}
+
+	/**
+	 * Counts one more of the allele.
+	 * @return the count of the allele so far
+	 */
+	public int add(ByteView allele){
+		final long hash = allele.hash64();
+		final int mask = this.slots.length - 1;
+		int slot = (int) hash & mask;
+		while (this.slots[slot] != 0){
+			final int e = this.slots[slot] - 1;
+			if (this.hashes[e] == hash && this.alleles[e].contentEquals(allele)){
+				return ++this.counts[e];
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (this.size == this.alleles.length){
+			this.grow();
+			return this.add(allele);
+		}
+		final int e = this.size++;
+		this.alleles[e] = allele;
+		this.hashes[e] = hash;
+		this.counts[e] = 1;
+		this.slots[slot] = e + 1;
+		return 1;
+	}
+
+	/**
+	 * @return the number of distinct alleles
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * @param i in [0, size), in the order the alleles were first seen
+	 */
+	public ByteView getAllele(int i){
+		return this.alleles[i];
+	}
+
+	public int getCount(int i){
+		return this.counts[i];
+	}
+
+	/**
+	 * Forgets every allele, the views are released so the reads they were taken from are not held.
+	 */
+	public void clear(){
+		Arrays.fill(this.alleles, 0, this.size, null);
+		Arrays.fill(this.slots, 0);
+		this.size = 0;
+	}
+
+	private void grow(){
+		final int entries = this.alleles.length * 2;
+		this.alleles = Arrays.copyOf(this.alleles, entries);
+		this.hashes = Arrays.copyOf(this.hashes, entries);
+		this.counts = Arrays.copyOf(this.counts, entries);
+		this.slots = new int[entries * 2];
+		final int mask = this.slots.length - 1;
+		for (int e = 0; e < this.size; e++){
+			int slot = (int) this.hashes[e] & mask;
+			while (this.slots[slot] != 0){
+				slot = (slot + 1) & mask;
+			}
+			this.slots[slot] = e + 1;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.variant.variantcontext.Allele;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds which of the alleles at a site a read carries with one hash lookup of the read's bases, instead of comparing the read with
+ * every allele in turn.  Alleles are keyed by the same 64 bit hash as {@link ByteView#hash64()} in an open addressing table, a hit is
+ * confirmed by comparing the bytes.  If two alleles have the same bases the first one in the list is found, as a scan of the list would.
+ * Symbolic alleles are never found.
+ *
+ * An index is read only once built.
+ * @author covingto
+ *
+ */
+public class AlleleIndex {
+	private final byte[][] bases;
+	private final long[] hashes;
+	// open addressing table of allele index + 1, 0 is empty
+	private final int[] slots;
+
+	public AlleleIndex(List<Allele> alleles){
+		final int n = alleles.size();
+		int tableSize = 8;
+		while (tableSize < n * 2){ tableSize <<= 1; }
+		this.bases = new byte[n][];
+		this.hashes = new long[n];
+		this.slots = new int[tableSize];
+		final int mask = tableSize - 1;
+		addAlleles: for (int i = 0; i < n; i++){
+			final Allele allele = alleles.get(i);
+			if (allele.isSymbolic()){ continue; }
+			final byte[] b = allele.getBases();
+			final long hash = new ByteView(b).hash64();
+			int slot = (int) hash & mask;
+			while (this.slots[slot] != 0){
+				final int e = this.slots[slot] - 1;
+				if (this.hashes[e] == hash && Arrays.equals(this.bases[e], b)){
+					continue addAlleles;
+				}
+				slot = (slot + 1) & mask;
+			}
+			this.bases[i] = b;
+			this.hashes[i] = hash;
+			this.slots[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * @param view
+	 * @param start first view index (inclusive)
+	 * @param end last view index (exclusive)
+	 * @return the index in the list of the allele matching the view bytes [start, end), -1 if none does
+	 */
+	public int indexOf(ByteView view, int start, int end){
+		final long hash = view.hash64(start, end);
+		final int mask = this.slots.length - 1;
+		int slot = (int) hash & mask;
+		while (this.slots[slot] != 0){
+			final int e = this.slots[slot] - 1;
+			if (this.hashes[e] == hash && view.regionMatches(start, end, this.bases[e])){
+				return e;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+}
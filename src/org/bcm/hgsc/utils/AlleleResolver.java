@@ -1,18 +1,15 @@
 package org.bcm.hgsc.utils;
 
 
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.variant.variantcontext.Allele;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +32,16 @@ public class AlleleResolver {
 		EXPANDING, MINIMALEXPANDING, NOEXPANDING
 	}
 	public static int minAlleleCount = 2;
+	private static final byte[] nonconformingBases = new byte[] { BAMUtils.dot, BAMUtils.n, BAMUtils.N, BAMUtils.zero, BAMUtils.unk };
+	// times a region was widened to take in an allele that reached past it
+	private static final AtomicLong expansions = new AtomicLong();
+	// one counter per worker thread, reused for every site
+	private static final ThreadLocal<AlleleCounter> counters = new ThreadLocal<AlleleCounter>(){
+		@Override
+		protected AlleleCounter initialValue(){
+			return new AlleleCounter();
+		}
+	};
 	public static class AlleleSet{
 		private static Logger log = Logger.getLogger(AlleleSet.class.getName());
 		private final Set<Allele> alleles;
@@ -164,12 +171,13 @@ public class AlleleResolver {
 				// This section uses the offsets calculated from above and generates the new allele sets that will be used, removing those that are the same as reference.
 				
 				Set<Allele> newAlleles = new HashSet<Allele>();
+				byte[] newreference = this.reference;
 				// Filter alleles from the set, we are just awash in alleles that are really of low quality.  Added a freature that an allele must be present at least a minimal number of times to be considered valid.
 				try {
 					// handle the reference allele
-					byte[] newreference = this.reference;
 					// if (leftoffset < this.reference.length - rightoffset){
 					newreference = Arrays.copyOfRange(this.reference, leftoffset, this.reference.length - rightoffset);
+					final int newLength = newreference.length;
 					//} else {
 						// this is very strange, what alleles were sequenced anyway?
 						// no matter, clear the offsets and just go with what we have
@@ -182,15 +190,16 @@ public class AlleleResolver {
 					newAlleles.add(newReferenceAllele);
 					log.finest("Reference bases are: " + newReferenceAllele.getBaseString());
 					for (Allele a : this.alleles){
-						final byte[] tmpAllele = Arrays.copyOfRange(a.getBases(), leftoffset, a.length() - rightoffset);
 						try {
-							final Allele newAllele = Allele.create(tmpAllele, false);
+							// the trimmed allele is compared in place, only alleles that are kept are copied
+							final ByteView trimmed = new ByteView(a.getBases(), leftoffset, a.length() - rightoffset);
 							// only add if the allele does not match the reference, others are handled in the set by .equals in the set
-							if (!newReferenceAllele.basesMatch(newAllele)){ 
+							if (!trimmed.matches(newreference)){ 
+								final Allele newAllele = Allele.create(trimmed.toBytes(), false);
 								log.finest("Plan to add allele with bases: " + newAllele.getBaseString());
 								// this is a non-reference allele, so we get to add it if it passes some checks
 								if (isSNP){
-									if (tmpAllele.length == newreference.length){
+									if (trimmed.length() == newLength){
 										newAlleles.add(newAllele);
 									} else {
 										log.warning("Wanted a SNP but allele length was not 1, this really shouldn't happen");
@@ -211,7 +220,7 @@ public class AlleleResolver {
 					throw e;
 				}
 				log.finer("leftoffset: " + leftoffset + " rightoffset: " + rightoffset);
-				return new AlleleSet(this.contig, this.start + leftoffset, this.end - rightoffset, newAlleles, Arrays.copyOfRange(this.reference, leftoffset, this.reference.length - rightoffset), this.start, this.end, buffer);
+				return new AlleleSet(this.contig, this.start + leftoffset, this.end - rightoffset, newAlleles, newreference, this.start, this.end, buffer);
 			} catch (Exception e){
 				log.log(Level.WARNING, e.toString(), e);
 				//e.printStackTrace();
@@ -277,6 +286,14 @@ public class AlleleResolver {
 		}
 	}
 
+	/**
+	 * @return the number of times {@link #resolveAlleles(List, String, int, int, ResolutionType, ReferenceSequenceFile, int)} has widened
+	 * its region to take in an allele, over all calls in this JVM
+	 */
+	public static long getExpansions(){
+		return expansions.get();
+	}
+
 	/**
 	 * Pass through the available reads and generate the start and end locations of the alleles.  
 	 * These may later be paired down and simplified in later steps (AlleleSet.simplify()).
@@ -304,90 +321,98 @@ public class AlleleResolver {
 	 * @return
 	 * @throws Exception 
 	 */
-	public static AlleleSet resolveAlleles(List<ConformedRead> reads, String contig, int start, int end, ResolutionType resolution, IndexedFastaSequenceFile fastaref, int buffer) throws Exception{
+	public static AlleleSet resolveAlleles(List<ConformedRead> reads, String contig, int start, int end, ResolutionType resolution, ReferenceSequenceFile fastaref, int buffer) throws Exception{
 		log.log(Level.FINEST, "Processing " + reads.size() + " reads");
-		List<Allele> alleles = new ArrayList<Allele>();
-		int cri = 0;
+		// settle the region first so each read is sliced and counted once, in the final region
+		final int[] region = resolveRegion(reads, start, end, resolution);
+		start = region[0];
+		end = region[1];
+		final AlleleCounter alleleCount = counters.get();
+		alleleCount.clear();
+		int acceptable = 0;
 		parseReads: for (final ConformedRead cr : reads){
-			cri += 1;
 			if (cr.readStart() > start || cr.readEnd() < end){ continue; }
-			//System.out.println("Debug: parsing conformed read");
-			//System.out.println(cr.toString());
-			final int[] crPos = cr.getAlleleRangeAtGenomicPos(start);
-			final int crStart = crPos[0];
-			final int crEnd = crPos[1];
-			//if (crEnd - crStart > 50){ continue; } // don't expand alleles by 50, these will be independend records
-
-			// this is the case where we need to expand the allele positions.  New positions will be included in the new AlleleSet returned.
-			switch (resolution){
-				case EXPANDING:
-					if (crStart < start && crEnd - crStart < 50){
-						return resolveAlleles(reads, contig, crStart, end, resolution, fastaref, buffer);
-					} else if (crEnd > end && crEnd - crStart < 50){
-						return resolveAlleles(reads, contig, start, crEnd, resolution, fastaref, buffer);
-					} else {
-						// There is no need to expand here
-						break;
-					}
-				case MINIMALEXPANDING:
-					if (crStart < start){
-						return resolveAlleles(reads, contig, crStart, end, resolution, fastaref, buffer);
-					} else {
-						// There is no need to expand here
-						break;
-					}
-				case NOEXPANDING:
-					break;
-//					if (crStart < start || crEnd > end){
-//						log.log(Level.FINEST, "Missed expansion of allele " + cr.toString() + " crStart: " + crStart + " start: " + start + " crEnd: " + crEnd + " end: " + end);
-//						//continue parseReads;
-//					} else {
-//						// There is no need to expand here
-//						//log.log(Level.WARNING, "Missed expansion of allele " + cr.toString() + " crStart: " + crStart + " start: " + start + " crEnd: " + crEnd + " end: " + end + " breaking!!!");
-//						break;
-//					}
-				default:
-					{
-						log.log( Level.WARNING, "Hit theoretically unreachable code");
-						continue parseReads;
-					}
-			}
 			// create a new Allele by slicing the conformed read to start and end
-			byte[] seqAllele = cr.getSeqAllele(start, end).bytes;
-			// log.log(Level.FINEST, "Checking allele " + new String(seqAllele));
-			if (seqAllele.length < 1){
-				log.log(Level.SEVERE, "Generated empty allele" + cr.toString() + " crStart: " + crStart + " start: " + start + " crEnd: " + crEnd + " end: " + end);
+			// the view shares the read's bases, Alleles are only created for the distinct sequences that survive counting
+			final ByteView seqAllele = cr.getSeqAlleleView(start, end);
+			// log.log(Level.FINEST, "Checking allele " + seqAllele);
+			if (seqAllele.length() < 1){
+				log.log(Level.SEVERE, "Generated empty allele" + cr.toString() + " start: " + start + " end: " + end);
 				continue parseReads;
 			}
-			for (int i = 0; i < seqAllele.length; i++){
-				if (seqAllele[i] == BAMUtils.dot || seqAllele[i] == BAMUtils.n || seqAllele[i] == BAMUtils.N|| seqAllele[i] == BAMUtils.zero || seqAllele[i] == BAMUtils.unk){
-					log.log(Level.FINEST, "Nonconforming base at position i = " + i + " in " + new String(seqAllele));
-					continue parseReads;
+			final int nonconforming = seqAllele.indexOfAny(nonconformingBases);
+			if (nonconforming >= 0){
+				if (log.isLoggable(Level.FINEST)){
+					log.log(Level.FINEST, "Nonconforming base at position i = " + nonconforming + " in " + seqAllele);
 				}
+				continue parseReads;
 			}
-			// log.log(Level.FINEST, "Processed " + cri);
-			alleles.add(Allele.create(seqAllele, false));
+			alleleCount.add(seqAllele);
+			acceptable++;
 		}
-		log.log(Level.FINE, "Generated allele set with " + alleles.size() + " acceptable reads");
+		log.log(Level.FINE, "Generated allele set with " + acceptable + " acceptable reads");
 		
 		// initial simplification of the allele set
-		// now that the variants are added to the condensedAlleles, we count the alleles.
 		Set<Allele> newAlleles = new HashSet<Allele>();
-		Map<Allele, Integer> alleleCount = Utils.countOccurrences(alleles);
 		// filter the alleles
-		final Allele referenceAllele = Allele.create(SynchronousIndexedFastaReader.getSubsequenceAt(fastaref, contig, start, end).getBases(), true);
+		final byte[] referenceBases = SynchronousIndexedFastaReader.getSubsequenceAt(fastaref, contig, start, end).getBases();
+		final Allele referenceAllele = Allele.create(referenceBases, true);
 		newAlleles.add(referenceAllele);
-		for (final Entry<Allele, Integer> entry : alleleCount.entrySet()){
-			if (referenceAllele.basesMatch(entry.getKey())){
+		for (int i = 0; i < alleleCount.size(); i++){
+			final ByteView allele = alleleCount.getAllele(i);
+			final int count = alleleCount.getCount(i);
+			if (allele.matches(referenceAllele)){
 				continue;
 			}
-			if (entry.getValue() >= AlleleResolver.minAlleleCount){
-				newAlleles.add(entry.getKey());
+			if (count >= AlleleResolver.minAlleleCount){
+				newAlleles.add(Allele.create(allele.toBytes(), false));
 			} 
-			else {
-				log.log(Level.FINEST, "Discarded allele " + entry.getKey().toString() + " because of insufficient coverage (" + entry.getValue() + "<" + AlleleResolver.minAlleleCount + "). Actual frequency was " + Collections.frequency(alleles, entry.getKey()));
+			else if (log.isLoggable(Level.FINEST)){
+				log.log(Level.FINEST, "Discarded allele " + allele.toString() + " because of insufficient coverage (" + count + "<" + AlleleResolver.minAlleleCount + ").");
+			}
+		}
+		// the counter holds views of the reads until it is next used
+		alleleCount.clear();
+		return new AlleleSet(contig, start, end, newAlleles, referenceBases, buffer);
+	}
+
+	/**
+	 * Widens [start, end] until no read covering it has an allele reaching past it (within the limits of the resolution type).
+	 * Reads are checked in order and the first one whose allele reaches past the region widens it, as the region given to
+	 * {@link #resolveAlleles(List, String, int, int, ResolutionType, ReferenceSequenceFile, int)} always has been.  Widening to the right
+	 * does not change the allele range of any read, so the reads already checked stay settled and the check carries on from the read that
+	 * widened the region.  The allele range of a read depends on the start so widening to the left checks every read again, but only the
+	 * ranges are found, the reads are not sliced or counted until the region is settled.
+	 * @return {start, end} of the settled region
+	 */
+	private static int[] resolveRegion(List<ConformedRead> reads, int start, int end, ResolutionType resolution){
+		if (resolution == ResolutionType.NOEXPANDING){
+			return new int[] { start, end };
+		}
+		int i = 0;
+		while (i < reads.size()){
+			final ConformedRead cr = reads.get(i);
+			if (cr.readStart() > start || cr.readEnd() < end){
+				i++;
+				continue;
+			}
+			final int[] crPos = cr.getAlleleRangeAtGenomicPos(start);
+			final int crStart = crPos[0];
+			final int crEnd = crPos[1];
+			// EXPANDING does not take in alleles of 50 or more bases, these will be independent records
+			final boolean expandable = resolution == ResolutionType.MINIMALEXPANDING || crEnd - crStart < 50;
+			if (crStart < start && expandable){
+				expansions.incrementAndGet();
+				start = crStart;
+				i = 0;
+			} else if (resolution == ResolutionType.EXPANDING && crEnd > end && expandable){
+				expansions.incrementAndGet();
+				end = crEnd;
+				i++;
+			} else {
+				i++;
 			}
 		}
-		return new AlleleSet(contig, start, end, newAlleles, SynchronousIndexedFastaReader.getSubsequenceAt(fastaref, contig, start, end).getBases(), buffer);
+		return new int[] { start, end };
 	}
 }
@@ -1,9 +1,17 @@
 package org.bcm.hgsc.utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Set;
 
@@ -17,6 +25,28 @@ public class BAMInterface {
 	private final String sampleName;
 	private final String sampleType;
 	private static final Logger log = Logger.getLogger(BAMInterface.class.getName());
+	// pooled readers, at most one for each thread that has leased a reader from this interface
+	private final ThreadLocal<PooledReader> pooledReader = new ThreadLocal<PooledReader>();
+	private final Queue<PooledReader> pooledReaders = new ConcurrentLinkedQueue<PooledReader>();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	// bumped by closePooledReaders so that threads do not reuse readers that were closed under them
+	private final AtomicInteger generation = new AtomicInteger();
+	// idle readers that any thread may lease, guards sharedOpen and sharedLimit
+	private final Deque<SamReader> sharedReaders = new ArrayDeque<SamReader>();
+	private int sharedOpen = 0;
+	private int sharedLimit = Integer.MAX_VALUE;
+	
+	private static class PooledReader {
+		final SamReader reader;
+		final int generation;
+		boolean leased = false;
+		PooledReader(SamReader reader, int generation){
+			this.reader = reader;
+			this.generation = generation;
+		}
+	}
 	
 	public BAMInterface(File samfilereader, String sampleName, String sampleType) throws Exception{
 		this.samfilereader = samfilereader;
@@ -41,6 +71,174 @@ public class BAMInterface {
 		return getSamfilereader(EnumSet.of(Option.DONT_MEMORY_MAP_INDEX), EnumSet.of(Option.CACHE_FILE_BASED_INDEXES));
 	}
 	
+	/**
+	 * Leases a {@link SamReader} from the pool of the calling thread, the reader is opened the first time and reused after that.
+	 * Pooled readers memory map and cache their index, so the index of a BAM is only read once per thread.
+	 * Every lease must be ended with {@link #releaseSamReader(SamReader)} once all iterators on the reader are closed, or
+	 * with {@link #discardSamReader(SamReader)} if the reader may be in a bad state (for instance an exception while iterating).
+	 * Leasing again before releasing returns a new reader that is closed on release.
+	 * @return
+	 */
+	public SamReader leaseSamReader() {
+		PooledReader pr = this.pooledReader.get();
+		if (pr == null || pr.generation != this.generation.get()){
+			pr = new PooledReader(this.getSamfilereader(EnumSet.of(Option.CACHE_FILE_BASED_INDEXES), EnumSet.of(Option.DONT_MEMORY_MAP_INDEX)),
+					this.generation.get());
+			this.opened.incrementAndGet();
+			this.pooledReader.set(pr);
+			this.pooledReaders.add(pr);
+		} else if (pr.leased){
+			this.opened.incrementAndGet();
+			return this.getSamfilereader();
+		} else {
+			this.reused.incrementAndGet();
+		}
+		pr.leased = true;
+		return pr.reader;
+	}
+	
+	/**
+	 * Returns a reader from {@link #leaseSamReader()} to the pool, all iterators on the reader must be closed.
+	 * @param reader
+	 */
+	public void releaseSamReader(SamReader reader) {
+		final PooledReader pr = this.pooledReader.get();
+		if (pr != null && pr.reader == reader){
+			pr.leased = false;
+		} else {
+			closeReader(reader);
+		}
+	}
+	
+	/**
+	 * Closes a reader from {@link #leaseSamReader()}, the next lease on this thread opens a new reader.
+	 * @param reader
+	 */
+	public void discardSamReader(SamReader reader) {
+		final PooledReader pr = this.pooledReader.get();
+		if (pr != null && pr.reader == reader){
+			this.pooledReader.remove();
+			this.pooledReaders.remove(pr);
+			this.discarded.incrementAndGet();
+		}
+		closeReader(reader);
+	}
+	
+	/**
+	 * @param limit most readers open at once in the shared pool, see {@link #leaseSharedSamReader()}
+	 */
+	public void setSharedReaderLimit(int limit) {
+		if (limit < 1){
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		synchronized (this.sharedReaders){
+			this.sharedLimit = limit;
+			this.sharedReaders.notifyAll();
+		}
+	}
+	
+	/**
+	 * Leases a {@link SamReader} from a pool shared by all threads, for tasks that run on threads that come and go, where a reader
+	 * for each thread would be left open by every thread that stops.  An idle reader is reused, otherwise one is opened, and if the
+	 * limit is open the call waits for a release.  As with {@link #leaseSamReader()} the readers cache their index, and every lease
+	 * must be ended with {@link #releaseSharedSamReader(SamReader)} or {@link #discardSharedSamReader(SamReader)}, from any thread.
+	 * @throws InterruptedException
+	 */
+	public SamReader leaseSharedSamReader() throws InterruptedException {
+		synchronized (this.sharedReaders){
+			while (this.sharedReaders.isEmpty() && this.sharedOpen >= this.sharedLimit){
+				this.sharedReaders.wait();
+			}
+			final SamReader idle = this.sharedReaders.pollFirst();
+			if (idle != null){
+				this.reused.incrementAndGet();
+				return idle;
+			}
+			this.sharedOpen++;
+		}
+		boolean opened = false;
+		try {
+			final SamReader reader = this.getSamfilereader(EnumSet.of(Option.CACHE_FILE_BASED_INDEXES), EnumSet.of(Option.DONT_MEMORY_MAP_INDEX));
+			this.opened.incrementAndGet();
+			opened = true;
+			return reader;
+		} finally {
+			if (!opened){
+				this.endSharedLease();
+			}
+		}
+	}
+	
+	/**
+	 * Returns a reader from {@link #leaseSharedSamReader()} to the shared pool, all iterators on the reader must be closed.
+	 */
+	public void releaseSharedSamReader(SamReader reader) {
+		synchronized (this.sharedReaders){
+			this.sharedReaders.addFirst(reader);
+			this.sharedReaders.notifyAll();
+		}
+	}
+	
+	/**
+	 * Closes a reader from {@link #leaseSharedSamReader()} that may be in a bad state, making room for a new one.
+	 */
+	public void discardSharedSamReader(SamReader reader) {
+		this.discarded.incrementAndGet();
+		closeReader(reader);
+		this.endSharedLease();
+	}
+	
+	private void endSharedLease() {
+		synchronized (this.sharedReaders){
+			this.sharedOpen--;
+			this.sharedReaders.notifyAll();
+		}
+	}
+	
+	/**
+	 * Closes all pooled readers, readers that are leased at the time are closed as well.  Shared readers that are leased are not.
+	 */
+	public void closePooledReaders() {
+		this.generation.incrementAndGet();
+		PooledReader pr;
+		while ((pr = this.pooledReaders.poll()) != null){
+			closeReader(pr.reader);
+		}
+		synchronized (this.sharedReaders){
+			SamReader idle;
+			while ((idle = this.sharedReaders.pollFirst()) != null){
+				closeReader(idle);
+				this.sharedOpen--;
+			}
+			this.sharedReaders.notifyAll();
+		}
+		log.log(Level.FINE, this.getPoolSummary());
+	}
+	
+	private void closeReader(SamReader reader){
+		try {
+			reader.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "SAM file did not close as expected", e);
+		}
+	}
+	
+	public long getOpenCount() {
+		return this.opened.get();
+	}
+	
+	public long getReuseCount() {
+		return this.reused.get();
+	}
+	
+	public long getDiscardCount() {
+		return this.discarded.get();
+	}
+	
+	public String getPoolSummary() {
+		return this.samfilereader.getName() + " readers opened: " + this.getOpenCount() + " reused: " + this.getReuseCount() + " discarded: " + this.getDiscardCount();
+	}
+	
 	public SamReader getSamfilereader(final Set<Option> enabledOptions, final Set<Option> disabledOptions){
 		SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
 		for (Option o : enabledOptions){
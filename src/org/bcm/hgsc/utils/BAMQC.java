@@ -2,17 +2,15 @@ package org.bcm.hgsc.utils;
 
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -42,9 +40,12 @@ public class BAMQC {
 		Options options = new Options();
 		Parser parser = new BasicParser();
 		options.addOption("bam", true, "BAM file");
-		options.addOption("ref", true, "Reference fasta files, requires indexing");
+		options.addOption("ref", true, "Reference fasta files, requires indexing or a packed reference");
 		options.addOption("out", true, "Output file (json)");
 		options.addOption("cores", true, "Number of cores to run [12]");
+		options.addOption("readAhead", true, "Number of records each worker decodes ahead on a background thread, 0 to decode on the worker [0]");
+		options.addOption("elasticIO", false, "Decode on I/O threads started as needed and conform on one worker per core, -cores is not used and " + 
+				"-readAhead defaults to " + ReadAheadIterator.DEFAULTDEPTH);
 		HelpFormatter formatter = new HelpFormatter();
 		CommandLine line = parser.parse(options, args);
 		
@@ -56,6 +57,12 @@ public class BAMQC {
 		File output = new File(line.getOptionValue("out"));
 		File ref = new File(line.getOptionValue("ref"));
 		Integer cores = Integer.valueOf(line.getOptionValue("cores", "12"));
+		Settings.readAhead = Integer.valueOf(line.getOptionValue("readAhead", "0"));
+		if (line.hasOption("elasticIO")){
+			// the read ahead producers run on the I/O threads, so the workers only block when decoding falls behind
+			cores = IOThreads.cores();
+			Settings.readAhead = Integer.valueOf(line.getOptionValue("readAhead", String.valueOf(ReadAheadIterator.DEFAULTDEPTH)));
+		}
 		BAMQC bqc = new BAMQC();
 		bqc.run(bam, ref, output, cores);
 	}
@@ -63,7 +70,7 @@ public class BAMQC {
 	public void run(File bam, File ref, File output, Integer cores) throws Exception{
 		final int buffer = 1000000;
 		// activate file readers
-		final IndexedFastaSequenceFile fastaref = new IndexedFastaSequenceFile(ref);
+		final ReferenceSequenceFile fastaref = PackedReferenceSequenceFile.openShared(ref);
 		final SAMSequenceDictionary seq_dict = fastaref.getSequenceDictionary();
 		final BAMInterface bam_interface = new BAMInterface(bam, bam.getName(), "test");
 		
@@ -86,6 +93,12 @@ public class BAMQC {
 			Thread.sleep(10000);
 		}
 		
+		fastaref.close();
+		bam_interface.closePooledReaders();
+		log.info(bam_interface.getPoolSummary());
+		if (Settings.readAhead > 0){
+			log.info(ReadAheadIterator.getReadAheadSummary());
+		}
 		log.info("Writing maps");
 		this.printMaps(output);
 	}
@@ -110,20 +123,54 @@ public class BAMQC {
 		}
 	}
 	
+	/**
+	 * Key for the worker variant maps, holds views onto the conformed read so that no String is built for each variant seen.
+	 */
+	private static final class VarKey {
+		final ByteView ref;
+		final ByteView read;
+		VarKey(ByteView ref, ByteView read){
+			this.ref = ref;
+			this.read = read;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * this.ref.hashCode() + this.read.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof VarKey)) {
+				return false;
+			}
+			VarKey other = (VarKey) obj;
+			return this.ref.equals(other.ref) && this.read.equals(other.read);
+		}
+		
+		@Override
+		public String toString() {
+			return this.ref.toString() + ">" + this.read.toString();
+		}
+	}
+	
 	public class QCWorker implements Runnable {
 		final BAMInterface bam_interface;
 		final String sequenceName;
 		final int start;
 		final int end;
-		final IndexedFastaSequenceFile fastaref;
+		final ReferenceSequenceFile fastaref;
 		public boolean success = false;
 		private final BAMQC bqc;
 		private final Map<String, Integer> cigarMap1 = new HashMap<String, Integer>();
 		private final Map<String, Integer> cigarMap2 = new HashMap<String, Integer>();
-		private final Map<String, Integer> varMap1 = new HashMap<String, Integer>();
-		private final Map<String, Integer> varMap2 = new HashMap<String, Integer>();
+		private final Map<VarKey, Integer> varMap1 = new HashMap<VarKey, Integer>();
+		private final Map<VarKey, Integer> varMap2 = new HashMap<VarKey, Integer>();
 		public QCWorker(BAMInterface bam_interface, String sequenceName,
-				int start, int end, BAMQC bqc, IndexedFastaSequenceFile fastaref) {
+				int start, int end, BAMQC bqc, ReferenceSequenceFile fastaref) {
 			this.bam_interface = bam_interface;
 			this.sequenceName = sequenceName;
 			this.start = start;
@@ -135,13 +182,16 @@ public class BAMQC {
 		@Override
 		public void run() {
 			//log.info("Runnung");
-			SamReader sam_reader = bam_interface.getSamfilereader();
-			SAMRecordIterator sri = sam_reader.query(this.sequenceName, this.start, this.end, false);
+			// only reads wholly in this set, the end is checked last as it needs the CIGAR
+			final ReadFilter filter = new ReadFilter().excludeDuplicates().excludeUnmapped().excludeSecondary().excludeVendorFailed()
+					.alignmentStartWithin(this.start, Integer.MAX_VALUE).alignmentEndWithin(Integer.MIN_VALUE, this.end - 1);
+			SamReader sam_reader = bam_interface.leaseSamReader();
+			ReadAheadIterator<SAMRecord> sri = new ReadAheadIterator<SAMRecord>(
+					sam_reader.query(this.sequenceName, this.start, this.end, false), Settings.readAhead);
 			try{
 				while (sri.hasNext()){
 					final SAMRecord sr = sri.next();
-					if (sr.getAlignmentStart() < this.start || sr.getAlignmentEnd() >= this.end){ continue; } // not really in this set
-					if (!passingRead(sr)){ continue; }
+					if (!filter.passes(sr)){ continue; }
 					// handle the CIGAR
 					final String cigar = sr.getCigarString();
 					addCigar(sr.getFirstOfPairFlag() ? cigarMap1 : cigarMap2, cigar);
@@ -165,13 +215,17 @@ public class BAMQC {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			} finally {
-				sri.close();
 				try {
-					sam_reader.close();
+					sri.close();
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
+					this.success = false;
 					e.printStackTrace();
 				}
+				if (this.success){
+					bam_interface.releaseSamReader(sam_reader);
+				} else {
+					bam_interface.discardSamReader(sam_reader);
+				}
 			}
 			
 		}
@@ -179,8 +233,16 @@ public class BAMQC {
 		private void updateBQCHashes() {
 			updateHash(bqc.cigarMap1, this.cigarMap1);
 			updateHash(bqc.cigarMap2, this.cigarMap2);
-			updateHash(bqc.varMap1, this.varMap1);
-			updateHash(bqc.varMap2, this.varMap2);
+			updateHash(bqc.varMap1, this.toStringKeys(this.varMap1));
+			updateHash(bqc.varMap2, this.toStringKeys(this.varMap2));
+		}
+
+		private Map<String, Integer> toStringKeys(Map<VarKey, Integer> vmap) {
+			final Map<String, Integer> result = new HashMap<String, Integer>();
+			for (Entry<VarKey, Integer> entry : vmap.entrySet()){
+				result.put(entry.getKey().toString(), entry.getValue());
+			}
+			return result;
 		}
 
 		private void updateHash(Map<String, Integer> pmap,
@@ -197,20 +259,20 @@ public class BAMQC {
 			
 		}
 
-		private void addVars(Map<String, Integer> map, ConformedRead cr) {
+		private void addVars(Map<VarKey, Integer> map, ConformedRead cr) {
 			// scan the conformed read for variants
 			int lmp = 0;
 			boolean extending = false;
 			for (int i = 0; i < cr.read.length; i++){
 				final byte read = cr.read[i];
 				final byte ref = cr.ref[i];
-				final CigarOperator co = cr.cigar[i];
+				final CigarOperator co = cr.getCigarAtIndex(i);
 				if (extending){
 					// have not yet opened a gap
 					if (co.equals(CigarOperator.SKIPPED_REGION)){ break; }
 					else if (read == ref){
 						// break extension
-						addVar(map, Arrays.copyOfRange(cr.read, lmp, i + 1), Arrays.copyOfRange(cr.ref, lmp, i + 1));
+						addVar(map, new ByteView(cr.read, lmp, i + 1), new ByteView(cr.ref, lmp, i + 1));
 						lmp = i;
 						extending = false;
 					}
@@ -225,27 +287,21 @@ public class BAMQC {
 			}
 		}
 
-		private void addVar(Map<String, Integer> map, byte[] read, byte[] ref) {
+		private void addVar(Map<VarKey, Integer> map, ByteView read, ByteView ref) {
 			
-			final String allele = new String(ref) + ">" + new String(read);
+			final VarKey allele = new VarKey(ref, read);
 			synchronized(map){
-				if (!map.containsKey(allele)){
-					map.put(allele, 1);
+				final Integer count = map.get(allele);
+				if (count == null){
+					// the map outlives the read, so only store copies
+					map.put(new VarKey(ref.compact(), read.compact()), 1);
 				} else {
-					map.put(allele, map.get(allele) + 1);
+					map.put(allele, count + 1);
 				}
 			}
 			
 		}
 
-		private boolean passingRead(SAMRecord sr) {
-			if (sr.getDuplicateReadFlag()){ return false; }
-			else if (sr.getReadUnmappedFlag()){ return false; }
-			else if (sr.getNotPrimaryAlignmentFlag()){ return false; }
-			else if (sr.getReadFailsVendorQualityCheckFlag()){ return false; }
-			return true;
-		}
-
 		private void addCigar(Map<String, Integer> cigarMap, String cigar){
 			synchronized(cigarMap){
 				if (!cigarMap.containsKey(cigar)){
@@ -3,13 +3,14 @@ package org.bcm.hgsc.utils;
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.util.SequenceUtil;
 
 import java.io.Closeable;
@@ -27,6 +28,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -40,25 +42,48 @@ public class BAMUtils {
 		SNV, INS, DEL, ANY
 	}
 	private static final Logger log = Logger.getLogger(BAMUtils.class.getName());
+	/**
+	 * Flank used when only a few positions of each read are needed, see {@link #conformToReference(SAMRecord, ReferenceSequenceFile, int, int, int)}.
+	 */
+	public static int DEFAULTCONFORMFLANK = 16;
 
-	public class Pileup{
-		private Vector<Byte> seq = new Vector<Byte>();
-		private Vector<Byte> qual = new Vector<Byte>();
-		private Vector<Integer> orientation = new Vector<Integer>();
+	/**
+	 * The reads covering one genomic position, see {@link PileupIterator}.  Bases, qualities and orientations are kept in primitive arrays,
+	 * use {@link #depth()} and the indexed getters to read them without boxing.
+	 */
+	public static class Pileup{
+		private byte[] seq;
+		private byte[] qual;
+		private int[] orientation;
+		private int depth = 0;
 		private final byte ref;
 		private final String chr;
 		private final long pos;
 		
 		protected Pileup(String chr, long pos, byte ref){
+			this(chr, pos, ref, 16);
+		}
+		
+		Pileup(String chr, long pos, byte ref, int capacity){
 			this.chr = chr;
 			this.pos = pos;
 			this.ref = ref;
+			capacity = Math.max(capacity, 1);
+			this.seq = new byte[capacity];
+			this.qual = new byte[capacity];
+			this.orientation = new int[capacity];
 		}
 		
 		protected void addReadData(byte rs, byte rq, int ro){
-			seq.add(rs);
-			qual.add(rq);
-			orientation.add(ro);
+			if (depth == seq.length){
+				seq = Arrays.copyOf(seq, depth * 2);
+				qual = Arrays.copyOf(qual, depth * 2);
+				orientation = Arrays.copyOf(orientation, depth * 2);
+			}
+			seq[depth] = rs;
+			qual[depth] = rq;
+			orientation[depth] = ro;
+			depth++;
 		}
 		
 		public byte getRef(){
@@ -73,16 +98,32 @@ public class BAMUtils {
 			return this.pos;
 		}
 		
+		public int depth(){
+			return this.depth;
+		}
+		
+		public byte getSeqAt(int i){
+			return this.seq[i];
+		}
+		
+		public byte getQualAt(int i){
+			return this.qual[i];
+		}
+		
+		public int getOrientationAt(int i){
+			return this.orientation[i];
+		}
+		
 		public Byte[] getSeq(){
-			return seq.toArray(new Byte[seq.size()]);
+			return ArrayUtils.toObject(Arrays.copyOf(seq, depth));
 		}
 		
 		public Byte[] getQual(){
-			return qual.toArray(new Byte[qual.size()]);
+			return ArrayUtils.toObject(Arrays.copyOf(qual, depth));
 		}
 		
 		public Integer[] getOrientation(){
-			return orientation.toArray(new Integer[orientation.size()]);
+			return ArrayUtils.toObject(Arrays.copyOf(orientation, depth));
 		}
 	}
 
@@ -99,17 +140,30 @@ public class BAMUtils {
 	 * 	qual:	[	>	>	>	>	<	<	<		<	>	>	>	>	]
 	 * 	pos:	[	1	2	3		4	5	6	7	8	9	10	11	12	]
 	 * 	cigar:	[	M	M	M	I	M	M	M	D	M	M	M	M	M	]
+	 *
+	 * Only the ref, read and qual rows are stored per base.  The cigar row is stored as BAM operator codes (one byte per base, see
+	 * {@link CigarOperator#enumToBinary(CigarOperator)}) and the pos row is never materialized.  Instead positions are kept as run-length blocks,
+	 * one per CIGAR element, holding the array index and genomic position at which the block starts.  Inside a block the position advances by one
+	 * per base unless the block is an insertion, in which case every base shares the position of the next reference base.  Because positions never
+	 * decrease along the read, a genomic position is turned into an array index by a binary search over the blocks and range lookups are a
+	 * search plus a copy.
 	 * @author covingto
 	 *
 	 */
 	public static class ConformedRead{
+		private static final byte OP_M = (byte) CigarOperator.enumToBinary(CigarOperator.MATCH_OR_MISMATCH);
+		private static final byte OP_I = (byte) CigarOperator.enumToBinary(CigarOperator.INSERTION);
+		private static final byte OP_D = (byte) CigarOperator.enumToBinary(CigarOperator.DELETION);
+		private static final byte OP_S = (byte) CigarOperator.enumToBinary(CigarOperator.SOFT_CLIP);
 		private final SAMRecord rec;
 		private final boolean isForward;
 		final byte[] ref;
 		final byte[] read;
 		final byte[] qual;
-		final int[] pos;
-		final CigarOperator[] cigar;
+		final byte[] ops;				// BAM operator code for each base
+		private final int[] blockIndex;	// array index of the first base in each position block
+		private final int[] blockPos;	// genomic position of the first base in each position block
+		private final int blocks;
 		private final int mappedpos;
 		private final String chr;
 		private final int mapEnd;
@@ -130,12 +184,154 @@ public class BAMUtils {
 			this.ref = ref;
 			this.read = read;
 			this.qual = qual;
-			this.pos = pos;
-			this.cigar = cigar;
 			this.chr = chr;
 			this.mappedpos = mappedpos;
 			this.mapEnd = mapend;
 			this.mapQual = mapQual;
+			// pack the operators and split the positions into blocks, a new block starts whenever the operator changes or the
+			// position is not the one we would have predicted from the current block.
+			this.ops = new byte[len];
+			int[] bIndex = new int[len];
+			int[] bPos = new int[len];
+			int nblocks = 0;
+			for (int i = 0; i < len; i++){
+				this.ops[i] = (byte) CigarOperator.enumToBinary(cigar[i]);
+				if (nblocks == 0 || this.ops[i] != this.ops[i - 1] || pos[i] != blockPosition(this.ops, bIndex[nblocks - 1], bPos[nblocks - 1], i)){
+					bIndex[nblocks] = i;
+					bPos[nblocks] = pos[i];
+					nblocks++;
+				}
+			}
+			this.blockIndex = Arrays.copyOf(bIndex, nblocks);
+			this.blockPos = Arrays.copyOf(bPos, nblocks);
+			this.blocks = nblocks;
+		}
+
+		/**
+		 * Packed constructor, the block arrays may be longer than blocks (the remainder is ignored).
+		 */
+		ConformedRead(SAMRecord rec, String chr, int mappedpos, int mapend, byte[] ref, byte[] read, byte[] qual, byte[] ops, int[] blockIndex, int[] blockPos, int blocks, int mapQual, boolean forward) throws Exception{
+			int len = ops.length;
+			if (ref.length != len || read.length != len || qual.length != len){
+				throw new Exception("Arrays are not the same length");
+			}
+			if (blockIndex.length < blocks || blockPos.length < blocks || (len > 0 && (blocks == 0 || blockIndex[0] != 0))){
+				throw new Exception("Position blocks do not cover the read");
+			}
+			this.rec = rec;
+			this.isForward = forward;
+			this.ref = ref;
+			this.read = read;
+			this.qual = qual;
+			this.ops = ops;
+			this.blockIndex = blockIndex;
+			this.blockPos = blockPos;
+			this.blocks = blocks;
+			this.chr = chr;
+			this.mappedpos = mappedpos;
+			this.mapEnd = mapend;
+			this.mapQual = mapQual;
+		}
+
+		private static int blockPosition(byte[] ops, int bIndex, int bPos, int i){
+			return ops[bIndex] == OP_I ? bPos : bPos + (i - bIndex);
+		}
+
+		/**
+		 * @return the block containing array index i
+		 */
+		private int blockOf(int i){
+			int lo = 0;
+			int hi = this.blocks - 1;
+			while (lo < hi){
+				final int mid = (lo + hi + 1) >>> 1;
+				if (this.blockIndex[mid] <= i){
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return lo;
+		}
+
+		private int blockEnd(int b){
+			return b + 1 < this.blocks ? this.blockIndex[b + 1] : this.ops.length;
+		}
+
+		private int blockLastPos(int b){
+			return blockPosition(this.ops, this.blockIndex[b], this.blockPos[b], blockEnd(b) - 1);
+		}
+
+		/**
+		 * Lower bound search, the first array index with a genomic position >= gpos or {@link #length()} if there is none.
+		 */
+		private int lowerIndex(int gpos){
+			int lo = 0;
+			int hi = this.blocks;
+			while (lo < hi){
+				final int mid = (lo + hi) >>> 1;
+				if (blockLastPos(mid) < gpos){
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			if (lo == this.blocks){ return this.ops.length; }
+			final int bIndex = this.blockIndex[lo];
+			if (this.ops[bIndex] == OP_I || gpos <= this.blockPos[lo]){ return bIndex; }
+			return bIndex + (gpos - this.blockPos[lo]);
+		}
+
+		/**
+		 * Returns the first array index at the indicated genomic position or -1 if the read does not cover the position.
+		 * Note that insertions carry the position of the following reference base, so this may be the index of an inserted base.
+		 * @param gpos
+		 * @return
+		 */
+		public int indexOfGenomicPos(int gpos){
+			final int i = lowerIndex(gpos);
+			if (i < this.ops.length && getPosAtIndex(i) == gpos){
+				return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * @param i array index
+		 * @return the genomic position of the base at array index i
+		 */
+		public int getPosAtIndex(int i){
+			if (i < 0 || i >= this.ops.length){
+				throw new ArrayIndexOutOfBoundsException(i);
+			}
+			final int b = blockOf(i);
+			return blockPosition(this.ops, this.blockIndex[b], this.blockPos[b], i);
+		}
+
+		public CigarOperator getCigarAtIndex(int i){
+			return CigarOperator.binaryToEnum(this.ops[i]);
+		}
+
+		/**
+		 * @return the number of conformed bases (the length of the ref, read and qual arrays)
+		 */
+		public int length(){
+			return this.ops.length;
+		}
+
+		/**
+		 * Expands the position blocks into one position per base.  This allocates, use {@link #getPosAtIndex(int)} or {@link #indexOfGenomicPos(int)} in hot code.
+		 * @return
+		 */
+		public int[] getPositions(){
+			final int[] positions = new int[this.ops.length];
+			for (int b = 0; b < this.blocks; b++){
+				final int bIndex = this.blockIndex[b];
+				for (int i = bIndex; i < blockEnd(b); i++){
+					positions[i] = blockPosition(this.ops, bIndex, this.blockPos[b], i);
+				}
+			}
+			return positions;
 		}
 		
 		
@@ -149,34 +345,30 @@ public class BAMUtils {
 		public ConformedRead sliceToPos(int start, int end) throws Exception{
 			// find the index for the cut
 			if (start < end){ return null; }
-			int sstart = 0;
-			int send = this.pos.length;
-			for (int i = 0; i < this.pos.length; i++){
-				if (this.pos[i] == start){
-					sstart = i;
-					break;
-				}
-			}
-			for (int i = sstart; i < this.pos.length; i++){
-				if (this.pos[i] == end){
-					send = i;
-				} else if (this.pos[i] > end){
-					break;
-				}
+			int sstart = this.indexOfGenomicPos(start);
+			if (sstart < 0){ sstart = 0; }
+			int send = this.lowerIndex(end + 1) - 1;
+			if (send < sstart || send >= this.ops.length || this.getPosAtIndex(send) != end){
+				send = this.ops.length;
 			}
-			//return new ConformedRead(this.rec, this.chr, this.pos[sstart], this.pos[send], Arrays.copyOfRange(ref, sstart, send), 
-			//		Arrays.copyOfRange(read, sstart, send), Arrays.copyOfRange(qual, sstart, send), Arrays.copyOfRange(pos, sstart, send),
-			//		Arrays.copyOfRange(cigar, sstart, send), this.mapQual);
 			return sliceToIndex(sstart, send);
-					//new ConformedRead(this.chr, this.pos[sstart], this.pos[send], Arrays.copyOfRange(ref, sstart, send), 
-					//Arrays.copyOfRange(read, sstart, send), Arrays.copyOfRange(qual, sstart, send), Arrays.copyOfRange(pos, sstart, send),
-					//Arrays.copyOfRange(cigar, sstart, send), this.mapQual, this.isForward());
 		}
 		
 		public ConformedRead sliceToIndex(int start, int end) throws Exception{
-			return new ConformedRead(this.rec, this.chr, this.pos[start], this.pos[end], Arrays.copyOfRange(ref, start, end), 
-					Arrays.copyOfRange(read, start, end), Arrays.copyOfRange(qual, start, end), Arrays.copyOfRange(pos, start, end),
-					Arrays.copyOfRange(cigar, start, end), this.mapQual, this.isForward());
+			final int mapStart = this.getPosAtIndex(start);
+			final int mapStop = this.getPosAtIndex(end);
+			final int first = blockOf(start);
+			final int last = blockOf(end - 1);
+			final int[] bIndex = new int[last - first + 1];
+			final int[] bPos = new int[last - first + 1];
+			for (int b = first; b <= last; b++){
+				final int from = Math.max(this.blockIndex[b], start);
+				bIndex[b - first] = from - start;
+				bPos[b - first] = blockPosition(this.ops, this.blockIndex[b], this.blockPos[b], from);
+			}
+			return new ConformedRead(this.rec, this.chr, mapStart, mapStop, Arrays.copyOfRange(ref, start, end),
+					Arrays.copyOfRange(read, start, end), Arrays.copyOfRange(qual, start, end), Arrays.copyOfRange(ops, start, end),
+					bIndex, bPos, bIndex.length, this.mapQual, this.isForward());
 		}
 		
 		public ByteContainer getReadAtGenomicPos(int pos){
@@ -190,16 +382,13 @@ public class BAMUtils {
 		 * @return Byte
 		 */
 		public Byte getQualAtGenomicPos(int pos){
-			for (int i = 0; i < this.ref.length; i++){
-				if (this.pos[i] == pos){
-					if (i < (this.ref.length - 1) && (this.cigar[i+1] == CigarOperator.INSERTION || this.cigar[i+1] == CigarOperator.DELETION)){
-						return this.qual[i+1];
-					} else {	
-						return this.qual[i];
-					}
-				}
+			final int i = this.indexOfGenomicPos(pos);
+			if (i < 0){ return null; }
+			if (i < (this.ops.length - 1) && (this.ops[i+1] == OP_I || this.ops[i+1] == OP_D)){
+				return this.qual[i+1];
+			} else {
+				return this.qual[i];
 			}
-			return null;
 		}
 		
 		public ByteContainer getRefAtGenomicPos(int pos){
@@ -250,15 +439,17 @@ public class BAMUtils {
 			int refMatchOffset = 0;						// records the leftmost proximal position where the read matches the reference
 			// decrement from the end to find the hit offset
 			boolean foundHit = false;
+			int b = this.blocks - 1;					// the position block of i, walked down with i so that no search is needed
 			for (int i = l - 1; i > -1; i--){
 				// can this be the start of a new allele?
 				// for indels the allele always starts with a reference base
 				// for snv the allele is the mismatch base
-				final int thisPos = this.pos[i];
+				while (this.blockIndex[b] > i){ b--; }
+				final int thisPos = blockPosition(this.ops, this.blockIndex[b], this.blockPos[b], i);
 				final byte ref = this.ref[i];
 				final byte read = this.read[i]; 
-				final CigarOperator thisCigar = this.cigar[i];
-				if (!foundHit && thisPos <= start && thisCigar == CigarOperator.MATCH_OR_MISMATCH){ // case for snp and insertion
+				final byte thisCigar = this.ops[i];
+				if (!foundHit && thisPos <= start && thisCigar == OP_M){ // case for snp and insertion
 					foundHit = true;
 					hitOffset = i;
 					// ensure that the rightHitOffset and rightHitOffsetl are > hitOffset
@@ -275,7 +466,7 @@ public class BAMUtils {
 						rightHitOffset = i + searchSpace < rightHitOffsetl ? 0 : rightHitOffset;
 					}
 				} else {
-					if (thisCigar == CigarOperator.SOFT_CLIP){
+					if (thisCigar == OP_S){
 						refMatchOffset = i + 1; // we back up to the last possible hit, this really won't generate an allele
 						break; // we can do nothing inside of soft clipping
 					}
@@ -300,21 +491,45 @@ public class BAMUtils {
 			// solve the ends of the hits
 			if (rightHitOffsetl > hitOffset && rightHitOffset > hitOffset && rightHitOffsetl - hitOffset < searchSpace){
 				// indicates that the left end of the right hit is within the search space so we get to set the endPosition
-				endPosition = this.pos[rightHitOffset];
+				endPosition = this.getPosAtIndex(rightHitOffset);
 			} else {
 				// return the position for the hitOffset since this is the first position that we see
-				endPosition = this.pos[hitOffset];
+				endPosition = this.getPosAtIndex(hitOffset);
 			}
 			if (rightHitOffset < hitOffset && refMatchOffset + 1 == hitOffset){
 				// this is a SNP, we return the actual hit offset as the start position as well
-				startPosition = this.pos[hitOffset];
+				startPosition = this.getPosAtIndex(hitOffset);
 			} else {
-				startPosition = this.pos[refMatchOffset];
+				startPosition = this.getPosAtIndex(refMatchOffset);
 			}
 			//log.log(Level.WARNING, "Conforming positions: refMatchOffset: " + refMatchOffset + " hitOffset: " + hitOffset + " rightHitOffsetl: " + rightHitOffsetl + " rightHitOffset: " + rightHitOffset );
 			return new int[] { startPosition, endPosition };
 		}
 		
+		/**
+		 * The number of '.' placeholders that are needed to pad this read out to the genomic position stop.
+		 */
+		private int paddingTo(int stop){
+			// a windowed read can be empty, the end of the read is then the best we know
+			final int lastPos = this.ops.length == 0 ? this.mapEnd : this.getPosAtIndex(this.ops.length - 1);
+			return lastPos < stop ? stop - lastPos : 0;
+		}
+
+		/**
+		 * A view of data from the indicated array for the genomic range.  Bases at the start position are always included,
+		 * after that bases where the read is a deletion placeholder are skipped if skipDeletions is set.
+		 */
+		private ByteView viewGenomicRange(byte[] data, int start, int stop, boolean skipDeletions, int padding){
+			final int from = this.indexOfGenomicPos(start);
+			if (from < 0 || stop < start){
+				return new ByteView(data, 0, 0, null, 0, unk, padding);
+			}
+			final int to = this.lowerIndex(stop + 1);
+			if (!skipDeletions){
+				return new ByteView(data, from, to, null, to, unk, padding);
+			}
+			return new ByteView(data, from, to, this.read, this.lowerIndex(start + 1), unk, padding);
+		}
 		
 		/**
 		 * Returns a new ByteContainer with the read at the indicated genomic positions.  This will insert .'s (not N's) where the positions would extend beyond the scope of the read.
@@ -332,87 +547,45 @@ public class BAMUtils {
 		 */
 		public ByteContainer getReadAtGenomicRange(int start, int stop){
 			// this method returns an array since there might be insertions which do not belong to a genomic position
-			boolean hitPos = false;
-			List<Byte> bytes = new ArrayList<Byte>((stop - start) + 10);
-			for (int i = 0; i < this.read.length; i++){
-				// once you hit the position that is always added to the array.  Other switches handle specific cases
-				// note that this returns an empty array
-				if (this.pos[i] == start){
-					hitPos = true;
-					bytes.add(this.read[i]);
-				} else if (hitPos && this.pos[i] <= stop){ //(hitPos & ( this.cigar[i] == CigarOperator.INSERTION || this.cigar[i] == CigarOperator.DELETION)){
-					bytes.add(this.read[i]);
-				} else if (this.pos[i] > stop){
-					break;
-				}
-			}
-			if (this.pos[this.pos.length - 1] < stop){
-				// now fill in the dots
-				for (int i = 0; i < (stop - this.pos[this.pos.length - 1]); i++){
-					bytes.add(dot);
-				}
-			}
-			return new ByteContainer(bytes.toArray(new Byte[bytes.size()]));
+			return new ByteContainer(this.getReadViewAtGenomicRange(start, stop));
+		}
+		
+		/**
+		 * Same as {@link #getReadAtGenomicRange(int, int)} but returns a view onto the read rather than a copy.
+		 */
+		public ByteView getReadViewAtGenomicRange(int start, int stop){
+			return this.viewGenomicRange(this.read, start, stop, false, this.paddingTo(stop));
 		}
 		
 		public ByteContainer getRefAtGenomicRange(int start, int stop){
-			boolean hitPos = false;
-			List<Byte> bytes = new ArrayList<Byte>();
-			for (int i = 0; i < this.ref.length; i++){
-				// once you hit the position that is always added to the array.  Other switches handle specific cases
-				// note that this returns an empty array
-				if (this.pos[i] == start){
-					hitPos = true;
-					bytes.add(this.ref[i]);
-				} else if (hitPos && this.pos[i] <= stop){ //(hitPos & ( this.cigar[i] == CigarOperator.INSERTION || this.cigar[i] == CigarOperator.DELETION)){
-					bytes.add(this.ref[i]);
-				} else if (this.pos[i] > stop){
-					break;
-				}
-			}
-			return new ByteContainer(bytes.toArray(new Byte[bytes.size()]));
+			return new ByteContainer(this.getRefViewAtGenomicRange(start, stop));
+		}
+		
+		public ByteView getRefViewAtGenomicRange(int start, int stop){
+			return this.viewGenomicRange(this.ref, start, stop, false, 0);
 		}
 		
 		public CigarOperator[] getCigarAtGenomicRange(int start, int end){
-			boolean hitPos = false;
-			List<CigarOperator> cigarops = new ArrayList<CigarOperator>((end - start) + 10);
-			for (int i = 0; i < this.cigar.length; i++){
-				// once you hit the position that is always added to the array.  Other switches handle specific cases
-				// note that this returns an empty array
-				if (this.pos[i] == start){
-					hitPos = true;
-					cigarops.add(this.cigar[i]);
-				} else if (hitPos && this.pos[i] <= end && this.read[i] != BAMUtils.unk){ //(hitPos & ( this.cigar[i] == CigarOperator.INSERTION || this.cigar[i] == CigarOperator.DELETION)){
-					cigarops.add(this.cigar[i]);
-				} else if (this.pos[i] > end){
-					break;
-				}
+			final byte[] codes = this.viewGenomicRange(this.ops, start, end, true, 0).toBytes();
+			final CigarOperator[] cigarops = new CigarOperator[codes.length];
+			for (int i = 0; i < codes.length; i++){
+				cigarops[i] = CigarOperator.binaryToEnum(codes[i]);
 			}
-			return cigarops.toArray(new CigarOperator[cigarops.size()]);
+			return cigarops;
 		}
 		
 		public ByteContainer getQualityAtGenomicRange(int start, int end) {
-			boolean hitPos = false;
-			List<Byte> bytes = new ArrayList<Byte>((end - start) + 10);
-			for (int i = 0; i < this.qual.length; i++){
-				// once you hit the position that is always added to the array.  Other switches handle specific cases
-				// note that this returns an empty array
-				if (this.pos[i] == start){
-					hitPos = true;
-					bytes.add(this.qual[i]);
-				} else if (hitPos && this.pos[i] <= end && this.read[i] != BAMUtils.unk){ //(hitPos & ( this.cigar[i] == CigarOperator.INSERTION || this.cigar[i] == CigarOperator.DELETION)){
-					bytes.add(this.qual[i]);
-				} else if (this.pos[i] > end){
-					break;
-				}
-			}
-			return new ByteContainer(bytes.toArray(new Byte[bytes.size()]));
+			return new ByteContainer(this.getQualityViewAtGenomicRange(start, end));
+		}
+		
+		public ByteView getQualityViewAtGenomicRange(int start, int end) {
+			return this.viewGenomicRange(this.qual, start, end, true, 0);
 		}
 		
 		public Integer[] getINSIndices(){
 			List<Integer> ints = new ArrayList<Integer>();
-			for (int i = 1; i < this.cigar.length; i++){
-				if (this.cigar[i] == CigarOperator.INSERTION & this.cigar[i-1] == CigarOperator.MATCH_OR_MISMATCH){
+			for (int i = 1; i < this.ops.length; i++){
+				if (this.ops[i] == OP_I & this.ops[i-1] == OP_M){
 					ints.add(i-1);
 				}
 			}
@@ -421,8 +594,8 @@ public class BAMUtils {
 		
 		public Integer[] getDELIndices(){
 			List<Integer> ints = new ArrayList<Integer>();
-			for (int i = 1; i < this.cigar.length; i++){
-				if (this.cigar[i] == CigarOperator.DELETION & this.cigar[i-1] == CigarOperator.MATCH_OR_MISMATCH){
+			for (int i = 1; i < this.ops.length; i++){
+				if (this.ops[i] == OP_D & this.ops[i-1] == OP_M){
 					ints.add(i-1);
 				}
 			}
@@ -432,8 +605,8 @@ public class BAMUtils {
 		@Override
 		public String toString(){
 			return this.chr + "\n" + this.mappedpos + "\n" + 
-					this.pos[0] + "\t" + this.pos[this.pos.length - 1] + "\n" + new String(this.ref) + "\n" + new String(this.read) + "\n" + 
-					StringUtils.join(this.pos, "|");
+					this.getPosAtIndex(0) + "\t" + this.getPosAtIndex(this.ops.length - 1) + "\n" + new String(this.ref) + "\n" + new String(this.read) + "\n" +
+					StringUtils.join(Utils.intArrayToIntegerList(this.getPositions()), "|");
 		}
 
 
@@ -441,6 +614,10 @@ public class BAMUtils {
 			return this.mapQual;
 		}
 
+		public String getReadName() {
+			return this.rec.getReadName();
+		}
+
 
 		public int readStart() {
 			return this.mappedpos;
@@ -451,8 +628,45 @@ public class BAMUtils {
 			return this.mapEnd;
 		}
 		
+		/**
+		 * @return the first aligned base of the read, soft clips are not included.  This is the start used by BAM index queries
+		 */
+		public int alignmentStart() {
+			return this.rec.getAlignmentStart();
+		}
+		
+		/**
+		 * @return the last aligned base of the read, soft clips are not included.  This is the end used by BAM index queries
+		 */
+		public int alignmentEnd() {
+			return this.rec.getAlignmentEnd();
+		}
+
+		/**
+		 * @return a rough size in bytes of the heap held by this read: four bytes per conformed base, two per base of the record and a
+		 * fixed overhead for the record and the objects around it
+		 */
+		public long estimatedBytes() {
+			return 4L * this.ops.length + 2L * this.rec.getReadLength() + 512;
+		}
+
 		public ByteContainer getSeqAllele(int start, int end){
-			return removePlaceholders(this.getReadAtGenomicRange(start, end));
+			return new ByteContainer(this.getSeqAlleleView(start, end));
+		}
+		
+		/**
+		 * The read at the genomic range with all deletion placeholders removed, see {@link #getSeqAllele(int, int)}.
+		 * @param start
+		 * @param end
+		 * @return a view onto the read, no bases are copied
+		 */
+		public ByteView getSeqAlleleView(int start, int end){
+			final int from = this.indexOfGenomicPos(start);
+			final int padding = this.paddingTo(end);
+			if (from < 0 || end < start){
+				return new ByteView(this.read, 0, 0, null, 0, unk, padding);
+			}
+			return new ByteView(this.read, from, this.lowerIndex(end + 1), this.read, from, unk, padding);
 		}
 		
 		public static ByteContainer removePlaceholders(ByteContainer seq){
@@ -486,11 +700,7 @@ public class BAMUtils {
 		 * @return
 		 */
 		public boolean containsN(int start, int end){
-			ByteContainer refSeq = this.getReadAtGenomicRange(start, end);
-			for (int i = 0; i < refSeq.bytes.length; i++){
-				if (refSeq.bytes[i] == N){ return true; }
-			}
-			return false;
+			return this.getReadViewAtGenomicRange(start, end).contains(N);
 		}
 		
 		/**
@@ -500,19 +710,17 @@ public class BAMUtils {
 		 * @return
 		 */
 		public boolean isReference(int start, int end) {
-			ByteContainer refSeq = this.getRefAtGenomicRange(start, end);
-			ByteContainer readSeq = this.getReadAtGenomicRange(start, end);
-			if (refSeq.bytes.length != readSeq.bytes.length){ return false; }
-			for (int i = 0; i < readSeq.bytes.length; i++){
-				if (refSeq.bytes[i] != readSeq.bytes[i]){ return false; }
-			}
-			return true;
+			return this.getRefViewAtGenomicRange(start, end).equals(this.getReadViewAtGenomicRange(start, end));
 		}
 
 
 		public ByteContainer getSeqQuality(int start, int end) {
 			return this.getQualityAtGenomicRange(start, end);
 		}
+		
+		public ByteView getSeqQualityView(int start, int end) {
+			return this.getQualityViewAtGenomicRange(start, end);
+		}
 
 
 		public String getChr() {
@@ -713,19 +921,44 @@ public class BAMUtils {
 		private final String chr;
 		private final int start;
 		private final int end;
-		private final int f;
-		private final int F;
-		private final IndexedFastaSequenceFile fastaref;
-		private final SAMRecordIterator sri;
+		private final ReadFilter filter;
+		private final ReferenceSequenceFile fastaref;
+		private final int flank;
+		private final Iterator<SAMRecord> sri;
+		private final Closeable closer;
+		
+		public CRIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref){
+			this(sam, chr, start, end, f, F, fastaref, -1);
+		}
+		
+		/**
+		 * @param flank if not negative reads are only conformed over [start - flank, end + flank], see
+		 * {@link BAMUtils#conformToReference(SAMRecord, ReferenceSequenceFile, int, int, int)}
+		 */
+		public CRIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref, int flank){
+			this(sam, chr, start, end, ReadFilter.flags(f, F), fastaref, flank);
+		}
 		
-		public CRIterator(SamReader sam, String chr, int start, int end, int f, int F, IndexedFastaSequenceFile fastaref){
-			this.sri = sam.query(chr, start, end, false);
+		/**
+		 * @param filter reads that do not pass are returned as null without being conformed
+		 */
+		public CRIterator(SamReader sam, String chr, int start, int end, ReadFilter filter, ReferenceSequenceFile fastaref, int flank){
+			this(sam.query(chr, start, end, false), chr, start, end, filter, fastaref, flank);
+		}
+		
+		/**
+		 * Conforms records already queried for [start, end], such as those of {@link BAMUtils#getRecordsIterator(SamReader, String, int, int, ReadFilter, int)}.
+		 * @param records closed along with this iterator, null elements are returned as null
+		 */
+		public <I extends Iterator<SAMRecord> & Closeable> CRIterator(I records, String chr, int start, int end, ReadFilter filter, ReferenceSequenceFile fastaref, int flank){
+			this.sri = records;
+			this.closer = records;
 			this.chr = chr;
 			this.start = start;
 			this.end = end;
-			this.f = f;
-			this.F = F;
+			this.filter = filter;
 			this.fastaref = fastaref;
+			this.flank = flank;
 		}
 		
 		@Override
@@ -737,15 +970,15 @@ public class BAMUtils {
 		public ConformedRead next() {
 			try{
 				final SAMRecord sr = this.sri.next();
-				if (((sr.getFlags() & this.F) != 0) // F are the flags to remove: if F and flag are not 0: reject.  F = 0 indicates no filtering
-						|| ((sr.getFlags() & this.f) != this.f) // f are the required flags: if f and flag are not f: reject f = 0 indicates no selection
-						){
-					// log.log(Level.FINEST, "Skipped sam record because of sam flag mask: " + sr.getSAMString());
+				// rejected on the fixed size fields, before the bases or CIGAR are decoded
+				if (sr == null || !this.filter.passes(sr)){
 					return null;
 				}
 				
-				final ConformedRead cr = BAMUtils.conformToReference(sr, fastaref);
-				return cr;
+				if (this.flank >= 0){
+					return BAMUtils.conformToReference(sr, this.fastaref, this.start, this.end, this.flank);
+				}
+				return BAMUtils.conformToReference(sr, this.fastaref);
 			}catch (Exception e){
 				log.log(Level.WARNING, "Error proocessing conformed read", e);
 				return null;
@@ -760,29 +993,76 @@ public class BAMUtils {
 
 		@Override
 		public void close() throws IOException {
-			this.sri.close();
+			this.closer.close();
+		}
+		
+	}
+	
+	/**
+	 * The records of a query, with the ones rejected by the filter returned as null so {@link ReadAheadIterator} drops them.
+	 */
+	private static class FilteredRecordIterator implements Iterator<SAMRecord>, Closeable{
+		private final SAMRecordIterator sri;
+		private final ReadFilter filter;
+		
+		FilteredRecordIterator(SAMRecordIterator sri, ReadFilter filter){
+			this.sri = sri;
+			this.filter = filter;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.sri.hasNext();
+		}
+		
+		@Override
+		public SAMRecord next() {
+			final SAMRecord sr = this.sri.next();
+			return this.filter.passes(sr) ? sr : null;
 		}
 		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			this.sri.close();
+		}
 	}
 	
-	public static List<ConformedRead> getConformedReads(BAMInterface bi, String chr, int start, int end, int f, int F, IndexedFastaSequenceFile fastaref){
-		final SamReader sam = bi.getSamfilereader();
-		List<ConformedRead> reads = getConformedReads(sam, chr, start, end, f, F, fastaref);
+	public static List<ConformedRead> getConformedReads(BAMInterface bi, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref){
+		final SamReader sam = bi.leaseSamReader();
+		// the reader goes back to the pool unless reading failed, a failed one may be left mid query
+		boolean healthy = false;
 		try {
-			sam.close();
-		} catch (IOException e) {
-			log.log(Level.WARNING, "SAM file did not close as expected", e);
+			List<ConformedRead> reads = getConformedReads(sam, chr, start, end, f, F, fastaref);
+			healthy = true;
+			return reads;
+		} finally {
+			if (healthy){
+				bi.releaseSamReader(sam);
+			} else {
+				bi.discardSamReader(sam);
+			}
 		}
-		return reads;
 	}
 	
 	public static List<ConformedRead> getConformedReads(SamReader sam, String chr, int start, int end, int f, int F){
 		return getConformedReads(sam, chr, start, end, f, F, null);
 	}
 	
-	public static List<ConformedRead> getConformedReads(SamReader sam, String chr, int start, int end, int f, int F, IndexedFastaSequenceFile fastaref){
+	public static List<ConformedRead> getConformedReads(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref){
+		return getConformedReads(sam, chr, start, end, f, F, fastaref, -1);
+	}
+	
+	/**
+	 * @param flank if not negative reads are only conformed over [start - flank, end + flank]
+	 */
+	public static List<ConformedRead> getConformedReads(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref, int flank){
 		List<ConformedRead> reads = new ArrayList<ConformedRead>();
-		CRIterator cri = new CRIterator(sam, chr, start, end, f, F, fastaref);
+		CRIterator cri = new CRIterator(sam, chr, start, end, f, F, fastaref, flank);
 		while (cri.hasNext()){
 			try{
 				final ConformedRead cr = cri.next();
@@ -803,10 +1083,108 @@ public class BAMUtils {
 		return reads;
 	}
 	
-	public static Iterator<ConformedRead> getConformedReadsIterator(SamReader sam, String chr, int start, int end, int f, int F, IndexedFastaSequenceFile fastaref){
+	/**
+	 * As {@link #getConformedReads(SamReader, String, int, int, int, int, ReferenceSequenceFile, int)} but with at most maxDepth reads,
+	 * chosen by {@link DepthSampler} so the same reads are returned every time.  A maxDepth of 0 returns every read.
+	 */
+	public static List<ConformedRead> getConformedReads(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref, int flank, int maxDepth){
+		if (maxDepth <= 0){
+			return getConformedReads(sam, chr, start, end, f, F, fastaref, flank);
+		}
+		return getConformedReads(sam, chr, start, end, ReadFilter.flags(f, F), fastaref, flank, new DepthSampler<SAMRecord>(maxDepth));
+	}
+
+	/**
+	 * Reads that pass the filter are offered to the sampler and only the ones it keeps are conformed, in the order of the BAM.
+	 * Records are cheap to hold until they are conformed, so capping the depth saves the conforming as well as everything after it.
+	 * {@link DepthSampler#getSeen()} gives the depth before capping.
+	 * @param flank if not negative reads are only conformed over [start - flank, end + flank]
+	 */
+	public static List<ConformedRead> getConformedReads(SamReader sam, String chr, int start, int end, ReadFilter filter, ReferenceSequenceFile fastaref, int flank, DepthSampler<SAMRecord> sampler){
+		return conformRecords(getRecords(sam, chr, start, end, filter, sampler), fastaref, start, end, flank);
+	}
+
+	/**
+	 * The records overlapping [start, end] that pass the filter, in the order of the BAM, without conforming them.  The bases and CIGAR
+	 * of a BAM record are decoded when first used, so this is mostly reading and decompressing the BAM and can be run apart from
+	 * {@link #conformRecords(List, ReferenceSequenceFile, int, int, int)}.  The records stay usable once the reader is released.
+	 * @param sampler if not null the records are offered to it and only the ones it keeps are returned
+	 */
+	public static List<SAMRecord> getRecords(SamReader sam, String chr, int start, int end, ReadFilter filter, DepthSampler<SAMRecord> sampler){
+		final List<SAMRecord> records = new ArrayList<SAMRecord>();
+		final SAMRecordIterator sri = sam.query(chr, start, end, false);
+		try {
+			while (sri.hasNext()){
+				final SAMRecord sr = sri.next();
+				if (!filter.passes(sr)){
+					continue;
+				}
+				if (sampler != null){
+					sampler.offer(sr.getReadName(), sr);
+				} else {
+					records.add(sr);
+				}
+			}
+		} finally {
+			sri.close();
+		}
+		return sampler != null ? sampler.getSample() : records;
+	}
+
+	/**
+	 * Conforms the records in order, records that fail to conform are logged and left out.
+	 * @param flank if not negative reads are only conformed over [start - flank, end + flank]
+	 */
+	public static List<ConformedRead> conformRecords(List<SAMRecord> records, ReferenceSequenceFile fastaref, int start, int end, int flank){
+		final List<ConformedRead> reads = new ArrayList<ConformedRead>(records.size());
+		for (SAMRecord sr : records){
+			try{
+				reads.add(flank >= 0 ? conformToReference(sr, fastaref, start, end, flank) : conformToReference(sr, fastaref));
+			}catch (Exception e){
+				log.log(Level.WARNING, "Error proocessing conformed read", e);
+			}
+		}
+		return reads;
+	}
+	
+	/**
+	 * A single pass pileup over the region, see {@link PileupIterator}.
+	 */
+	public static PileupIterator getPileupIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref){
+		return new PileupIterator(sam, chr, start, end, f, F, fastaref);
+	}
+	
+	public static CRIterator getConformedReadsIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref){
 		return new CRIterator(sam, chr, start, end, f, F, fastaref);
 	}
 	
+	/**
+	 * As {@link #getConformedReadsIterator(SamReader, String, int, int, int, int, ReferenceSequenceFile)} but records are decoded and filtered
+	 * up to readAhead records ahead of the caller on a background thread, see {@link ReadAheadIterator}, and conformed as they are taken.
+	 * Filtered reads are dropped, so next never returns null.  A readAhead of 0 reads on the calling thread.
+	 */
+	public static ReadAheadIterator<ConformedRead> getConformedReadsIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref, int readAhead){
+		return getConformedReadsIterator(sam, chr, start, end, f, F, fastaref, readAhead, -1);
+	}
+	
+	/**
+	 * @param flank if not negative reads are only conformed over [start - flank, end + flank], see
+	 * {@link #conformToReference(SAMRecord, ReferenceSequenceFile, int, int, int)}
+	 */
+	public static ReadAheadIterator<ConformedRead> getConformedReadsIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref, int readAhead, int flank){
+		// only the records are read ahead, conforming reads the reference so it stays on the calling thread
+		final ReadAheadIterator<SAMRecord> records = getRecordsIterator(sam, chr, start, end, ReadFilter.flags(f, F), readAhead);
+		return new ReadAheadIterator<ConformedRead>(new CRIterator(records, chr, start, end, new ReadFilter(), fastaref, flank), 0);
+	}
+	
+	/**
+	 * The records overlapping [start, end] that pass the filter, decoded and filtered up to readAhead records ahead of the caller on
+	 * an I/O thread.  Conform them on the calling thread with {@link CRIterator}.  A readAhead of 0 reads on the calling thread.
+	 */
+	public static ReadAheadIterator<SAMRecord> getRecordsIterator(SamReader sam, String chr, int start, int end, ReadFilter filter, int readAhead){
+		return new ReadAheadIterator<SAMRecord>(new FilteredRecordIterator(sam.query(chr, start, end, false), filter), readAhead);
+	}
+	
 	
 	
 	public static Variant genotype(SamReader sam, String chr, int pos, String variant) throws Exception{
@@ -815,7 +1193,7 @@ public class BAMUtils {
 	
 	public static Variant genotype(SamReader sam, String chr, int pos, String variant, int f, int F) throws Exception{
 		Variant var = new Variant(chr, pos);
-		List<ConformedRead> reads = BAMUtils.getConformedReads(sam, chr, pos, pos, f, F);
+		List<ConformedRead> reads = BAMUtils.getConformedReads(sam, chr, pos, pos, f, F, null, DEFAULTCONFORMFLANK);
 		
 		for (ConformedRead cr : reads){
 			var.add(cr.getRefAtGenomicPos(pos), cr.getReadAtGenomicPos(pos), cr.getQualAtGenomicPos(pos), cr.getMapQuality(), pos);
@@ -824,6 +1202,74 @@ public class BAMUtils {
 		return var;
 	}
 	
+	public static List<Variant> genotype(SamReader sam, String chr, int[] positions) throws Exception{
+		return genotype(sam, chr, positions, 0, 1284, null);
+	}
+	
+	/**
+	 * Batched form of {@link #genotype(SamReader, String, int, String, int, int)} for many loci on one contig.  All loci are fetched in a
+	 * single multi-interval query, so the BAM is swept once in coordinate order, and each read is conformed once and added to every locus
+	 * that it overlaps.
+	 * @param sam
+	 * @param chr
+	 * @param positions sorted (ascending) positions to genotype, repeated positions get their own {@link Variant}
+	 * @param f required flags
+	 * @param F filtered flags
+	 * @param fastaref reference to conform reads against, if null the MD tag is used
+	 * @return one {@link Variant} for each position, in the same order
+	 * @throws Exception
+	 */
+	public static List<Variant> genotype(SamReader sam, String chr, int[] positions, int f, int F, ReferenceSequenceFile fastaref) throws Exception{
+		final List<Variant> variants = new ArrayList<Variant>(positions.length);
+		for (int i = 0; i < positions.length; i++){
+			if (i > 0 && positions[i] < positions[i - 1]){
+				throw new Exception("Positions must be sorted, found " + positions[i] + " after " + positions[i - 1]);
+			}
+			variants.add(new Variant(chr, positions[i]));
+		}
+		final int sequenceIndex = sam.getFileHeader().getSequenceIndex(chr);
+		if (positions.length == 0 || sequenceIndex < 0){
+			return variants;
+		}
+		QueryInterval[] intervals = new QueryInterval[positions.length];
+		for (int i = 0; i < positions.length; i++){
+			intervals[i] = new QueryInterval(sequenceIndex, positions[i], positions[i]);
+		}
+		intervals = QueryInterval.optimizeIntervals(intervals);
+		final ReadFilter filter = ReadFilter.flags(f, F);
+		final SAMRecordIterator sri = sam.query(intervals, false);
+		try {
+			while (sri.hasNext()){
+				final SAMRecord sr = sri.next();
+				if (!filter.passes(sr)){ continue; }
+				final int readStart = sr.getAlignmentStart();
+				final int readEnd = sr.getAlignmentEnd();
+				// first locus at or after the start of the read
+				int lo = 0;
+				int hi = positions.length;
+				while (lo < hi){
+					final int mid = (lo + hi) >>> 1;
+					if (positions[mid] < readStart){ lo = mid + 1; } else { hi = mid; }
+				}
+				if (lo == positions.length || positions[lo] > readEnd){ continue; }
+				final ConformedRead cr;
+				try {
+					cr = conformToReference(sr, fastaref, positions[lo], Math.min(readEnd, positions[positions.length - 1]), DEFAULTCONFORMFLANK);
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Error proocessing conformed read", e);
+					continue;
+				}
+				for (int i = lo; i < positions.length && positions[i] <= readEnd; i++){
+					final int pos = positions[i];
+					variants.get(i).add(cr.getRefAtGenomicPos(pos), cr.getReadAtGenomicPos(pos), cr.getQualAtGenomicPos(pos), cr.getMapQuality(), pos);
+				}
+			}
+		} finally {
+			sri.close();
+		}
+		return variants;
+	}
+	
 	/*
 	 * Regexp for MD string.
 	 *
@@ -838,13 +1284,29 @@ public class BAMUtils {
 	static final Pattern mdPat = Pattern.compile("\\G(?:([0-9]+)|([ACTGNactgn])|(\\^[ACTGNactgn]+))");
 	
 
+	/**
+	 * @deprecated use {@link MDVariantExtractor#extract(SAMRecord, MDVariantExtractor.Consumer)}, which does not need to collect the calls
+	 */
+	@Deprecated
 	public static Vector<VariantCall> getVariants(SAMRecord rec){
-		return getVariants(rec, null, VarType.ANY);
+		final Vector<VariantCall> calls = new Vector<VariantCall>();
+		try {
+			MDVariantExtractor.extract(rec, new MDVariantExtractor.Consumer(){
+				@Override
+				public void accept(VariantCall call) {
+					calls.add(call);
+				}
+			});
+		} catch (SAMException e) {
+			log.log(Level.WARNING, "Error finding variants in read " + rec.getReadName(), e);
+		}
+		return calls;
 	}
 	
-	/*
-	 * DEPRICATED
+	/**
+	 * @deprecated use {@link MDVariantExtractor#extract(SAMRecord, MDVariantExtractor.Consumer)}
 	 */
+	@Deprecated
 	public static Vector<VariantCall> getVariants(SAMRecord rec, Integer refpos, VarType type){
 		// if refpos is not null then all variants are returned, else we return all reads at the position
 		final String md = rec.getStringAttribute(SAMTag.MD.name());
@@ -968,7 +1430,8 @@ public class BAMUtils {
 	
 	/**
 	 * 
-	 * Results in a ConformedRead object, who's main elements are sets of byte[] and enum[] arrays that line up the read with the reference.
+	 * Results in a ConformedRead object, who's main elements are sets of byte[] arrays that line up the read with the reference.
+	 * The pos and cigar rows shown below are packed into position blocks and operator codes, see {@link ConformedRead}.
 	 * <pre>
 	 * Ex;
 	 * 	read;	ATCGATCGATCG 
@@ -986,7 +1449,7 @@ public class BAMUtils {
 	 * @return
 	 * @throws Exception 
 	 */
-	public static ConformedRead conformToReference(SAMRecord rec, IndexedFastaSequenceFile fastaref) throws Exception{
+	public static ConformedRead conformToReference(SAMRecord rec, ReferenceSequenceFile fastaref) throws Exception{
 		final byte[] seq = rec.getReadBases();
 		final byte[] qual = rec.getBaseQualities();
 		// we must fill in deletions on our own
@@ -1016,8 +1479,11 @@ public class BAMUtils {
 		byte[] refArray = new byte[maxOutputLength];
 		byte[] readArray = new byte[maxOutputLength];
 		byte[] qualArray = new byte[maxOutputLength];
-		int[] posArray = new int[maxOutputLength];
-		CigarOperator[] cigarArray = new CigarOperator[maxOutputLength];
+		byte[] opArray = new byte[maxOutputLength];
+		// one position block per cigar element
+		int[] blockIndex = new int[cigar.numCigarElements()];
+		int[] blockPos = new int[cigar.numCigarElements()];
+		int blocks = 0;
 		
 		// trackers
 		int seqPos = 0; // this tracker will maintain our index in the sequence and the qualities.  This indexes at insertions but not at deletions.
@@ -1027,17 +1493,22 @@ public class BAMUtils {
 		for (final CigarElement cigEl : cigar.getCigarElements()){
 			final int cigElLen = cigEl.getLength();
 			final CigarOperator cigElOp = cigEl.getOperator();
+			final byte cigElCode = (byte) CigarOperator.enumToBinary(cigElOp);
 			try {
+				if (cigElLen > 0 && cigElOp != CigarOperator.HARD_CLIP && cigElOp != CigarOperator.PADDING){
+					blockIndex[blocks] = arrayPos;
+					blockPos[blocks] = gpos;
+					blocks++;
+				}
 				if (cigElOp == CigarOperator.DELETION){
 					// deletion from the reference, pos data is consistent with the maped pos
 					for (int i = 0; i < cigElLen; i++){
 						refArray[arrayPos + i] = refseq[refPos + i];
 						qualArray[arrayPos + i] = unk;
 						readArray[arrayPos + i] = unk;
-						posArray[arrayPos + i] = gpos;
-						gpos++;
-						cigarArray[arrayPos + i] = cigElOp;
+						opArray[arrayPos + i] = cigElCode;
 					}
+					gpos += cigElLen;
 					arrayPos += cigElLen;
 					refPos += cigElLen;
 				} else if (cigElOp == CigarOperator.N){
@@ -1047,20 +1518,18 @@ public class BAMUtils {
 						refArray[arrayPos + i] = refseq[refPos + i];
 						qualArray[arrayPos + i] = dot;
 						readArray[arrayPos + i] = dot;
-						posArray[arrayPos + i] = gpos;
-						gpos++;
-						cigarArray[arrayPos + i] = cigElOp;
+						opArray[arrayPos + i] = cigElCode;
 					}
+					gpos += cigElLen;
 					arrayPos += cigElLen;
 					refPos += cigElLen;
 				} else if (cigElOp == CigarOperator.INSERTION){
 					for (int i = 0; i < cigElLen; i++){
-						posArray[arrayPos + i] = gpos;
 						if (fromRead) { refArray[arrayPos + i] = refseq[refPos + i]; }
 						else { refArray[arrayPos + i] = unk; }
 						qualArray[arrayPos + i] = qual[seqPos + i];
 						readArray[arrayPos + i] = seq[seqPos + i];
-						cigarArray[arrayPos + i] = cigElOp;
+						opArray[arrayPos + i] = cigElCode;
 					}
 					if (fromRead){ refPos += cigElLen; }
 					arrayPos += cigElLen;
@@ -1071,10 +1540,9 @@ public class BAMUtils {
 						refArray[arrayPos + i] = refseq[refPos + i];
 						qualArray[arrayPos + i] = qual[seqPos + i];
 						readArray[arrayPos + i] = seq[seqPos + i];
-						posArray[arrayPos + i] = gpos;
-						gpos++;
-						cigarArray[arrayPos + i] = cigElOp;
+						opArray[arrayPos + i] = cigElCode;
 					}
+					gpos += cigElLen;
 					refPos += cigElLen;
 					arrayPos += cigElLen;
 					seqPos += cigElLen;
@@ -1094,7 +1562,136 @@ public class BAMUtils {
 				throw e;
 			}
 		}
-		return new ConformedRead(rec, rec.getReferenceName(), mapPos, rec.getUnclippedEnd(), refArray, readArray, qualArray, posArray, cigarArray, rec.getMappingQuality());
+		return new ConformedRead(rec, rec.getReferenceName(), mapPos, rec.getUnclippedEnd(), refArray, readArray, qualArray, opArray, blockIndex, blockPos, blocks, rec.getMappingQuality(), ! rec.getReadNegativeStrandFlag());
+	}
+	
+	/**
+	 * Windowed form of {@link #conformToReference(SAMRecord, ReferenceSequenceFile)}, only the bases with a genomic position in [start - flank, end + flank]
+	 * are conformed and only that part of the reference is fetched, so the cost follows the window rather than the length of the read.
+	 * The result behaves like the full conformed read inside the window and knows nothing outside of it, except that readStart and readEnd are still
+	 * those of the whole read so coverage checks are unchanged.  The flank must be wide enough for any allele expansion the caller does
+	 * (see {@link ConformedRead#getAlleleRangeAtGenomicPos(int)}).  If the MD tag is used (fastaref is null) the reference for the read is still
+	 * built in full by htsjdk.
+	 * @param rec
+	 * @param fastaref reference to conform against, if null the MD tag is used
+	 * @param start first genomic position needed
+	 * @param end last genomic position needed
+	 * @param flank extra positions conformed on each side of the window
+	 * @return the conformed window, empty if the read does not reach it
+	 * @throws Exception
+	 */
+	public static ConformedRead conformToReference(SAMRecord rec, ReferenceSequenceFile fastaref, int start, int end, int flank) throws Exception{
+		final Cigar cigar = rec.getCigar();
+		if (cigar == null) {
+			throw new SAMException("Cannot create reference from SAMRecord with no CIGAR, read: " + rec.getReadName());
+		}
+		final int mapPos = rec.getUnclippedStart();
+		final int windowStart = start - flank;
+		final int windowEnd = end + flank;
+		// first walk the cigar to size the output
+		int outputLength = 0;
+		int blocks = 0;
+		int gpos = mapPos;
+		for (final CigarElement cigEl : cigar.getCigarElements()){
+			final CigarOperator cigElOp = cigEl.getOperator();
+			if (cigElOp == CigarOperator.HARD_CLIP || cigElOp == CigarOperator.PADDING){ continue; }
+			final int cigElLen = cigEl.getLength();
+			final int n = windowTo(cigElOp, cigElLen, gpos, windowStart, windowEnd) - windowFrom(cigElOp, gpos, windowStart);
+			if (n > 0){
+				outputLength += n;
+				blocks++;
+			}
+			if (cigElOp.consumesReferenceBases() || cigElOp == CigarOperator.SOFT_CLIP){ gpos += cigElLen; }
+		}
+		byte[] refseq = null;
+		final boolean fromRead = fastaref == null;
+		final int refStart = Math.max(windowStart, mapPos);
+		if (fromRead){
+			// note that the refseq array contains '-' where there are insertions and '0' where there is soft clipping
+			refseq = SequenceUtil.makeReferenceFromAlignment(rec, true);
+		} else {
+			final int refEnd = Math.min(windowEnd, gpos - 1);
+			if (outputLength > 0 && refEnd >= refStart){
+				refseq = SynchronousIndexedFastaReader.getSubsequenceAt(fastaref, rec.getReferenceName(), refStart, refEnd).getBases();
+			}
+		}
+		
+		final byte[] seq = rec.getReadBases();
+		final byte[] qual = rec.getBaseQualities();
+		byte[] refArray = new byte[outputLength];
+		byte[] readArray = new byte[outputLength];
+		byte[] qualArray = new byte[outputLength];
+		byte[] opArray = new byte[outputLength];
+		int[] blockIndex = new int[blocks];
+		int[] blockPos = new int[blocks];
+		blocks = 0;
+		
+		// trackers, as in the full conformance but only the bases inside the window are written
+		int seqPos = 0;
+		int refPos = 0; // index into refseq when it is built from the read, it counts insertions as well
+		int arrayPos = 0;
+		gpos = mapPos;
+		for (final CigarElement cigEl : cigar.getCigarElements()){
+			final int cigElLen = cigEl.getLength();
+			final CigarOperator cigElOp = cigEl.getOperator();
+			final byte cigElCode = (byte) CigarOperator.enumToBinary(cigElOp);
+			if (cigElOp == CigarOperator.HARD_CLIP || cigElOp == CigarOperator.PADDING){ continue; }
+			final int from = windowFrom(cigElOp, gpos, windowStart);
+			final int to = windowTo(cigElOp, cigElLen, gpos, windowStart, windowEnd);
+			if (to > from){
+				blockIndex[blocks] = arrayPos;
+				blockPos[blocks] = cigElOp == CigarOperator.INSERTION ? gpos : gpos + from;
+				blocks++;
+			}
+			for (int i = from; i < to; i++){
+				final byte refBase;
+				if (cigElOp == CigarOperator.INSERTION){
+					refBase = fromRead ? refseq[refPos + i] : unk;
+				} else {
+					refBase = fromRead ? refseq[refPos + i] : refseq[gpos + i - refStart];
+				}
+				refArray[arrayPos] = refBase;
+				opArray[arrayPos] = cigElCode;
+				if (cigElOp == CigarOperator.DELETION){
+					qualArray[arrayPos] = unk;
+					readArray[arrayPos] = unk;
+				} else if (cigElOp == CigarOperator.N){
+					qualArray[arrayPos] = dot;
+					readArray[arrayPos] = dot;
+				} else if (cigElOp == CigarOperator.INSERTION || cigElOp == CigarOperator.MATCH_OR_MISMATCH || cigElOp == CigarOperator.SOFT_CLIP || cigElOp == CigarOperator.EQ || cigElOp == CigarOperator.X){
+					qualArray[arrayPos] = qual[seqPos + i];
+					readArray[arrayPos] = seq[seqPos + i];
+				} else {
+					log.log(Level.SEVERE, "Found unknown operator " + cigElOp);
+					throw new Exception("Unknown operator in read: " + rec.toString());
+				}
+				arrayPos++;
+			}
+			if (cigElOp.consumesReadBases()){ seqPos += cigElLen; }
+			if (cigElOp != CigarOperator.INSERTION){ gpos += cigElLen; }
+			if (cigElOp != CigarOperator.INSERTION || fromRead){ refPos += cigElLen; }
+		}
+		return new ConformedRead(rec, rec.getReferenceName(), mapPos, rec.getUnclippedEnd(), refArray, readArray, qualArray, opArray, blockIndex, blockPos, blocks, rec.getMappingQuality(), ! rec.getReadNegativeStrandFlag());
+	}
+	
+	/**
+	 * First offset into a cigar element starting at gpos that falls in the window.  Inserted bases carry the position of the next reference base.
+	 */
+	private static int windowFrom(CigarOperator op, int gpos, int windowStart){
+		if (op == CigarOperator.INSERTION){
+			return 0;
+		}
+		return Math.max(0, windowStart - gpos);
+	}
+	
+	/**
+	 * Offset just past the last base of a cigar element starting at gpos that falls in the window, no more than {@link #windowFrom} if none do.
+	 */
+	private static int windowTo(CigarOperator op, int len, int gpos, int windowStart, int windowEnd){
+		if (op == CigarOperator.INSERTION){
+			return gpos >= windowStart && gpos <= windowEnd ? len : 0;
+		}
+		return Math.min(len, windowEnd - gpos + 1);
 	}
 	
 	public static byte[] alignToReference(byte[] seq, Cigar cigar, SAMRecord rec){
@@ -15,14 +15,14 @@ public class ByteContainer{
 	ByteContainer(byte [] inbytes){
 		this.bytes = inbytes.clone();
 	}
+	
+	ByteContainer(ByteView view){
+		this.bytes = view.toBytes();
+	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + getOuterType().hashCode();
-		result = prime * result + Arrays.hashCode(bytes);
-		return result;
+		return Arrays.hashCode(bytes);
 	}
 
 	@Override
@@ -37,19 +37,12 @@ public class ByteContainer{
 			return false;
 		}
 		ByteContainer other = (ByteContainer) obj;
-		if (!getOuterType().equals(other.getOuterType())) {
-			return false;
-		}
 		if (!Arrays.equals(bytes, other.bytes)) {
 			return false;
 		}
 		return true;
 	}
 
-	private ByteContainer getOuterType() {
-		return this;
-	}
-
 	@Override
 	public String toString() {
 		return new String(this.bytes);
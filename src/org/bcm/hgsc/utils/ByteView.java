@@ -0,0 +1,320 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.variant.variantcontext.Allele;
+
+/**
+ * A read only window onto part of a byte array, used to hand out slices of conformed reads without copying them.
+ * The view may optionally drop placeholder bytes (for instance the '-' written for deletions) and be padded on the right
+ * with '.' bytes for reads that end before the requested range.  hashCode and equals are based on the visible content only,
+ * so a view can be used as a key in a hash map and found again with any other view or copy of the same bases.
+ *
+ * Note that a view does not copy the underlying array, so the array must not change while the view is in use.  Use {@link #compact()}
+ * before holding on to a view for longer than the read it was taken from.
+ * @author covingto
+ *
+ */
+public final class ByteView {
+	private final byte[] data;
+	private final int from;
+	private final int to;
+	private final byte[] mask;			// bytes tested against the placeholder, null when nothing is skipped
+	private final int skipFrom;			// placeholders are only dropped at or after this index
+	private final byte placeholder;
+	private final int padding;			// number of '.' bytes that follow the data
+	private final int length;
+	private int hash = 0;
+
+	public ByteView(byte[] data){
+		this(data, 0, data.length);
+	}
+
+	public ByteView(byte[] data, int from, int to){
+		this(data, from, to, null, to, (byte) 0, 0);
+	}
+
+	/**
+	 * @param data the backing array
+	 * @param from first index (inclusive)
+	 * @param to last index (exclusive)
+	 * @param mask array tested for the placeholder, indices at or after skipFrom where mask[i] == placeholder are not part of the view.  May be null.
+	 * @param skipFrom
+	 * @param placeholder
+	 * @param padding number of '.' bytes to add after the data
+	 */
+	ByteView(byte[] data, int from, int to, byte[] mask, int skipFrom, byte placeholder, int padding){
+		if (from < 0 || to > data.length || from > to){
+			throw new IndexOutOfBoundsException("View [" + from + ", " + to + ") is outside of array with length " + data.length);
+		}
+		this.data = data;
+		this.from = from;
+		this.to = to;
+		this.mask = mask;
+		this.skipFrom = skipFrom;
+		this.placeholder = placeholder;
+		this.padding = padding;
+		int skipped = 0;
+		if (mask != null){
+			for (int i = Math.max(from, skipFrom); i < to; i++){
+				if (mask[i] == placeholder){ skipped++; }
+			}
+		}
+		this.length = (to - from) - skipped + padding;
+	}
+
+	private boolean skipped(int i){
+		return this.mask != null && i >= this.skipFrom && this.mask[i] == this.placeholder;
+	}
+
+	/**
+	 * @return true if every byte of the data range is visible, in this case view index k is data[from + k]
+	 */
+	private boolean contiguous(){
+		return this.length - this.padding == this.to - this.from;
+	}
+
+	/**
+	 * Raw index of the first visible byte at or after raw index i.
+	 */
+	private int nextVisible(int i){
+		while (this.skipped(i)){ i++; }
+		return i;
+	}
+
+	/**
+	 * Raw index of the visible byte k, or -1 if k falls in the padding.
+	 */
+	private int rawIndex(int k){
+		if (k < 0 || k >= this.length){
+			throw new IndexOutOfBoundsException("Index " + k + " is outside of view with length " + this.length);
+		}
+		if (k >= this.length - this.padding){ return -1; }
+		if (this.contiguous()){ return this.from + k; }
+		int i = this.nextVisible(this.from);
+		for (int seen = 0; seen < k; seen++){
+			i = this.nextVisible(i + 1);
+		}
+		return i;
+	}
+
+	public int length(){
+		return this.length;
+	}
+
+	public byte byteAt(int k){
+		final int i = rawIndex(k);
+		return i < 0 ? BAMUtils.dot : this.data[i];
+	}
+
+	/**
+	 * @return the smallest byte in the view, the view must not be empty
+	 */
+	public byte min(){
+		byte min = byteAt(0);
+		for (int i = this.from; i < this.to; i++){
+			if (!this.skipped(i) && this.data[i] < min){
+				min = this.data[i];
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * @param set
+	 * @return the view index of the first byte that is in set, -1 if there is none
+	 */
+	public int indexOfAny(byte[] set){
+		int k = 0;
+		for (int i = this.from; i < this.to; i++){
+			if (this.skipped(i)){ continue; }
+			for (byte b : set){
+				if (this.data[i] == b){ return k; }
+			}
+			k++;
+		}
+		if (this.padding > 0){
+			for (byte b : set){
+				if (b == BAMUtils.dot){ return k; }
+			}
+		}
+		return -1;
+	}
+
+	public boolean contains(byte b){
+		return this.indexOfAny(new byte[] { b }) >= 0;
+	}
+
+	/**
+	 * Compares the view bytes [start, end) with all of other.
+	 * @param start first view index (inclusive)
+	 * @param end last view index (exclusive)
+	 * @param other
+	 * @return
+	 */
+	public boolean regionMatches(int start, int end, byte[] other){
+		if (start < 0 || end > this.length || start > end){ return false; }
+		if (end - start != other.length){ return false; }
+		if (other.length == 0){ return true; }
+		final int dataLength = this.length - this.padding;
+		int i = start < dataLength ? this.rawIndex(start) : this.to;
+		for (int k = start; k < end; k++){
+			byte b = BAMUtils.dot;
+			if (k < dataLength){
+				i = this.nextVisible(i);
+				b = this.data[i++];
+			}
+			if (b != other[k - start]){ return false; }
+		}
+		return true;
+	}
+
+	public boolean matches(byte[] other){
+		return this.regionMatches(0, this.length, other);
+	}
+
+	/**
+	 * Same as {@link Allele#basesMatch(byte[])} without copying the view.
+	 * @param allele
+	 * @return
+	 */
+	public boolean matches(Allele allele){
+		return !allele.isSymbolic() && this.matches(allele.getBases());
+	}
+
+	/**
+	 * Same as {@link Allele#basesMatch(byte[])} on the view bytes [start, end).
+	 */
+	public boolean regionMatches(int start, int end, Allele allele){
+		return !allele.isSymbolic() && this.regionMatches(start, end, allele.getBases());
+	}
+
+	/**
+	 * @return a new array holding the bytes in this view
+	 */
+	public byte[] toBytes(){
+		final byte[] result = new byte[this.length];
+		if (this.contiguous()){
+			System.arraycopy(this.data, this.from, result, 0, this.to - this.from);
+		} else {
+			int k = 0;
+			for (int i = this.from; i < this.to; i++){
+				if (!this.skipped(i)){
+					result[k++] = this.data[i];
+				}
+			}
+		}
+		for (int k = this.length - this.padding; k < this.length; k++){
+			result[k] = BAMUtils.dot;
+		}
+		return result;
+	}
+
+	/**
+	 * @return an equal view that no longer references the backing array
+	 */
+	public ByteView compact(){
+		return new ByteView(this.toBytes());
+	}
+
+	@Override
+	public int hashCode() {
+		int h = this.hash;
+		if (h == 0){
+			// same as Arrays.hashCode(toBytes())
+			h = 1;
+			for (int i = this.from; i < this.to; i++){
+				if (!this.skipped(i)){
+					h = 31 * h + this.data[i];
+				}
+			}
+			for (int k = 0; k < this.padding; k++){
+				h = 31 * h + BAMUtils.dot;
+			}
+			this.hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * A 64 bit polynomial hash of the visible bytes, mixed at the end.  Distinct alleles at a site practically never share it, so it
+	 * can key a table that only compares the bytes to confirm a hit.  Not cached, views are usually hashed once.
+	 */
+	public long hash64() {
+		return this.hash64(0, this.length);
+	}
+
+	/**
+	 * As {@link #hash64()} of the view bytes [start, end), equal to the hash of a view of just those bytes.
+	 */
+	public long hash64(int start, int end) {
+		if (start < 0 || end > this.length || start > end){
+			throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") is outside of view with length " + this.length);
+		}
+		long h = 0;
+		int k = 0;
+		for (int i = this.from; i < this.to && k < end; i++){
+			if (this.skipped(i)){ continue; }
+			if (k >= start){
+				h = h * 0x100000001b3L + this.data[i];
+			}
+			k++;
+		}
+		for (; k < end; k++){
+			// the padding
+			if (k >= start){
+				h = h * 0x100000001b3L + BAMUtils.dot;
+			}
+		}
+		h ^= end - start;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ByteView)) {
+			return false;
+		}
+		final ByteView other = (ByteView) obj;
+		if (this.length != other.length || this.hashCode() != other.hashCode()) {
+			return false;
+		}
+		return this.contentEquals(other);
+	}
+
+	/**
+	 * As {@link #equals(Object)} without comparing the hash codes first, for callers that have already compared their own hash.
+	 */
+	boolean contentEquals(ByteView other) {
+		if (this.length != other.length) {
+			return false;
+		}
+		final int thisData = this.length - this.padding;
+		final int otherData = other.length - other.padding;
+		int i = this.from;
+		int j = other.from;
+		for (int k = 0; k < this.length; k++){
+			byte a = BAMUtils.dot;
+			byte b = BAMUtils.dot;
+			if (k < thisData){
+				i = this.nextVisible(i);
+				a = this.data[i++];
+			}
+			if (k < otherData){
+				j = other.nextVisible(j);
+				b = other.data[j++];
+			}
+			if (a != b){ return false; }
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return new String(this.toBytes());
+	}
+}
@@ -0,0 +1,255 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ReferenceSequenceFile} that can be shared by any number of worker threads.
+ * Each thread reads through its own {@link IndexedFastaSequenceFile}, so no lock is held while going to disk, and subsequences
+ * are served from an LRU cache of fixed size windows kept for each contig.  Reads around the same site are conformed against
+ * the same few windows, so these are only loaded once.
+ *
+ * Requests longer than a window, or outside of the contig, go straight to the thread's reader and are not cached.
+ * nextSequence and reset act on the calling thread's reader.
+ * @author covingto
+ *
+ */
+public class ConcurrentReferenceSequenceFile implements ReferenceSequenceFile {
+	private static Logger log = Logger.getLogger(ConcurrentReferenceSequenceFile.class.getName());
+	public static int DEFAULTWINDOWSIZE = 65536;
+	public static int DEFAULTWINDOWSPERCONTIG = 16;
+	private final File fasta;
+	private final int windowSize;
+	private final int windowsPerContig;
+	private final SAMSequenceDictionary dictionary;
+	private final Map<String, Long> contigLengths = new HashMap<String, Long>();
+	private final Map<String, Integer> contigIndices = new HashMap<String, Integer>();
+	private final ConcurrentMap<String, Map<Long, byte[]>> windows = new ConcurrentHashMap<String, Map<Long, byte[]>>();
+	private final Queue<IndexedFastaSequenceFile> readers = new ConcurrentLinkedQueue<IndexedFastaSequenceFile>();
+	private final ThreadLocal<IndexedFastaSequenceFile> reader = new ThreadLocal<IndexedFastaSequenceFile>(){
+		@Override
+		protected IndexedFastaSequenceFile initialValue(){
+			try {
+				return openReader();
+			} catch (FileNotFoundException e) {
+				throw new SAMException("Unable to open " + fasta.getAbsolutePath(), e);
+			}
+		}
+	};
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong uncached = new AtomicLong();
+
+	/**
+	 * LRU map of window index to window bases, must be accessed while holding its lock.
+	 */
+	private static class WindowCache extends LinkedHashMap<Long, byte[]> {
+		private static final long serialVersionUID = 1L;
+		private final int maxWindows;
+		WindowCache(int maxWindows){
+			super(maxWindows + 1, 1.0f, true);
+			this.maxWindows = maxWindows;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest){
+			return this.size() > this.maxWindows;
+		}
+	}
+
+	public ConcurrentReferenceSequenceFile(File fasta) throws FileNotFoundException{
+		this(fasta, DEFAULTWINDOWSIZE, DEFAULTWINDOWSPERCONTIG);
+	}
+
+	/**
+	 * @param fasta indexed fasta file, the .fai must be next to the fasta
+	 * @param windowSize number of bases loaded from disk at a time
+	 * @param windowsPerContig number of windows kept for each contig
+	 * @throws FileNotFoundException
+	 */
+	public ConcurrentReferenceSequenceFile(File fasta, int windowSize, int windowsPerContig) throws FileNotFoundException{
+		if (windowSize < 1 || windowsPerContig < 1){
+			throw new IllegalArgumentException("windowSize and windowsPerContig must be positive");
+		}
+		this.fasta = fasta;
+		this.windowSize = windowSize;
+		this.windowsPerContig = windowsPerContig;
+		final IndexedFastaSequenceFile primary = this.openReader();
+		this.reader.set(primary);
+		this.dictionary = primary.getSequenceDictionary();
+		this.loadIndex(new File(fasta.getAbsolutePath() + ".fai"));
+	}
+
+	private IndexedFastaSequenceFile openReader() throws FileNotFoundException{
+		final IndexedFastaSequenceFile newReader = new IndexedFastaSequenceFile(this.fasta);
+		this.readers.add(newReader);
+		return newReader;
+	}
+
+	/**
+	 * Reads the contig lengths from the fasta index, contigs that are not found here are never cached.
+	 * @param fai
+	 */
+	private void loadIndex(File fai){
+		if (!fai.canRead()){
+			log.log(Level.WARNING, "Could not read " + fai.getAbsolutePath() + ", reference windows will not be cached");
+			return;
+		}
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(fai));
+			String line;
+			int index = 0;
+			while ((line = br.readLine()) != null){
+				final String[] fields = line.split("\t");
+				if (fields.length < 2){ continue; }
+				this.contigLengths.put(fields[0], Long.parseLong(fields[1]));
+				this.contigIndices.put(fields[0], index);
+				index++;
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Error reading " + fai.getAbsolutePath() + ", reference windows will not be cached", e);
+			this.contigLengths.clear();
+			this.contigIndices.clear();
+		} finally {
+			if (br != null){
+				try {
+					br.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Error closing " + fai.getAbsolutePath(), e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return this.dictionary;
+	}
+
+	@Override
+	public ReferenceSequence nextSequence() {
+		return this.reader.get().nextSequence();
+	}
+
+	@Override
+	public void reset() {
+		this.reader.get().reset();
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return true;
+	}
+
+	@Override
+	public ReferenceSequence getSequence(String contig) {
+		this.uncached.incrementAndGet();
+		return this.reader.get().getSequence(contig);
+	}
+
+	@Override
+	public ReferenceSequence getSubsequenceAt(String contig, long start, long stop) {
+		final Long contigLength = this.contigLengths.get(contig);
+		if (contigLength == null || start < 1 || stop < start || stop > contigLength || stop - start + 1 > this.windowSize){
+			this.uncached.incrementAndGet();
+			return this.reader.get().getSubsequenceAt(contig, start, stop);
+		}
+		final byte[] bases = new byte[(int) (stop - start + 1)];
+		long pos = start;
+		while (pos <= stop){
+			final long w = (pos - 1) / this.windowSize;
+			final byte[] window = this.getWindow(contig, w, contigLength);
+			final int offset = (int) (pos - (w * this.windowSize + 1));
+			final int n = (int) Math.min(window.length - offset, stop - pos + 1);
+			System.arraycopy(window, offset, bases, (int) (pos - start), n);
+			pos += n;
+		}
+		return new ReferenceSequence(contig, this.contigIndices.get(contig), bases);
+	}
+
+	private byte[] getWindow(String contig, long w, long contigLength){
+		Map<Long, byte[]> cache = this.windows.get(contig);
+		if (cache == null){
+			final Map<Long, byte[]> newCache = Collections.synchronizedMap((Map<Long, byte[]>) new WindowCache(this.windowsPerContig));
+			cache = this.windows.putIfAbsent(contig, newCache);
+			if (cache == null){ cache = newCache; }
+		}
+		byte[] window = cache.get(w);
+		if (window != null){
+			this.hits.incrementAndGet();
+			return window;
+		}
+		// two threads may load the same window at once, this is cheaper than making one wait for the other
+		this.misses.incrementAndGet();
+		final long windowStart = w * this.windowSize + 1;
+		final long windowEnd = Math.min(windowStart + this.windowSize - 1, contigLength);
+		window = this.reader.get().getSubsequenceAt(contig, windowStart, windowEnd).getBases();
+		cache.put(w, window);
+		return window;
+	}
+
+	/**
+	 * @return number of subsequence requests served from cached windows
+	 */
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of windows loaded from disk
+	 */
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	/**
+	 * @return number of requests that bypassed the cache
+	 */
+	public long getUncached(){
+		return this.uncached.get();
+	}
+
+	public String getCacheSummary(){
+		final long h = this.getHits();
+		final long m = this.getMisses();
+		final double rate = h + m == 0 ? 0.0 : (double) h / (h + m);
+		return "Reference cache hits: " + h + " misses: " + m + " uncached: " + this.getUncached() + " hit rate: " + String.format("%.3f", rate);
+	}
+
+	@Override
+	public String toString(){
+		return "ConcurrentReferenceSequenceFile: " + this.fasta.getAbsolutePath();
+	}
+
+	@Override
+	public void close() throws IOException {
+		log.log(Level.INFO, this.getCacheSummary());
+		IndexedFastaSequenceFile r;
+		while ((r = this.readers.poll()) != null){
+			r.close();
+		}
+		this.windows.clear();
+	}
+
+}
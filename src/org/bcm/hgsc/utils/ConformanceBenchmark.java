@@ -0,0 +1,280 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+
+/**
+ * A simple benchmark of the read conformance hot path, in the spirit of {@link com.skjegstad.utils.BloomfilterBenchmark}.
+ * Synthetic reads are generated against a random reference for a few CIGAR profiles (pure matches, indel rich, soft clipped and
+ * long reads) and each of {@link BAMUtils#conformToReference(SAMRecord, ReferenceSequenceFile)} (from the MD tag and from a packed reference),
+ * windowed conformance, {@link ConformedRead#getAlleleRangeAtGenomicPos(int)}, {@link ConformedRead#getSeqAllele(int, int)},
+ * {@link ConformedRead#getReadAtGenomicRange(int, int)} and {@link MDVariantExtractor#extract(SAMRecord, MDVariantExtractor.Consumer)} is timed
+ * over all reads of the profile.
+ *
+ * Every benchmark is run for a number of warmup rounds followed by measured rounds, the median round is reported as operations per
+ * second and, where the JVM can count it, bytes allocated per operation.  Run this before and after touching {@link BAMUtils}.
+ * @author covingto
+ *
+ */
+public class ConformanceBenchmark {
+	private static final byte[] BASES = new byte[] {BAMUtils.A, BAMUtils.C, BAMUtils.G, BAMUtils.T};
+	private static final int WINDOW = 40;
+	static volatile long sink = 0; // results are folded in here so the work can not be optimized away
+
+	public enum ReadProfile {
+		PUREM("pure-M", 150, 1, 0, 0.01),
+		INDELRICH("indel-rich", 150, 1, 20, 0.01),
+		SOFTCLIPPED("soft-clipped", 150, 1, 60, 0.01),
+		LONGREAD("long-read", 15000, 100, 30, 0.02);
+
+		final String name;
+		final int readLength;
+		final int countDivisor;		// long reads are generated in smaller numbers
+		final int indelSpacing;		// mean number of matched bases between indels, 0 for none
+		final double mismatchRate;
+
+		ReadProfile(String name, int readLength, int countDivisor, int indelSpacing, double mismatchRate){
+			this.name = name;
+			this.readLength = readLength;
+			this.countDivisor = countDivisor;
+			this.indelSpacing = indelSpacing;
+			this.mismatchRate = mismatchRate;
+		}
+	}
+
+	/**
+	 * One timed operation over read i of the current profile, returns something derived from the result for the sink.
+	 */
+	private static abstract class Operation {
+		final String name;
+		Operation(String name){
+			this.name = name;
+		}
+		abstract long run(int i) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		Parser parser = new BasicParser();
+		options.addOption("reads", true, "Number of short reads to generate per profile, long reads are generated at 1/100 of this [20000]");
+		options.addOption("warmup", true, "Number of warmup rounds per benchmark [3]");
+		options.addOption("rounds", true, "Number of measured rounds per benchmark [5]");
+		options.addOption("seed", true, "Random seed for the synthetic data [17]");
+		options.addOption("h", false, "Print this help message");
+		HelpFormatter formatter = new HelpFormatter();
+		CommandLine line = parser.parse(options, args);
+		if (line.hasOption("h")){
+			formatter.printHelp("ConformanceBenchmark", options);
+			return;
+		}
+		final int reads = Integer.valueOf(line.getOptionValue("reads", "20000"));
+		final int warmup = Integer.valueOf(line.getOptionValue("warmup", "3"));
+		final int rounds = Integer.valueOf(line.getOptionValue("rounds", "5"));
+		final Random r = new Random(Long.valueOf(line.getOptionValue("seed", "17")));
+
+		final byte[] reference = new byte[4000000];
+		for (int i = 0; i < reference.length; i++){
+			reference[i] = BASES[r.nextInt(4)];
+		}
+		final File fasta = File.createTempFile("benchmark", ".fa");
+		fasta.deleteOnExit();
+		final File packed = new File(fasta.getAbsolutePath() + PackedReferenceSequenceFile.PACKEDEXTENSION);
+		packed.deleteOnExit();
+		writeFasta(fasta, "1", reference);
+		PackedReferenceSequenceFile.pack(fasta, packed);
+		final ReferenceSequenceFile fastaref = new PackedReferenceSequenceFile(packed);
+		final SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("1", reference.length));
+
+		final MDVariantExtractor.Consumer counter = new MDVariantExtractor.Consumer(){
+			@Override
+			public void accept(VariantCall call) {
+				sink += call.getStartpos();
+			}
+		};
+		System.out.println("benchmark\tprofile\treads\tops/s\tbytes/op");
+		for (ReadProfile profile : ReadProfile.values()){
+			final int n = Math.max(1, reads / profile.countDivisor);
+			final SAMRecord[] records = new SAMRecord[n];
+			final ConformedRead[] conformed = new ConformedRead[n];
+			final int[] sites = new int[n];
+			for (int i = 0; i < n; i++){
+				records[i] = syntheticRecord(header, reference, profile, r);
+				conformed[i] = BAMUtils.conformToReference(records[i], fastaref);
+				final int span = records[i].getAlignmentEnd() - records[i].getAlignmentStart() - WINDOW;
+				sites[i] = records[i].getAlignmentStart() + (span > 0 ? r.nextInt(span) : 0);
+			}
+			final List<Operation> operations = new ArrayList<Operation>();
+			operations.add(new Operation("conformToReference(MD)"){
+				long run(int i) throws Exception{
+					return BAMUtils.conformToReference(records[i], null).length();
+				}
+			});
+			operations.add(new Operation("conformToReference(packed)"){
+				long run(int i) throws Exception{
+					return BAMUtils.conformToReference(records[i], fastaref).length();
+				}
+			});
+			operations.add(new Operation("conformToReference(window)"){
+				long run(int i) throws Exception{
+					return BAMUtils.conformToReference(records[i], fastaref, sites[i], sites[i] + WINDOW - 1, BAMUtils.DEFAULTCONFORMFLANK).length();
+				}
+			});
+			operations.add(new Operation("getAlleleRangeAtGenomicPos"){
+				long run(int i){
+					return conformed[i].getAlleleRangeAtGenomicPos(sites[i])[1];
+				}
+			});
+			operations.add(new Operation("getSeqAllele"){
+				long run(int i){
+					return conformed[i].getSeqAllele(sites[i], sites[i] + WINDOW - 1).bytes.length;
+				}
+			});
+			operations.add(new Operation("getReadAtGenomicRange"){
+				long run(int i){
+					return conformed[i].getReadAtGenomicRange(sites[i], sites[i] + WINDOW - 1).bytes.length;
+				}
+			});
+			operations.add(new Operation("MDVariantExtractor.extract"){
+				long run(int i){
+					return MDVariantExtractor.extract(records[i], counter);
+				}
+			});
+			for (Operation op : operations){
+				measure(op, profile, n, warmup, rounds);
+			}
+		}
+		fastaref.close();
+	}
+
+	private static void measure(Operation op, ReadProfile profile, int n, int warmup, int rounds) throws Exception{
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ?
+				(com.sun.management.ThreadMXBean) threads : null;
+		final long thread = Thread.currentThread().getId();
+		final double[] rates = new double[rounds];
+		final double[] bytes = new double[rounds];
+		for (int round = -warmup; round < rounds; round++){
+			long acc = 0;
+			final long allocatedStart = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+			final long start = System.nanoTime();
+			for (int i = 0; i < n; i++){
+				acc += op.run(i);
+			}
+			final long elapsed = System.nanoTime() - start;
+			final long allocatedEnd = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+			sink += acc;
+			if (round >= 0){
+				rates[round] = n / (elapsed / 1e9);
+				bytes[round] = (double) (allocatedEnd - allocatedStart) / n;
+			}
+		}
+		Arrays.sort(rates);
+		Arrays.sort(bytes);
+		System.out.println(op.name + "\t" + profile.name + "\t" + n + "\t" + String.format("%.0f", rates[rounds / 2]) + "\t" +
+				(allocations == null ? "NA" : String.format("%.0f", bytes[rounds / 2])));
+	}
+
+	private static void writeFasta(File fasta, String contig, byte[] bases) throws Exception{
+		final PrintWriter out = new PrintWriter(fasta);
+		out.print(">" + contig + "\n");
+		for (int i = 0; i < bases.length; i += 60){
+			out.print(new String(bases, i, Math.min(60, bases.length - i)));
+			out.print("\n");
+		}
+		out.close();
+	}
+
+	/**
+	 * Builds a read from the reference with mismatches, indels and soft clips according to the profile, along with its CIGAR and MD tag.
+	 * The CIGAR always starts and ends with an aligned block so that indels are never at the ends of the alignment.
+	 */
+	static SAMRecord syntheticRecord(SAMFileHeader header, byte[] reference, ReadProfile profile, Random r){
+		final boolean clipped = profile == ReadProfile.SOFTCLIPPED;
+		final int leftClip = clipped ? 5 + r.nextInt(26) : 0;
+		final int rightClip = clipped ? 5 + r.nextInt(26) : 0;
+		final int aligned = profile.readLength - leftClip - rightClip;
+		// leave room for the clips and for deletions growing the reference span
+		final int start = 100 + r.nextInt(reference.length - 2 * profile.readLength - 200);
+		final byte[] seq = new byte[profile.readLength];
+		final byte[] qual = new byte[profile.readLength];
+		final StringBuilder cigar = new StringBuilder();
+		final StringBuilder md = new StringBuilder();
+		int s = 0;
+		int g = start - 1; // index into the reference
+		int matchRun = 0;
+		if (leftClip > 0){
+			for (int i = 0; i < leftClip; i++){ seq[s++] = BASES[r.nextInt(4)]; }
+			cigar.append(leftClip).append('S');
+		}
+		final int alignedEnd = s + aligned;
+		while (s < alignedEnd){
+			// an aligned block, then maybe an indel if there is room for another aligned block after it
+			int block = profile.indelSpacing == 0 ? alignedEnd - s : Math.max(1, (int) (profile.indelSpacing * (0.5 + r.nextDouble())));
+			block = Math.min(block, alignedEnd - s);
+			for (int i = 0; i < block; i++){
+				final byte base = reference[g];
+				if (r.nextDouble() < profile.mismatchRate){
+					seq[s] = BASES[(Arrays.binarySearch(BASES, base) + 1 + r.nextInt(3)) % 4];
+					md.append(matchRun).append((char) base);
+					matchRun = 0;
+				} else {
+					seq[s] = base;
+					matchRun++;
+				}
+				s++;
+				g++;
+			}
+			cigar.append(block).append('M');
+			final int indel = 1 + r.nextInt(5);
+			if (profile.indelSpacing == 0 || alignedEnd - s <= indel + 1){
+				continue;
+			}
+			if (r.nextBoolean()){
+				for (int i = 0; i < indel; i++){ seq[s++] = BASES[r.nextInt(4)]; }
+				cigar.append(indel).append('I');
+			} else {
+				md.append(matchRun).append('^').append(new String(reference, g, indel));
+				matchRun = 0;
+				g += indel;
+				cigar.append(indel).append('D');
+			}
+		}
+		md.append(matchRun);
+		if (rightClip > 0){
+			for (int i = 0; i < rightClip; i++){ seq[s++] = BASES[r.nextInt(4)]; }
+			cigar.append(rightClip).append('S');
+		}
+		for (int i = 0; i < qual.length; i++){
+			qual[i] = (byte) (2 + r.nextInt(39));
+		}
+		final SAMRecord rec = new SAMRecord(header);
+		rec.setReadName("synthetic-" + profile.name + "-" + start);
+		rec.setReferenceName(header.getSequence(0).getSequenceName());
+		rec.setAlignmentStart(start);
+		rec.setCigarString(cigar.toString());
+		rec.setReadBases(seq);
+		rec.setBaseQualities(qual);
+		rec.setMappingQuality(60);
+		rec.setAttribute("MD", md.toString());
+		return rec;
+	}
+}
@@ -0,0 +1,131 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+
+/**
+ * A sliding window of conformed reads for one BAM, to be used by one thread.  Regions are expected to move left to right along a
+ * contig, as the allele sets from a VCF do.  When the next region starts at or past the start of the window only the reads that start
+ * past the right edge of the window are fetched and conformed, and the reads that end before the new region are dropped.  A new contig
+ * or a step back starts a new window.  Reads in dense regions are then fetched and conformed once instead of once per region.
+ *
+ * {@link #getReads(String, int, int)} returns the same reads as a query of the region would, in the same order, so the window is
+ * invisible to the caller.  Reads are conformed over their whole length since a window conformed read would not serve the next region.
+ * The returned reads are shared with later calls and must not be changed.
+ * @author covingto
+ *
+ */
+public class ConformedReadCache {
+	private final BAMInterface bi;
+	private final ReadFilter filter;
+	private final ReferenceSequenceFile fastaref;
+	private final int readAhead;
+	// reads overlapping [winStart, winEnd] in order of alignment start
+	private final List<ConformedRead> window = new ArrayList<ConformedRead>();
+	private String chr = null;
+	private int winStart = 0;
+	private int winEnd = 0;
+	private long fetched = 0;
+	private long served = 0;
+
+	/**
+	 * @param bi the BAM, readers are leased for each fetch
+	 * @param filter reads to keep, checked before a read is conformed
+	 * @param fastaref
+	 * @param readAhead see {@link ReadAheadIterator}
+	 */
+	public ConformedReadCache(BAMInterface bi, ReadFilter filter, ReferenceSequenceFile fastaref, int readAhead){
+		this.bi = bi;
+		this.filter = filter;
+		this.fastaref = fastaref;
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * @return the reads that pass the filter and are aligned to any part of [start, end], in order of alignment start
+	 * @throws IOException if the reads can not be fetched, the window is emptied
+	 */
+	public List<ConformedRead> getReads(String chr, int start, int end) throws IOException{
+		if (!chr.equals(this.chr) || start < this.winStart){
+			this.window.clear();
+			this.chr = chr;
+			this.winStart = start;
+			this.winEnd = end;
+			this.fetch(start, end, Integer.MIN_VALUE);
+		} else {
+			// drop what the new region has passed
+			int kept = 0;
+			for (int i = 0; i < this.window.size(); i++){
+				final ConformedRead cr = this.window.get(i);
+				if (cr.alignmentEnd() >= start){
+					this.window.set(kept++, cr);
+				}
+			}
+			this.window.subList(kept, this.window.size()).clear();
+			this.winStart = start;
+		}
+		if (end > this.winEnd){
+			// reads starting at or before the old right edge that reach the region cover that edge, so are already in the window
+			this.fetch(Math.max(this.winEnd + 1, start), end, this.winEnd + 1);
+			this.winEnd = end;
+		}
+		final List<ConformedRead> reads = new ArrayList<ConformedRead>(this.window.size());
+		for (int i = 0; i < this.window.size(); i++){
+			final ConformedRead cr = this.window.get(i);
+			if (cr.alignmentStart() > end){ break; }
+			if (cr.alignmentEnd() >= start){
+				reads.add(cr);
+			}
+		}
+		this.served += reads.size();
+		return reads;
+	}
+
+	private void fetch(int start, int end, int minAlignmentStart) throws IOException{
+		final ReadFilter newReads = new ReadFilter().alignmentStartWithin(minAlignmentStart, Integer.MAX_VALUE).and(this.filter);
+		final SamReader sam = this.bi.leaseSamReader();
+		// records are read ahead on an I/O thread and conformed here
+		final BAMUtils.CRIterator cri = new BAMUtils.CRIterator(BAMUtils.getRecordsIterator(sam, this.chr, start, end, newReads, this.readAhead),
+				this.chr, start, end, new ReadFilter(), this.fastaref, -1);
+		boolean healthy = false;
+		try {
+			while (cri.hasNext()){
+				final ConformedRead cr = cri.next();
+				if (cr != null){
+					this.window.add(cr);
+					this.fetched++;
+				}
+			}
+			healthy = true;
+		} finally {
+			cri.close();
+			if (healthy){
+				this.bi.releaseSamReader(sam);
+			} else {
+				this.bi.discardSamReader(sam);
+				this.window.clear();
+				this.chr = null;
+			}
+		}
+	}
+
+	/**
+	 * @return reads conformed by this cache
+	 */
+	public long getFetched(){
+		return this.fetched;
+	}
+
+	/**
+	 * @return reads returned by this cache, a read is counted once for each region it was returned for
+	 */
+	public long getServed(){
+		return this.served;
+	}
+}
@@ -0,0 +1,122 @@
+package org.bcm.hgsc.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Caps the depth at a site by keeping at most maxDepth of the reads offered to it.  This is reservoir sampling with the random draw
+ * replaced by a hash of the read name: the reads with the smallest hashes are kept.  Each read is equally likely to be kept, but the
+ * same reads are kept every time whatever order they are offered in, so capped results can be reproduced, and both mates of a pair
+ * are kept or dropped together.
+ *
+ * A sampler is for one site of one sample and is not thread safe.
+ * Ex;
+ * 	DepthSampler<SAMRecord> sampler = new DepthSampler<SAMRecord>(1000);
+ * 	for (SAMRecord rec : reads){ sampler.offer(rec.getReadName(), rec); }
+ * 	List<SAMRecord> kept = sampler.getSample();
+ * @author covingto
+ *
+ * @param <T>
+ */
+public class DepthSampler<T> {
+	private final int maxDepth;
+	// the kept read with the largest hash is at the head, it is the first to go
+	private final PriorityQueue<Sampled<T>> kept;
+	private int seen = 0;
+
+	private static class Sampled<T> {
+		private final long key;
+		private final int order;
+		private final T item;
+
+		private Sampled(long key, int order, T item){
+			this.key = key;
+			this.order = order;
+			this.item = item;
+		}
+	}
+
+	private static final Comparator<Sampled<?>> BY_KEY = new Comparator<Sampled<?>>(){
+		@Override
+		public int compare(Sampled<?> a, Sampled<?> b) {
+			final int c = Long.compare(a.key, b.key);
+			return c != 0 ? c : Integer.compare(a.order, b.order);
+		}
+	};
+
+	private static final Comparator<Sampled<?>> BY_ORDER = new Comparator<Sampled<?>>(){
+		@Override
+		public int compare(Sampled<?> a, Sampled<?> b) {
+			return Integer.compare(a.order, b.order);
+		}
+	};
+
+	/**
+	 * @param maxDepth reads to keep, must be positive
+	 */
+	public DepthSampler(int maxDepth){
+		if (maxDepth < 1){
+			throw new IllegalArgumentException("maxDepth must be positive");
+		}
+		this.maxDepth = maxDepth;
+		this.kept = new PriorityQueue<Sampled<T>>(Math.min(maxDepth, 1024), Collections.reverseOrder(BY_KEY));
+	}
+
+	/**
+	 * @param readName decides whether the read is kept
+	 * @param item returned by {@link #getSample()} if the read is kept
+	 */
+	public void offer(String readName, T item){
+		final Sampled<T> s = new Sampled<T>(key(readName), this.seen++, item);
+		if (this.kept.size() < this.maxDepth){
+			this.kept.add(s);
+		} else if (BY_KEY.compare(s, this.kept.peek()) < 0){
+			this.kept.poll();
+			this.kept.add(s);
+		}
+	}
+
+	/**
+	 * @return the kept reads in the order they were offered
+	 */
+	public List<T> getSample(){
+		final List<Sampled<T>> sampled = new ArrayList<Sampled<T>>(this.kept);
+		Collections.sort(sampled, BY_ORDER);
+		final List<T> items = new ArrayList<T>(sampled.size());
+		for (Sampled<T> s : sampled){
+			items.add(s.item);
+		}
+		return items;
+	}
+
+	/**
+	 * @return the number of reads offered, the depth before capping
+	 */
+	public int getSeen(){
+		return this.seen;
+	}
+
+	public int getMaxDepth(){
+		return this.maxDepth;
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the name, mixed so that names differing in their last characters spread over the whole range.
+	 */
+	static long key(String readName){
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < readName.length(); i++){
+			h ^= readName.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
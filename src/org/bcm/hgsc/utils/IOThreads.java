@@ -0,0 +1,67 @@
+package org.bcm.hgsc.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared pool for work that spends its time blocked on BAM, VCF and reference reads (BGZF blocks and index seeks) rather than on a core.
+ * There is no thread count to tune: a thread is started for every task that finds none idle, and idle threads stop after a minute, so
+ * as many reads are in flight as the callers submit.  The callers bound that themselves (the allele sets in flight, the read ahead
+ * buffers), or use a bounded {@link #pool(int)}, and keep work that needs a core, conforming, resolving and genotyping, on a pool of {@link #cores()} threads.
+ * Threads come and go, so tasks here must not open per thread resources; {@link BAMInterface#leaseSharedSamReader()} gives readers any
+ * thread can use, and the reference, which conforming reads through per thread readers, stays on the core pool.
+ *
+ * The threads are daemons so a tool that forgets a task still exits, the pool is never shut down.
+ * @author covingto
+ *
+ */
+public class IOThreads {
+	private static final ThreadFactory threads = new ThreadFactory(){
+		private final AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "io-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	};
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), threads);
+
+	private IOThreads(){}
+
+	/**
+	 * @return the shared pool, tasks submitted to it must not wait on CPU work queued behind them on a bounded pool
+	 */
+	public static ExecutorService pool(){
+		return pool;
+	}
+
+	/**
+	 * A pool like {@link #pool()} that starts threads as needed and stops them after a minute idle, but never runs more than maxThreads
+	 * at once; further tasks wait in order.  For callers that hold a resource per running task, such as a reader, and must bound it.
+	 * Shut it down once done.
+	 */
+	public static ThreadPoolExecutor pool(int maxThreads){
+		final ThreadPoolExecutor bounded = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), threads);
+		bounded.allowCoreThreadTimeOut(true);
+		return bounded;
+	}
+
+	/**
+	 * @return the number of threads for a pool of CPU work
+	 */
+	public static int cores(){
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public static String getSummary(){
+		return "I/O threads ran " + pool.getCompletedTaskCount() + " tasks on at most " + pool.getLargestPoolSize() + " threads";
+	}
+}
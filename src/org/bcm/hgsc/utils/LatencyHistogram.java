@@ -0,0 +1,75 @@
+package org.bcm.hgsc.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with power of two buckets in microseconds, bucket i holds [2^(i-1), 2^i) us.  Recording is lock free so
+ * it can be shared by all workers.  Percentiles are the upper bound of the bucket they fall in, so are within a factor of two.
+ * @author covingto
+ *
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 40;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos){
+		final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		this.buckets.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = this.maxNanos.get()) && !this.maxNanos.compareAndSet(max, nanos)){
+			// another thread raised the max, try again
+		}
+	}
+
+	/**
+	 * Records the time since start, from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long start){
+		this.record(System.nanoTime() - start);
+	}
+
+	public long getCount(){
+		return this.count.get();
+	}
+
+	public double getMeanMillis(){
+		final long n = this.count.get();
+		return n == 0 ? 0 : this.totalNanos.get() / (n * 1e6);
+	}
+
+	public double getMaxMillis(){
+		return this.maxNanos.get() / 1e6;
+	}
+
+	/**
+	 * @param q in (0, 1]
+	 * @return the upper bound in milliseconds of the bucket holding the q'th latency
+	 */
+	public double getPercentileMillis(double q){
+		final long n = this.count.get();
+		if (n == 0){ return 0; }
+		final long rank = (long) Math.ceil(q * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			seen += this.buckets.get(i);
+			if (seen >= rank){
+				return Math.min((1L << i) / 1e3, this.getMaxMillis());
+			}
+		}
+		return this.getMaxMillis();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("n=%d mean=%.2fms p50=%.2fms p95=%.2fms max=%.2fms", this.getCount(), this.getMeanMillis(),
+				this.getPercentileMillis(0.5), this.getPercentileMillis(0.95), this.getMaxMillis());
+	}
+}
@@ -0,0 +1,130 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+
+/**
+ * Finds the differences between a read and the reference by walking the CIGAR and the MD tag side by side.  No reference
+ * array is built and the MD tag is parsed in place, runs of matching bases are skipped in one step, so the cost is close to
+ * the number of CIGAR elements and MD tokens rather than the length of the read.  Calls are handed to a {@link Consumer} as
+ * they are found.
+ *
+ * Calls use 1 based genomic positions;
+ * 	SNV:		start = end = the mismatched position, reference and variant are the single bases
+ * 	deletion:	start = the first deleted position, end = start + length, variant is "-"
+ * 	insertion:	start = the reference position following the insertion, end = start + 1, reference is "-"
+ * The base quality of a deletion is that of the read base following it.
+ * @author covingto
+ *
+ */
+public final class MDVariantExtractor {
+	private static final String[] BASESTRINGS = new String[256];
+	static {
+		for (int i = 0; i < BASESTRINGS.length; i++){
+			BASESTRINGS[i] = String.valueOf((char) i);
+		}
+	}
+
+	public interface Consumer {
+		void accept(VariantCall call);
+	}
+
+	private MDVariantExtractor(){}
+
+	private static String baseString(byte b){
+		return BASESTRINGS[b & 0xff];
+	}
+
+	/**
+	 * Passes every SNV, insertion and deletion in the read to the consumer, in read order.
+	 * @param rec a mapped read with an MD tag
+	 * @param consumer
+	 * @return the number of calls made
+	 * @throws SAMException if the read has no MD tag or the MD tag does not agree with the CIGAR
+	 */
+	public static int extract(SAMRecord rec, Consumer consumer){
+		final String md = rec.getStringAttribute(SAMTag.MD.name());
+		if (md == null) {
+			throw new SAMException("Cannot find variants in SAMRecord with no MD tag, read: " + rec.getReadName());
+		}
+		final Cigar cigar = rec.getCigar();
+		final byte[] seq = rec.getReadBases();
+		if (seq.length == 0){
+			throw new SAMException("Cannot find variants in SAMRecord with no bases, read: " + rec.getReadName());
+		}
+		final byte[] qual = rec.getBaseQualities();
+		final boolean hasQual = qual != null && qual.length == seq.length;
+		final int chr = rec.getReferenceIndex();
+		final int mapQual = rec.getMappingQuality();
+		final int mdLength = md.length();
+		int mdIndex = 0;
+		int matches = 0;	// matching bases left in the current MD number
+		int seqPos = 0;
+		int gpos = rec.getAlignmentStart();
+		int calls = 0;
+		for (final CigarElement cigEl : cigar.getCigarElements()){
+			final int cigElLen = cigEl.getLength();
+			final CigarOperator cigElOp = cigEl.getOperator();
+			if (cigElOp == CigarOperator.MATCH_OR_MISMATCH || cigElOp == CigarOperator.EQ || cigElOp == CigarOperator.X){
+				int i = 0;
+				while (i < cigElLen){
+					if (matches > 0){
+						final int skip = Math.min(matches, cigElLen - i);
+						matches -= skip;
+						i += skip;
+						continue;
+					}
+					if (mdIndex >= mdLength){
+						throw new SAMException("MD tag " + md + " is shorter than the CIGAR " + cigar + " in read: " + rec.getReadName());
+					}
+					final char c = md.charAt(mdIndex);
+					if (c >= '0' && c <= '9'){
+						while (mdIndex < mdLength && md.charAt(mdIndex) >= '0' && md.charAt(mdIndex) <= '9'){
+							matches = matches * 10 + (md.charAt(mdIndex) - '0');
+							mdIndex++;
+						}
+					} else if (c == '^'){
+						throw new SAMException("MD tag " + md + " has a deletion inside an aligned block of the CIGAR " + cigar + " in read: " + rec.getReadName());
+					} else {
+						// a mismatched base
+						mdIndex++;
+						final int p = seqPos + i;
+						consumer.accept(new VariantCall(baseString((byte) c), baseString(seq[p]), gpos + i, gpos + i, chr,
+								hasQual ? qual[p] : 0, mapQual));
+						calls++;
+						i++;
+					}
+				}
+				seqPos += cigElLen;
+				gpos += cigElLen;
+			} else if (cigElOp == CigarOperator.DELETION){
+				// zero or more 0 counts come before the deletion
+				while (mdIndex < mdLength && md.charAt(mdIndex) == '0'){ mdIndex++; }
+				if (matches > 0 || mdIndex + cigElLen >= mdLength || md.charAt(mdIndex) != '^'){
+					throw new SAMException("MD tag " + md + " does not have the deletion of the CIGAR " + cigar + " in read: " + rec.getReadName());
+				}
+				final String reference = md.substring(mdIndex + 1, mdIndex + 1 + cigElLen);
+				mdIndex += cigElLen + 1;
+				final int q = Math.min(seqPos, seq.length - 1);
+				consumer.accept(new VariantCall(reference, "-", gpos, gpos + cigElLen, chr, hasQual ? qual[q] : 0, mapQual));
+				calls++;
+				gpos += cigElLen;
+			} else if (cigElOp == CigarOperator.INSERTION){
+				consumer.accept(new VariantCall("-", new String(seq, seqPos, cigElLen), gpos, gpos + 1, chr, hasQual ? qual[seqPos] : 0, mapQual));
+				calls++;
+				seqPos += cigElLen;
+			} else if (cigElOp == CigarOperator.SOFT_CLIP){
+				seqPos += cigElLen;
+			} else if (cigElOp == CigarOperator.N){
+				// skipped bases are not part of the MD tag
+				gpos += cigElLen;
+			}
+			// hard clips and padding take up neither read nor reference
+		}
+		return calls;
+	}
+}
@@ -0,0 +1,98 @@
+package org.bcm.hgsc.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the memory held by tasks that are queued or running, so a producer can not fill the heap faster than the tasks finish.
+ * The memory a task will need is only known once it has run for a while (once its reads are fetched), so the producer
+ * {@link #reserve()}s an estimate before submitting the task, the task {@link #settle(long, long)}s the reservation to what it actually
+ * holds and {@link #release(long)}s it when done.  The estimate is a running average of the settled sizes.
+ *
+ * reserve blocks while the memory in use plus the estimate is over the limit, unless nothing is in use so a single task larger than the
+ * limit still runs.  Settling never blocks, so running tasks may take the usage over the limit, and no new tasks are submitted until
+ * enough of them finish.
+ * @author covingto
+ *
+ */
+public class MemoryBudget {
+	private final long limit;
+	private long used = 0;
+	private long peak = 0;
+	private double estimate;
+	private long waitNanos = 0;
+
+	/**
+	 * @param limit bytes
+	 * @param initialEstimate bytes reserved for each task until the first is settled
+	 */
+	public MemoryBudget(long limit, long initialEstimate){
+		if (limit < 1){
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		this.limit = limit;
+		this.estimate = Math.max(0, initialEstimate);
+	}
+
+	/**
+	 * Reserves the estimated size of one task, blocking until it fits.
+	 * @return the bytes reserved, to be given to {@link #settle(long, long)} or {@link #release(long)}
+	 * @throws InterruptedException
+	 */
+	public synchronized long reserve() throws InterruptedException{
+		final long bytes = (long) this.estimate;
+		if (this.used > 0 && this.used + bytes > this.limit){
+			final long start = System.nanoTime();
+			while (this.used > 0 && this.used + bytes > this.limit){
+				this.wait();
+			}
+			this.waitNanos += System.nanoTime() - start;
+		}
+		this.add(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Replaces a reservation with the bytes the task actually holds and updates the estimate.
+	 * @return actual, to be released when the task is done
+	 */
+	public synchronized long settle(long reserved, long actual){
+		this.add(actual - reserved);
+		this.estimate += (actual - this.estimate) / 8;
+		return actual;
+	}
+
+	public synchronized void release(long bytes){
+		this.add(-bytes);
+	}
+
+	private void add(long bytes){
+		this.used += bytes;
+		this.peak = Math.max(this.peak, this.used);
+		if (bytes < 0){
+			this.notifyAll();
+		}
+	}
+
+	public long getLimit(){
+		return this.limit;
+	}
+
+	public synchronized long getUsed(){
+		return this.used;
+	}
+
+	public synchronized long getPeak(){
+		return this.peak;
+	}
+
+	public synchronized long getEstimate(){
+		return (long) this.estimate;
+	}
+
+	/**
+	 * @return total milliseconds spent blocked in {@link #reserve()}
+	 */
+	public synchronized long getWaitMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(this.waitNanos);
+	}
+}
@@ -0,0 +1,412 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+
+/**
+ * A reference genome stored 2 bits per base and memory mapped, see {@link #pack(File, File)} for the one time conversion from fasta.
+ * Bases other than ACGT (N and the other ambiguity codes) and soft masked (lower case) bases are kept as lists of runs, so that
+ * subsequences are returned exactly as {@link htsjdk.samtools.reference.IndexedFastaSequenceFile} would return them.
+ *
+ * The mapped buffers are only read with absolute gets, so any number of threads can share one instance without locking.
+ * Bases are decoded straight into the array of the returned {@link ReferenceSequence}.
+ *
+ * Layout of the file, all numbers are big endian;
+ * <pre>
+ * 	packed bases for each contig, 4 bases per byte with the first base in the high bits, A=0 C=1 G=2 T=3
+ * 	index;	int contig count, then for each contig;
+ * 		name (modified UTF-8), long length, long offset of the packed bases,
+ * 		int run count, then long start, int length, byte base for each run of non ACGT bases,
+ * 		int run count, then long start, int length for each run of lower case bases
+ * 	long offset of the index, int version, int magic
+ * </pre>
+ * @author covingto
+ *
+ */
+public class PackedReferenceSequenceFile implements ReferenceSequenceFile {
+	private static Logger log = Logger.getLogger(PackedReferenceSequenceFile.class.getName());
+	public static final String PACKEDEXTENSION = ".pack";
+	private static final int MAGIC = 0x4B524750; // KRGP
+	private static final int VERSION = 1;
+	private static final int TRAILERSIZE = 16;
+	private static final byte[] BASES = new byte[] { 'A', 'C', 'G', 'T' };
+	private static final byte[] CODES = new byte[256];
+	static {
+		CODES['C'] = 1; CODES['c'] = 1;
+		CODES['G'] = 2; CODES['g'] = 2;
+		CODES['T'] = 3; CODES['t'] = 3;
+	}
+	private final File file;
+	private final List<PackedContig> contigs = new ArrayList<PackedContig>();
+	private final Map<String, PackedContig> contigMap = new HashMap<String, PackedContig>();
+	private final SAMSequenceDictionary dictionary;
+	private int nextContig = 0;
+
+	private static class PackedContig {
+		final String name;
+		final int index;
+		final long length;
+		final MappedByteBuffer data;
+		final long[] runStarts;
+		final int[] runLengths;
+		final byte[] runBases;
+		final long[] maskStarts;
+		final int[] maskLengths;
+
+		PackedContig(String name, int index, long length, MappedByteBuffer data, long[] runStarts, int[] runLengths, byte[] runBases,
+				long[] maskStarts, int[] maskLengths){
+			this.name = name;
+			this.index = index;
+			this.length = length;
+			this.data = data;
+			this.runStarts = runStarts;
+			this.runLengths = runLengths;
+			this.runBases = runBases;
+			this.maskStarts = maskStarts;
+			this.maskLengths = maskLengths;
+		}
+	}
+
+	public PackedReferenceSequenceFile(File file) throws IOException{
+		this.file = file;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			if (size < TRAILERSIZE){
+				throw new IOException(file.getAbsolutePath() + " is not a packed reference");
+			}
+			final ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILERSIZE, TRAILERSIZE);
+			final long indexOffset = trailer.getLong();
+			final int version = trailer.getInt();
+			if (trailer.getInt() != MAGIC){
+				throw new IOException(file.getAbsolutePath() + " is not a packed reference");
+			}
+			if (version != VERSION){
+				throw new IOException("Packed reference " + file.getAbsolutePath() + " has version " + version + ", expected " + VERSION);
+			}
+			raf.seek(indexOffset);
+			final int ncontigs = raf.readInt();
+			final List<SAMSequenceRecord> records = new ArrayList<SAMSequenceRecord>(ncontigs);
+			for (int c = 0; c < ncontigs; c++){
+				final String name = raf.readUTF();
+				final long length = raf.readLong();
+				final long offset = raf.readLong();
+				final int nruns = raf.readInt();
+				final long[] runStarts = new long[nruns];
+				final int[] runLengths = new int[nruns];
+				final byte[] runBases = new byte[nruns];
+				for (int i = 0; i < nruns; i++){
+					runStarts[i] = raf.readLong();
+					runLengths[i] = raf.readInt();
+					runBases[i] = raf.readByte();
+				}
+				final int nmasks = raf.readInt();
+				final long[] maskStarts = new long[nmasks];
+				final int[] maskLengths = new int[nmasks];
+				for (int i = 0; i < nmasks; i++){
+					maskStarts[i] = raf.readLong();
+					maskLengths[i] = raf.readInt();
+				}
+				final long packedLength = (length + 3) / 4;
+				if (packedLength > Integer.MAX_VALUE){
+					throw new IOException("Contig " + name + " is too long to map");
+				}
+				final PackedContig contig = new PackedContig(name, c, length, channel.map(FileChannel.MapMode.READ_ONLY, offset, packedLength),
+						runStarts, runLengths, runBases, maskStarts, maskLengths);
+				this.contigs.add(contig);
+				this.contigMap.put(name, contig);
+				records.add(new SAMSequenceRecord(name, (int) Math.min(length, Integer.MAX_VALUE)));
+			}
+			this.dictionary = new SAMSequenceDictionary(records);
+		} finally {
+			// the mapped buffers stay valid once the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file ends with the packed reference trailer
+	 */
+	public static boolean isPacked(File file){
+		if (!file.isFile() || file.length() < TRAILERSIZE){ return false; }
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek(file.length() - 4);
+				return raf.readInt() == MAGIC;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Opens a reference that can be shared by all worker threads.  This is the packed reference if reference is one, or if
+	 * reference + {@link #PACKEDEXTENSION} is one, otherwise reference is read as an indexed fasta through a {@link ConcurrentReferenceSequenceFile}.
+	 * @param reference
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReferenceSequenceFile openShared(File reference) throws IOException{
+		if (isPacked(reference)){
+			return new PackedReferenceSequenceFile(reference);
+		}
+		final File packed = new File(reference.getAbsolutePath() + PACKEDEXTENSION);
+		if (isPacked(packed)){
+			log.log(Level.INFO, "Using packed reference " + packed.getAbsolutePath());
+			return new PackedReferenceSequenceFile(packed);
+		}
+		return new ConcurrentReferenceSequenceFile(reference);
+	}
+
+	@Override
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return this.dictionary;
+	}
+
+	/**
+	 * Shared by all threads, unlike the other methods this one is synchronized.
+	 */
+	@Override
+	public synchronized ReferenceSequence nextSequence() {
+		if (this.nextContig >= this.contigs.size()){ return null; }
+		final PackedContig contig = this.contigs.get(this.nextContig++);
+		return this.getSubsequenceAt(contig.name, 1, contig.length);
+	}
+
+	@Override
+	public synchronized void reset() {
+		this.nextContig = 0;
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return true;
+	}
+
+	@Override
+	public ReferenceSequence getSequence(String contig) {
+		final PackedContig pc = this.getContig(contig);
+		return this.getSubsequenceAt(contig, 1, pc.length);
+	}
+
+	private PackedContig getContig(String contig){
+		final PackedContig pc = this.contigMap.get(contig);
+		if (pc == null){
+			throw new SAMException("Unable to find entry for contig: " + contig);
+		}
+		return pc;
+	}
+
+	@Override
+	public ReferenceSequence getSubsequenceAt(String contig, long start, long stop) {
+		final PackedContig pc = this.getContig(contig);
+		if (start > stop + 1){
+			throw new SAMException(String.format("Malformed query; start point %d lies after end point %d", start, stop));
+		}
+		if (start < 1 || stop > pc.length){
+			throw new SAMException("Query " + contig + ":" + start + "-" + stop + " is outside of contig with length " + pc.length);
+		}
+		if (stop - start + 1 > Integer.MAX_VALUE){
+			throw new SAMException("Query " + contig + ":" + start + "-" + stop + " is too long");
+		}
+		final byte[] bases = new byte[(int) (stop - start + 1)];
+		final long from = start - 1;
+		final long to = stop;
+		for (long p = from; p < to; p++){
+			final int packed = pc.data.get((int) (p >>> 2));
+			bases[(int) (p - from)] = BASES[(packed >>> (6 - 2 * (int) (p & 3))) & 3];
+		}
+		// non ACGT bases
+		for (int r = firstRun(pc.runStarts, pc.runLengths, from); r < pc.runStarts.length && pc.runStarts[r] < to; r++){
+			final long runEnd = Math.min(pc.runStarts[r] + pc.runLengths[r], to);
+			for (long p = Math.max(pc.runStarts[r], from); p < runEnd; p++){
+				bases[(int) (p - from)] = pc.runBases[r];
+			}
+		}
+		// soft masked bases
+		for (int r = firstRun(pc.maskStarts, pc.maskLengths, from); r < pc.maskStarts.length && pc.maskStarts[r] < to; r++){
+			final long runEnd = Math.min(pc.maskStarts[r] + pc.maskLengths[r], to);
+			for (long p = Math.max(pc.maskStarts[r], from); p < runEnd; p++){
+				final int i = (int) (p - from);
+				if (bases[i] >= 'A' && bases[i] <= 'Z'){
+					bases[i] += 'a' - 'A';
+				}
+			}
+		}
+		return new ReferenceSequence(pc.name, pc.index, bases);
+	}
+
+	/**
+	 * Index of the first run that ends after pos, runs are sorted and do not overlap.
+	 */
+	private static int firstRun(long[] starts, int[] lengths, long pos){
+		int lo = 0;
+		int hi = starts.length;
+		while (lo < hi){
+			final int mid = (lo + hi) >>> 1;
+			if (starts[mid] + lengths[mid] <= pos){
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	@Override
+	public String toString(){
+		return "PackedReferenceSequenceFile: " + this.file.getAbsolutePath();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the mapped buffers are released when this object is collected
+	}
+
+	/**
+	 * Converts a fasta file to the packed format.  One contig at a time is held in memory.
+	 * @param fasta
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void pack(File fasta, File output) throws IOException{
+		final ReferenceSequenceFile reader = ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 20));
+		final List<String> names = new ArrayList<String>();
+		final List<Long> lengths = new ArrayList<Long>();
+		final List<Long> offsets = new ArrayList<Long>();
+		final List<List<long[]>> runs = new ArrayList<List<long[]>>();
+		final List<List<long[]>> masks = new ArrayList<List<long[]>>();
+		long offset = 0;
+		try {
+			ReferenceSequence seq;
+			while ((seq = reader.nextSequence()) != null){
+				final byte[] bases = seq.getBases();
+				log.log(Level.INFO, "Packing " + seq.getName() + " (" + bases.length + " bases)");
+				final List<long[]> contigRuns = new ArrayList<long[]>();
+				final List<long[]> contigMasks = new ArrayList<long[]>();
+				int packed = 0;
+				for (int i = 0; i < bases.length; i++){
+					final byte b = bases[i];
+					final boolean lower = b >= 'a' && b <= 'z';
+					final byte upper = lower ? (byte) (b - ('a' - 'A')) : b;
+					if (upper != 'A' && upper != 'C' && upper != 'G' && upper != 'T'){
+						addToRun(contigRuns, i, upper);
+					}
+					if (lower){
+						addToRun(contigMasks, i, 0);
+					}
+					packed = (packed << 2) | CODES[b & 0xff];
+					if ((i & 3) == 3){
+						out.write(packed);
+						packed = 0;
+					}
+				}
+				if ((bases.length & 3) != 0){
+					out.write(packed << (2 * (4 - (bases.length & 3))));
+				}
+				names.add(seq.getName());
+				lengths.add((long) bases.length);
+				offsets.add(offset);
+				runs.add(contigRuns);
+				masks.add(contigMasks);
+				offset += (bases.length + 3) / 4;
+			}
+			final long indexOffset = offset;
+			out.writeInt(names.size());
+			for (int c = 0; c < names.size(); c++){
+				out.writeUTF(names.get(c));
+				out.writeLong(lengths.get(c));
+				out.writeLong(offsets.get(c));
+				out.writeInt(runs.get(c).size());
+				for (long[] run : runs.get(c)){
+					out.writeLong(run[0]);
+					out.writeInt((int) run[1]);
+					out.writeByte((int) run[2]);
+				}
+				out.writeInt(masks.get(c).size());
+				for (long[] mask : masks.get(c)){
+					out.writeLong(mask[0]);
+					out.writeInt((int) mask[1]);
+				}
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(VERSION);
+			out.writeInt(MAGIC);
+		} finally {
+			out.close();
+			reader.close();
+		}
+	}
+
+	/**
+	 * Extends the last run if it ends at pos with the same base, otherwise starts a new run.  Runs are {start, length, base}.
+	 */
+	private static void addToRun(List<long[]> runs, int pos, int base){
+		if (!runs.isEmpty()){
+			final long[] last = runs.get(runs.size() - 1);
+			if (last[0] + last[1] == pos && last[2] == base && last[1] < Integer.MAX_VALUE){
+				last[1]++;
+				return;
+			}
+		}
+		runs.add(new long[] { pos, 1, base });
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		Parser parser = new BasicParser();
+		options.addOption("r", true, "Reference fasta file");
+		options.addOption("o", true, "Output file [reference" + PACKEDEXTENSION + "]");
+		options.addOption("h", false, "Print this help message");
+		HelpFormatter formatter = new HelpFormatter();
+		CommandLine line = parser.parse(options, args);
+		if (line.hasOption("h") || !line.hasOption("r")){
+			formatter.printHelp("PackedReferenceSequenceFile", options);
+			return;
+		}
+
+		Logger root = Logger.getLogger("");
+		ConsoleHandler handler = new ConsoleHandler();
+		handler.setFormatter(Settings.defautlFormatter());
+		root.addHandler(handler);
+
+		File fasta = new File(line.getOptionValue("r"));
+		File output = new File(line.getOptionValue("o", fasta.getAbsolutePath() + PACKEDEXTENSION));
+		pack(fasta, output);
+		log.log(Level.INFO, "Wrote " + output.getAbsolutePath());
+	}
+
+}
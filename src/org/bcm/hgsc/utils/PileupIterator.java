@@ -0,0 +1,213 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+import org.bcm.hgsc.utils.BAMUtils.Pileup;
+
+/**
+ * Walks a coordinate sorted BAM once over a region and returns a {@link Pileup} for every position that is covered by at least one read.
+ * Reads are conformed once as they enter the pileup and kept in a ring buffer along with a cursor into their conformed arrays, the cursor
+ * only moves forward so each base of each read is visited once.  This replaces a random index query (and conforming every read again) for
+ * each site when many nearby sites are genotyped.
+ *
+ * Reads are filtered with the samtools style f (required) and F (filtered) flags used throughout {@link BAMUtils}.
+ * Soft clipped and inserted bases are not part of any column, a deletion adds {@link BAMUtils#unk} with quality 0.
+ * Orientation is 1 for forward reads and -1 for reverse reads.
+ * @author covingto
+ *
+ */
+public class PileupIterator implements Iterator<Pileup>, Closeable {
+	private static final Logger log = Logger.getLogger(PileupIterator.class.getName());
+	private static final byte OP_M = (byte) CigarOperator.enumToBinary(CigarOperator.MATCH_OR_MISMATCH);
+	private static final byte OP_I = (byte) CigarOperator.enumToBinary(CigarOperator.INSERTION);
+	private static final byte OP_D = (byte) CigarOperator.enumToBinary(CigarOperator.DELETION);
+	private static final byte OP_EQ = (byte) CigarOperator.enumToBinary(CigarOperator.EQ);
+	private static final byte OP_X = (byte) CigarOperator.enumToBinary(CigarOperator.X);
+	private final SAMRecordIterator sri;
+	private final String chr;
+	private final int end;
+	private final ReadFilter filter;
+	private final ReferenceSequenceFile fastaref;
+	// ring buffer of active reads, slot k holds the read, the index of the cursor and the genomic position of that index
+	private ConformedRead[] reads = new ConformedRead[64];
+	private int[] cursor = new int[64];
+	private int[] cursorPos = new int[64];
+	private int head = 0;
+	private int size = 0;
+	private SAMRecord nextRecord = null;
+	private int pos;
+	private Pileup next = null;
+
+	public PileupIterator(SamReader sam, String chr, int start, int end, int f, int F, ReferenceSequenceFile fastaref){
+		this.sri = sam.query(chr, start, end, false);
+		this.chr = chr;
+		this.end = end;
+		this.filter = ReadFilter.flags(f, F).excludeUnmapped();
+		this.fastaref = fastaref;
+		this.pos = start;
+		this.nextRecord = this.nextPassingRecord();
+	}
+
+	private SAMRecord nextPassingRecord(){
+		while (this.sri.hasNext()){
+			final SAMRecord sr = this.sri.next();
+			if (this.filter.passes(sr)){
+				return sr;
+			}
+		}
+		return null;
+	}
+
+	private void addRead(ConformedRead cr){
+		if (this.size == this.reads.length){
+			// unroll the ring into larger arrays
+			final int capacity = this.reads.length * 2;
+			final ConformedRead[] newReads = new ConformedRead[capacity];
+			final int[] newCursor = new int[capacity];
+			final int[] newCursorPos = new int[capacity];
+			for (int k = 0; k < this.size; k++){
+				final int slot = (this.head + k) % this.reads.length;
+				newReads[k] = this.reads[slot];
+				newCursor[k] = this.cursor[slot];
+				newCursorPos[k] = this.cursorPos[slot];
+			}
+			this.reads = newReads;
+			this.cursor = newCursor;
+			this.cursorPos = newCursorPos;
+			this.head = 0;
+		}
+		final int slot = (this.head + this.size) % this.reads.length;
+		this.reads[slot] = cr;
+		this.cursor[slot] = 0;
+		this.cursorPos[slot] = cr.getPosAtIndex(0);
+		this.size++;
+	}
+
+	/**
+	 * Conforms and adds every read that starts at or before pos.
+	 */
+	private void loadReads(){
+		while (this.nextRecord != null && this.nextRecord.getAlignmentStart() <= this.pos){
+			try {
+				final ConformedRead cr = BAMUtils.conformToReference(this.nextRecord, this.fastaref);
+				if (cr.length() > 0){
+					this.addRead(cr);
+				}
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Error conforming read " + this.nextRecord.getReadName() + " for pileup", e);
+			}
+			this.nextRecord = this.nextPassingRecord();
+		}
+	}
+
+	/**
+	 * Moves every active read to pos, dropping the reads that end before it, and collects the bases at pos.
+	 * @return the column, or null if no read has an aligned base at pos
+	 */
+	private Pileup buildColumn(){
+		Pileup column = null;
+		final int capacity = this.reads.length;
+		int kept = 0;
+		for (int k = 0; k < this.size; k++){
+			final int slot = (this.head + k) % capacity;
+			final ConformedRead cr = this.reads[slot];
+			int i = this.cursor[slot];
+			int p = this.cursorPos[slot];
+			final int len = cr.ops.length;
+			// insertion bases carry the position of the next reference base, so they are skipped along with everything before pos
+			while (i < len && (p < this.pos || (p == this.pos && cr.ops[i] == OP_I))){
+				if (cr.ops[i] != OP_I){ p++; }
+				i++;
+			}
+			if (i >= len){
+				continue; // finished with this read
+			}
+			if (p == this.pos){
+				final byte op = cr.ops[i];
+				if (op == OP_M || op == OP_EQ || op == OP_X || op == OP_D){
+					if (column == null){
+						column = new Pileup(this.chr, this.pos, cr.ref[i], this.size);
+					}
+					if (op == OP_D){
+						column.addReadData(BAMUtils.unk, (byte) 0, cr.isForward() ? 1 : -1);
+					} else {
+						column.addReadData(cr.read[i], cr.qual[i], cr.isForward() ? 1 : -1);
+					}
+				}
+			}
+			// compact the ring in place
+			final int target = (this.head + kept) % capacity;
+			this.reads[target] = cr;
+			this.cursor[target] = i;
+			this.cursorPos[target] = p;
+			kept++;
+		}
+		for (int k = kept; k < this.size; k++){
+			this.reads[(this.head + k) % capacity] = null;
+		}
+		this.size = kept;
+		return column;
+	}
+
+	private Pileup advance(){
+		while (this.pos <= this.end){
+			if (this.size == 0){
+				if (this.nextRecord == null){ return null; }
+				// nothing active, jump to the next read
+				this.pos = Math.max(this.pos, this.nextRecord.getAlignmentStart());
+				if (this.pos > this.end){ return null; }
+			}
+			this.loadReads();
+			final Pileup column = this.buildColumn();
+			this.pos++;
+			if (column != null){
+				return column;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.next == null){
+			this.next = this.advance();
+		}
+		return this.next != null;
+	}
+
+	@Override
+	public Pileup next() {
+		if (!this.hasNext()){
+			throw new NoSuchElementException();
+		}
+		final Pileup result = this.next;
+		this.next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("PileupIterator is read only");
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.sri.close();
+		Arrays.fill(this.reads, null);
+		this.size = 0;
+	}
+
+}
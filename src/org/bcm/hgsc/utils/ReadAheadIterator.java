@@ -0,0 +1,269 @@
+package org.bcm.hgsc.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps an iterator so that its elements are produced on a background thread into a bounded buffer while the caller works
+ * on the earlier ones.  Used on the records of a BAM query this overlaps BGZF decoding with the caller's conforming and allele work;
+ * the producers run on {@link IOThreads}, so the source must not touch per thread resources such as the reference.
+ *
+ * Null elements (reads rejected by the flag filters) are dropped rather than buffered.  With a depth of 0 no thread is used and
+ * the source is read on the calling thread.  The source is only ever touched by one thread at a time, and close stops the producer
+ * before closing the source, so the reader behind it can safely go back to a {@link BAMInterface} pool.
+ * An exception thrown by the source is rethrown from hasNext or next on the calling thread.
+ * @author covingto
+ *
+ * @param <T>
+ */
+public class ReadAheadIterator<T> implements Iterator<T>, Closeable {
+	private static Logger log = Logger.getLogger(ReadAheadIterator.class.getName());
+	public static int DEFAULTDEPTH = 256;
+	private static final Object END = new Object();
+	private static final AtomicLong totalElements = new AtomicLong();
+	private static final AtomicLong totalStalls = new AtomicLong();
+	// the buffer depth of every closed iterator that read ahead, summed and at its largest
+	private static final AtomicLong totalBuffers = new AtomicLong();
+	private static final AtomicLong totalMaxBuffered = new AtomicLong();
+	private static final AtomicLong peakBuffered = new AtomicLong();
+	// producers block on the source and on the consumer, never on a core
+	private static final ExecutorService producers = IOThreads.pool();
+	private final Iterator<T> source;
+	private final Closeable closer;
+	private final int depth;
+	private final BlockingQueue<Object> buffer;
+	private final CountDownLatch finished;
+	private volatile boolean closed = false;
+	private volatile Throwable error = null;
+	private Object next = null;
+	private boolean ended = false;
+	private int maxBuffered = 0;
+	private long stalls = 0;
+
+	public <I extends Iterator<T> & Closeable> ReadAheadIterator(I source){
+		this(source, DEFAULTDEPTH);
+	}
+
+	/**
+	 * @param source iterator to read ahead of, it is closed along with this iterator
+	 * @param depth maximum number of elements held ahead of the caller, 0 reads on the calling thread
+	 */
+	public <I extends Iterator<T> & Closeable> ReadAheadIterator(I source, int depth){
+		if (depth < 0){
+			throw new IllegalArgumentException("depth must not be negative");
+		}
+		this.source = source;
+		this.closer = source;
+		this.depth = depth;
+		if (depth == 0){
+			this.buffer = null;
+			this.finished = null;
+		} else {
+			this.buffer = new ArrayBlockingQueue<Object>(depth);
+			this.finished = new CountDownLatch(1);
+			producers.execute(new Runnable(){
+				@Override
+				public void run() {
+					produce();
+				}
+			});
+		}
+	}
+
+	private void produce(){
+		try {
+			while (!this.closed && this.source.hasNext()){
+				final T element = this.source.next();
+				if (element == null){ continue; }
+				// wait on the consumer, checking now and then that it has not gone away
+				while (!this.buffer.offer(element, 100, TimeUnit.MILLISECONDS)){
+					if (this.closed){ return; }
+				}
+			}
+		} catch (Throwable t) {
+			this.error = t;
+		} finally {
+			try {
+				while (!this.closed && !this.buffer.offer(END, 100, TimeUnit.MILLISECONDS)){
+					// consumer is behind, keep trying
+				}
+			} catch (InterruptedException e) {
+				log.log(Level.WARNING, "Interrupted ending read ahead", e);
+			}
+			this.finished.countDown();
+		}
+	}
+
+	private Object advance(){
+		if (this.buffer == null){
+			while (this.source.hasNext()){
+				final T element = this.source.next();
+				if (element != null){
+					return element;
+				}
+			}
+			return END;
+		}
+		Object element = this.buffer.poll();
+		if (element == null){
+			this.stalls++;
+			try {
+				element = this.buffer.take();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted waiting on read ahead", e);
+			}
+		}
+		// the producer may refill behind the take, the buffer never held more than its depth
+		this.maxBuffered = Math.max(this.maxBuffered, Math.min(this.depth, this.buffer.size() + 1));
+		return element;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.ended){
+			return false;
+		}
+		if (this.next == null){
+			this.next = this.advance();
+		}
+		if (this.next == END){
+			this.ended = true;
+			this.next = null;
+			if (this.error != null){
+				throw new RuntimeException("Error reading ahead", this.error);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T next() {
+		if (!this.hasNext()){
+			throw new NoSuchElementException();
+		}
+		final T result = (T) this.next;
+		this.next = null;
+		totalElements.incrementAndGet();
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("ReadAheadIterator is read only");
+	}
+
+	/**
+	 * @return the maximum number of elements held ahead of the caller, 0 if reading on the calling thread
+	 */
+	public int getDepth(){
+		return this.depth;
+	}
+
+	/**
+	 * @return number of elements currently waiting in the buffer
+	 */
+	public int getBuffered(){
+		return this.buffer == null ? 0 : this.buffer.size();
+	}
+
+	/**
+	 * @return the most elements seen waiting in the buffer, if this stays low the producer is the bottleneck
+	 */
+	public int getMaxBuffered(){
+		return this.maxBuffered;
+	}
+
+	/**
+	 * @return number of times the caller found the buffer empty and had to wait on the producer
+	 */
+	public long getStalls(){
+		return this.stalls;
+	}
+
+	/**
+	 * @return elements returned by every iterator so far
+	 */
+	public static long getTotalElements(){
+		return totalElements.get();
+	}
+
+	/**
+	 * @return times a caller of any closed iterator had to wait on its producer
+	 */
+	public static long getTotalStalls(){
+		return totalStalls.get();
+	}
+
+	/**
+	 * @return closed iterators that read ahead on a producer
+	 */
+	public static long getTotalBuffers(){
+		return totalBuffers.get();
+	}
+
+	/**
+	 * @return the sum over closed iterators of {@link #getMaxBuffered()}, divide by {@link #getTotalBuffers()} for the mean
+	 */
+	public static long getTotalMaxBuffered(){
+		return totalMaxBuffered.get();
+	}
+
+	/**
+	 * @return the most elements any closed iterator held ahead of its caller
+	 */
+	public static long getPeakBuffered(){
+		return peakBuffered.get();
+	}
+
+	public static String getReadAheadSummary(){
+		final long buffers = totalBuffers.get();
+		return "Read ahead elements: " + totalElements.get() + " stalls: " + totalStalls.get() + " buffers: " + buffers + 
+				" mean most buffered: " + (buffers == 0 ? 0 : totalMaxBuffered.get() / buffers) + " peak buffered: " + peakBuffered.get();
+	}
+
+	/**
+	 * Stops the producer, waiting for it to let go of the source, then closes the source.  The source is closed even if the wait
+	 * is interrupted, the producer may then still be reading it so the reader behind it should be discarded rather than reused.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed){ return; }
+		this.closed = true;
+		try {
+			if (this.buffer != null){
+				this.buffer.clear();
+				try {
+					this.finished.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting on read ahead to stop", e);
+				}
+				this.buffer.clear();
+			}
+		} finally {
+			if (this.buffer != null){
+				totalStalls.addAndGet(this.stalls);
+				totalBuffers.incrementAndGet();
+				totalMaxBuffered.addAndGet(this.maxBuffered);
+				long peak;
+				while ((peak = peakBuffered.get()) < this.maxBuffered && !peakBuffered.compareAndSet(peak, this.maxBuffered)){
+					// another iterator raised the peak, check again
+				}
+			}
+			this.closer.close();
+		}
+	}
+
+}
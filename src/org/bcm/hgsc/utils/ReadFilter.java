@@ -0,0 +1,198 @@
+package org.bcm.hgsc.utils;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.filter.SamRecordFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read filter that looks at the fixed size fields of a record (flags, mapping quality and alignment start) before anything else.
+ * BAM records decode their bases, qualities, CIGAR and tags lazily so a read that is rejected here costs almost nothing.
+ * Flag checks are folded into a required and an excluded mask, so chaining any number of them is still two AND operations.
+ *
+ * Checks are added with the chaining methods and run in a fixed order; flags, mapping quality, alignment start, alignment end
+ * and span (which decode the CIGAR) and last any other {@link SamRecordFilter}s in the order they were added.  A configured filter is
+ * read only and may be shared between threads.
+ * Ex;
+ * 	ReadFilter filter = ReadFilter.flags(0, 1284).minMappingQuality(20);
+ * @author covingto
+ *
+ */
+public class ReadFilter implements SamRecordFilter {
+	public static final int UNMAPPED = 0x4;
+	public static final int SECONDARY = 0x100;
+	public static final int VENDORFAILED = 0x200;
+	public static final int DUPLICATE = 0x400;
+	public static final int SUPPLEMENTARY = 0x800;
+	private int required = 0;
+	private int excluded = 0;
+	private int minMapQ = 0;
+	private int minStart = Integer.MIN_VALUE;
+	private int maxStart = Integer.MAX_VALUE;
+	private int minEnd = Integer.MIN_VALUE;
+	private int maxEnd = Integer.MAX_VALUE;
+	private boolean checkEnd = false;
+	private int spanStart = Integer.MAX_VALUE;
+	private int spanEnd = Integer.MIN_VALUE;
+	private boolean checkSpan = false;
+	private final List<SamRecordFilter> others = new ArrayList<SamRecordFilter>();
+
+	/**
+	 * The samtools style filter used throughout {@link BAMUtils}.
+	 * @param f required flags (as samtools view -f)
+	 * @param F filtered flags (as samtools view -F)
+	 */
+	public static ReadFilter flags(int f, int F){
+		return new ReadFilter().requireFlags(f).excludeFlags(F);
+	}
+
+	public ReadFilter requireFlags(int flags){
+		this.required |= flags;
+		return this;
+	}
+
+	public ReadFilter excludeFlags(int flags){
+		this.excluded |= flags;
+		return this;
+	}
+
+	public ReadFilter excludeUnmapped(){
+		return this.excludeFlags(UNMAPPED);
+	}
+
+	public ReadFilter excludeSecondary(){
+		return this.excludeFlags(SECONDARY);
+	}
+
+	public ReadFilter excludeSupplementary(){
+		return this.excludeFlags(SUPPLEMENTARY);
+	}
+
+	public ReadFilter excludeDuplicates(){
+		return this.excludeFlags(DUPLICATE);
+	}
+
+	public ReadFilter excludeVendorFailed(){
+		return this.excludeFlags(VENDORFAILED);
+	}
+
+	public ReadFilter minMappingQuality(int mapQ){
+		this.minMapQ = Math.max(this.minMapQ, mapQ);
+		return this;
+	}
+
+	/**
+	 * Only keep reads with an alignment start in [min, max].
+	 */
+	public ReadFilter alignmentStartWithin(int min, int max){
+		this.minStart = Math.max(this.minStart, min);
+		this.maxStart = Math.min(this.maxStart, max);
+		return this;
+	}
+
+	/**
+	 * Only keep reads with an alignment end in [min, max].  The end is computed from the CIGAR, so this is checked after the cheap fields.
+	 */
+	public ReadFilter alignmentEndWithin(int min, int max){
+		this.minEnd = Math.max(this.minEnd, min);
+		this.maxEnd = Math.min(this.maxEnd, max);
+		this.checkEnd = true;
+		return this;
+	}
+
+	/**
+	 * Only keep reads whose unclipped alignment, soft clips included, covers all of [start, end] without a skip (N) in it, as a
+	 * conformed read must to be used for an allele over that range.  Checked with the alignment end.
+	 */
+	public ReadFilter spanning(int start, int end){
+		this.spanStart = Math.min(this.spanStart, start);
+		this.spanEnd = Math.max(this.spanEnd, end);
+		this.checkSpan = true;
+		return this;
+	}
+
+	/**
+	 * Adds a filter that is run after all of the built in checks.
+	 */
+	public ReadFilter and(SamRecordFilter other){
+		this.others.add(other);
+		return this;
+	}
+
+	public int getRequiredFlags(){
+		return this.required;
+	}
+
+	public int getExcludedFlags(){
+		return this.excluded;
+	}
+
+	public boolean passes(SAMRecord sr){
+		final int flags = sr.getFlags();
+		if ((flags & this.excluded) != 0 || (flags & this.required) != this.required){
+			return false;
+		}
+		if (this.minMapQ > 0 && sr.getMappingQuality() < this.minMapQ){
+			return false;
+		}
+		final int start = sr.getAlignmentStart();
+		if (start < this.minStart || start > this.maxStart){
+			return false;
+		}
+		if (this.checkEnd){
+			final int end = sr.getAlignmentEnd();
+			if (end < this.minEnd || end > this.maxEnd){
+				return false;
+			}
+		}
+		if (this.checkSpan && (sr.getUnclippedStart() > this.spanStart || sr.getUnclippedEnd() < this.spanEnd || skipsInSpan(sr))){
+			return false;
+		}
+		for (int i = 0; i < this.others.size(); i++){
+			if (this.others.get(i).filterOut(sr)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A skip conforms to dots, which make the read unusable over any range they fall in.
+	 */
+	private boolean skipsInSpan(SAMRecord sr){
+		int pos = sr.getAlignmentStart();
+		for (CigarElement ce : sr.getCigar().getCigarElements()){
+			if (pos > this.spanEnd){
+				break;
+			}
+			final CigarOperator op = ce.getOperator();
+			if (op == CigarOperator.N && pos + ce.getLength() > this.spanStart){
+				return true;
+			}
+			if (op.consumesReferenceBases()){
+				pos += ce.getLength();
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean filterOut(SAMRecord record) {
+		return !this.passes(record);
+	}
+
+	@Override
+	public boolean filterOut(SAMRecord first, SAMRecord second) {
+		return !this.passes(first) || !this.passes(second);
+	}
+
+	@Override
+	public String toString(){
+		return "ReadFilter: f=" + this.required + " F=" + this.excluded + " minMapQ=" + this.minMapQ + " start=[" + this.minStart + ", " + this.maxStart + "]" +
+				(this.checkEnd ? " end=[" + this.minEnd + ", " + this.maxEnd + "]" : "") +
+				(this.checkSpan ? " spanning=[" + this.spanStart + ", " + this.spanEnd + "]" : "") + " others=" + this.others.size();
+	}
+}
@@ -0,0 +1,160 @@
+package org.bcm.hgsc.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands results back in the order their work was submitted, no matter what order the workers finish in.
+ * Each unit of work gets a {@link Ticket} from {@link #submit()}, the worker passes the ticket and its result to
+ * {@link #complete(Ticket, Object)} and the consumer calls {@link #take()}, which returns the next result as soon as it and all earlier
+ * results are complete.  Nothing polls or sleeps, threads wait on this object's monitor.
+ *
+ * At most capacity results may be submitted and not yet taken, submit blocks beyond this so the producer can not run away from a slow
+ * consumer.  The capacity should be well above the number of workers so one slow result does not leave the workers idle.
+ * Per result wall clock latencies are kept on the {@link Entry} and summarized by {@link #getLatencySummary()}.
+ * @author covingto
+ *
+ * @param <T>
+ */
+public class ReorderBuffer<T> {
+	private final int capacity;
+	private final Map<Long, Entry<T>> completed = new HashMap<Long, Entry<T>>();
+	private long submitted = 0;
+	private long taken = 0;
+	private boolean closed = false;
+	// latency totals in nanoseconds
+	private long totalCompletion = 0;
+	private long maxCompletion = 0;
+	private long totalWaiting = 0;
+	private long maxWaiting = 0;
+
+	public static class Ticket {
+		private final long sequence;
+		private final long submittedNanos;
+
+		private Ticket(long sequence, long submittedNanos){
+			this.sequence = sequence;
+			this.submittedNanos = submittedNanos;
+		}
+
+		public long getSequence(){
+			return this.sequence;
+		}
+	}
+
+	public static class Entry<T> {
+		private final Ticket ticket;
+		private final T value;
+		private final long completedNanos;
+		private long takenNanos;
+
+		private Entry(Ticket ticket, T value, long completedNanos){
+			this.ticket = ticket;
+			this.value = value;
+			this.completedNanos = completedNanos;
+		}
+
+		public T getValue(){
+			return this.value;
+		}
+
+		public long getSequence(){
+			return this.ticket.sequence;
+		}
+
+		/**
+		 * @return milliseconds from submit to complete, the time spent queued for and running on a worker
+		 */
+		public long getCompletionMillis(){
+			return TimeUnit.NANOSECONDS.toMillis(this.completedNanos - this.ticket.submittedNanos);
+		}
+
+		/**
+		 * @return milliseconds from complete to take, the time spent waiting on earlier results
+		 */
+		public long getWaitingMillis(){
+			return TimeUnit.NANOSECONDS.toMillis(this.takenNanos - this.completedNanos);
+		}
+	}
+
+	public ReorderBuffer(int capacity){
+		if (capacity < 1){
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserves the next place in the output order, blocking while capacity results are outstanding.
+	 * @throws InterruptedException
+	 */
+	public synchronized Ticket submit() throws InterruptedException{
+		if (this.closed){
+			throw new IllegalStateException("ReorderBuffer is closed");
+		}
+		while (this.submitted - this.taken >= this.capacity){
+			this.wait();
+		}
+		return new Ticket(this.submitted++, System.nanoTime());
+	}
+
+	/**
+	 * Records the result for a ticket, value may be null.
+	 */
+	public synchronized void complete(Ticket ticket, T value){
+		this.completed.put(ticket.sequence, new Entry<T>(ticket, value, System.nanoTime()));
+		if (ticket.sequence == this.taken){
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * No more tickets will be submitted, {@link #take()} returns null once everything submitted has been taken.
+	 */
+	public synchronized void close(){
+		this.closed = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Waits for the next result in submission order.
+	 * @return the next entry, or null if the buffer is closed and all results have been taken
+	 * @throws InterruptedException
+	 */
+	public synchronized Entry<T> take() throws InterruptedException{
+		while (true){
+			final Entry<T> entry = this.completed.remove(this.taken);
+			if (entry != null){
+				this.taken++;
+				entry.takenNanos = System.nanoTime();
+				final long completion = entry.completedNanos - entry.ticket.submittedNanos;
+				final long waiting = entry.takenNanos - entry.completedNanos;
+				this.totalCompletion += completion;
+				this.maxCompletion = Math.max(this.maxCompletion, completion);
+				this.totalWaiting += waiting;
+				this.maxWaiting = Math.max(this.maxWaiting, waiting);
+				this.notifyAll();
+				return entry;
+			}
+			if (this.closed && this.taken == this.submitted){
+				return null;
+			}
+			this.wait();
+		}
+	}
+
+	/**
+	 * @return number of results submitted and not yet taken
+	 */
+	public synchronized long getOutstanding(){
+		return this.submitted - this.taken;
+	}
+
+	public synchronized String getLatencySummary(){
+		final long n = Math.max(1, this.taken);
+		return "Results taken: " + this.taken + " mean/max completion ms: " + TimeUnit.NANOSECONDS.toMillis(this.totalCompletion / n) + "/" +
+				TimeUnit.NANOSECONDS.toMillis(this.maxCompletion) + " mean/max in order wait ms: " + TimeUnit.NANOSECONDS.toMillis(this.totalWaiting / n) + "/" +
+				TimeUnit.NANOSECONDS.toMillis(this.maxWaiting);
+	}
+}
@@ -13,6 +13,10 @@ public class Settings {
 	public static int threadCount = 4;
 	public static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 	public static boolean debug = false;
+	public static int readAhead = 0;
+	public static int conformFlank = -1;
+	public static boolean readCache = false;
+	public static int maxDepth = 0;
 	
 	public static Formatter defautlFormatter() {
 		return new KRCGTKFormatter();
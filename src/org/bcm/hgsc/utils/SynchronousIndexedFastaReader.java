@@ -1,12 +1,25 @@
 package org.bcm.hgsc.utils;
 
 import htsjdk.samtools.SAMException;
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 
 public class SynchronousIndexedFastaReader {
-	
-	public static synchronized ReferenceSequence getSubsequenceAt(IndexedFastaSequenceFile fasta, String contig, long start, long stop ) {
+
+	/**
+	 * Fetches the subsequence, retrying on errors.  Calls are serialized across the JVM unless fasta is a
+	 * {@link ConcurrentReferenceSequenceFile} or {@link PackedReferenceSequenceFile}, which are safe to use from many threads at once.
+	 */
+	public static ReferenceSequence getSubsequenceAt(ReferenceSequenceFile fasta, String contig, long start, long stop ) {
+		if (fasta instanceof ConcurrentReferenceSequenceFile || fasta instanceof PackedReferenceSequenceFile){
+			return fetchSubsequenceAt(fasta, contig, start, stop);
+		}
+		synchronized (SynchronousIndexedFastaReader.class){
+			return fetchSubsequenceAt(fasta, contig, start, stop);
+		}
+	}
+
+	private static ReferenceSequence fetchSubsequenceAt(ReferenceSequenceFile fasta, String contig, long start, long stop ) {
 		int attempts = 0;
 		while (attempts < 10){
 			try {
@@ -25,13 +38,13 @@ public class SynchronousIndexedFastaReader {
 		}
 		throw new SAMException("Unable to load " + contig + "(" + start + ", " + stop + ")");
 	}
-	
-	public static byte[] getBytesAt(IndexedFastaSequenceFile fasta, String contig, long start, long stop ){
+
+	public static byte[] getBytesAt(ReferenceSequenceFile fasta, String contig, long start, long stop ){
 		ReferenceSequence seq = getSubsequenceAt(fasta, contig, start, stop);
 		return seq.getBases();
 	}
-	
-	public static String getSeqStringAt(IndexedFastaSequenceFile fasta, String contig, long start, long stop ){
+
+	public static String getSeqStringAt(ReferenceSequenceFile fasta, String contig, long start, long stop ){
 		return new String(getBytesAt(fasta, contig, start, stop));
 	}
 }
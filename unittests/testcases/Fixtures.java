@@ -0,0 +1,178 @@
+package testcases;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.vcf.VCFCodec;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Files shared by the test cases.
+ */
+public class Fixtures {
+
+	private Fixtures(){}
+
+	/**
+	 * Writes an indexed fasta.
+	 * @param headers the header line of each contig without the '>', the contig name is the first word
+	 * @param sequences the bases of each contig
+	 * @param lineWidth bases per line
+	 */
+	public static File writeFasta(String[] headers, String[] sequences, int lineWidth) throws Exception{
+		File fasta = File.createTempFile("reference", ".fa");
+		fasta.deleteOnExit();
+		File fai = new File(fasta.getAbsolutePath() + ".fai");
+		fai.deleteOnExit();
+		PrintWriter fa = new PrintWriter(fasta);
+		PrintWriter idx = new PrintWriter(fai);
+		long offset = 0;
+		for (int c = 0; c < headers.length; c++){
+			String header = ">" + headers[c] + "\n";
+			fa.print(header);
+			offset += header.length();
+			final String sequence = sequences[c];
+			idx.print(headers[c].split(" ")[0] + "\t" + sequence.length() + "\t" + offset + "\t" + lineWidth + "\t" + (lineWidth + 1) + "\n");
+			for (int i = 0; i < sequence.length(); i++){
+				fa.print(sequence.charAt(i));
+				offset++;
+				if ((i + 1) % lineWidth == 0 || i == sequence.length() - 1){
+					fa.print("\n");
+					offset++;
+				}
+			}
+		}
+		fa.close();
+		idx.close();
+		return fasta;
+	}
+
+	public static String randomBases(Random r, int length){
+		StringBuilder bases = new StringBuilder(length);
+		for (int i = 0; i < length; i++){
+			bases.append("ACGT".charAt(r.nextInt(4)));
+		}
+		return bases.toString();
+	}
+
+	/**
+	 * Writes an indexed VCF of SNPs on contig 1 at first, first + step ... up to the end of the sequence.
+	 * @param sequence the bases of contig 1, the REF of each SNP
+	 */
+	public static File writeVCF(String sequence, int first, int step) throws Exception{
+		File vcf = File.createTempFile("calls", ".vcf");
+		vcf.deleteOnExit();
+		PrintWriter out = new PrintWriter(vcf);
+		out.print("##fileformat=VCFv4.1\n##contig=<ID=1,length=" + sequence.length() + ">\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n");
+		for (int pos = first; pos <= sequence.length(); pos += step){
+			final char ref = sequence.charAt(pos - 1);
+			out.print("1\t" + pos + "\t.\t" + ref + "\t" + (ref == 'A' ? 'C' : 'A') + "\t.\tPASS\t.\n");
+		}
+		out.close();
+		File idx = Tribble.indexFile(vcf);
+		idx.deleteOnExit();
+		IndexFactory.writeIndex(IndexFactory.createDynamicIndex(vcf, new VCFCodec()), idx);
+		return vcf;
+	}
+
+	/**
+	 * Thue-Morse strings of length 2048 over A and C, and the same with A and C swapped.  Any polynomial hash with an odd multiplier
+	 * modulo 2^64 gives both the same value, so they are distinct alleles with the same {@link ByteView#hash64()}.
+	 */
+	public static byte[][] collidingAlleles(){
+		byte[] a = new byte[2048];
+		byte[] b = new byte[2048];
+		for (int i = 0; i < a.length; i++){
+			final boolean odd = Integer.bitCount(i) % 2 == 1;
+			a[i] = (byte) (odd ? 'C' : 'A');
+			b[i] = (byte) (odd ? 'A' : 'C');
+		}
+		return new byte[][] {a, b};
+	}
+
+	/**
+	 * @return a coordinate sorted header with one contig
+	 */
+	public static SAMFileHeader header(String contig, int length){
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord(contig, length));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		return header;
+	}
+
+	/**
+	 * A forward read on the first contig of the header with random bases and qualities.
+	 */
+	public static SAMRecord record(SAMFileHeader header, String name, int start, String cigar, Random r){
+		SAMRecord rec = new SAMRecord(header);
+		rec.setReadName(name);
+		rec.setReferenceName(header.getSequence(0).getSequenceName());
+		rec.setAlignmentStart(start);
+		rec.setCigarString(cigar);
+		rec.setMappingQuality(60);
+		final int length = rec.getCigar().getReadLength();
+		rec.setReadBases(randomBases(r, length).getBytes());
+		byte[] qual = new byte[length];
+		for (int i = 0; i < length; i++){
+			qual[i] = (byte) (2 + r.nextInt(40));
+		}
+		rec.setBaseQualities(qual);
+		return rec;
+	}
+
+	/**
+	 * Writes the records sorted by coordinate to an indexed BAM.
+	 */
+	public static File writeBAM(SAMFileHeader header, List<SAMRecord> records) throws Exception{
+		File bam = File.createTempFile("reads", ".bam");
+		bam.deleteOnExit();
+		File bai = new File(bam.getAbsolutePath().replaceAll("\\.bam$", ".bai"));
+		bai.deleteOnExit();
+		List<SAMRecord> sorted = new ArrayList<SAMRecord>(records);
+		Collections.sort(sorted, new SAMRecordCoordinateComparator());
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+		for (SAMRecord rec : sorted){
+			writer.addAlignment(rec);
+		}
+		writer.close();
+		return bam;
+	}
+
+	/**
+	 * Runs the call on a daemon thread, for calls expected to block.  The latch is counted down once the call returns, with its
+	 * result set, and never if it throws.
+	 */
+	public static <T> CountDownLatch callLater(final Callable<T> call, final AtomicReference<T> result){
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					result.set(call.call());
+					done.countDown();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return done;
+	}
+}
@@ -0,0 +1,73 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.bcm.hgsc.utils.AlleleCounter;
+import org.bcm.hgsc.utils.ByteView;
+import org.junit.Test;
+
+public class TestAlleleCounter {
+
+	@Test
+	public void testCounts() throws Exception {
+		AlleleCounter counter = new AlleleCounter();
+		assertEquals(1, counter.add(new ByteView("ACG".getBytes())));
+		assertEquals(1, counter.add(new ByteView("A".getBytes())));
+		assertEquals(2, counter.add(new ByteView("xACGx".getBytes(), 1, 4)));
+		assertEquals(1, counter.add(new ByteView(new byte[0])));
+		assertEquals(3, counter.size());
+		assertEquals("ACG", counter.getAllele(0).toString());
+		assertEquals(2, counter.getCount(0));
+		assertEquals("", counter.getAllele(2).toString());
+	}
+
+	@Test
+	public void testGrow() throws Exception {
+		AlleleCounter counter = new AlleleCounter();
+		for (int round = 1; round <= 3; round++){
+			for (int i = 0; i < 100; i++){
+				assertEquals(round, counter.add(new ByteView(Integer.toString(i, 4).getBytes())));
+			}
+		}
+		assertEquals(100, counter.size());
+		for (int i = 0; i < 100; i++){
+			assertEquals("Alleles stay in the order first seen", Integer.toString(i, 4), counter.getAllele(i).toString());
+			assertEquals(3, counter.getCount(i));
+		}
+	}
+
+	@Test
+	public void testHashCollision() throws Exception {
+		byte[][] alleles = Fixtures.collidingAlleles();
+		ByteView a = new ByteView(alleles[0]);
+		ByteView b = new ByteView(alleles[1]);
+		assertFalse(Arrays.equals(alleles[0], alleles[1]));
+		assertEquals("The fixture must collide", a.hash64(), b.hash64());
+		AlleleCounter counter = new AlleleCounter();
+		assertEquals(1, counter.add(a));
+		assertEquals(1, counter.add(b));
+		assertEquals(2, counter.add(new ByteView(alleles[1].clone())));
+		assertEquals(2, counter.size());
+		assertEquals(1, counter.getCount(0));
+		assertEquals(2, counter.getCount(1));
+		assertSame(b, counter.getAllele(1));
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		AlleleCounter counter = new AlleleCounter(2);
+		for (int i = 0; i < 20; i++){
+			counter.add(new ByteView(("T" + i).getBytes()));
+		}
+		counter.clear();
+		assertEquals(0, counter.size());
+		assertEquals(1, counter.add(new ByteView("T3".getBytes())));
+		assertEquals(1, counter.add(new ByteView("G".getBytes())));
+		assertEquals(2, counter.add(new ByteView("T3".getBytes())));
+		assertEquals(2, counter.size());
+		assertEquals("T3", counter.getAllele(0).toString());
+		assertEquals("G", counter.getAllele(1).toString());
+	}
+}
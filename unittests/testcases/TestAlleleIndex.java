@@ -0,0 +1,124 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.variant.variantcontext.Allele;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bcm.hgsc.utils.AlleleIndex;
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+import org.bcm.hgsc.utils.ByteView;
+import org.junit.Test;
+
+public class TestAlleleIndex {
+
+	/**
+	 * A view of the read from the {@link ConformedRead} documentation (ATCGATCGATCG, 3M1I3M1D5M at 1) over [2, 15], which drops the
+	 * deleted base and pads past the end of the read.
+	 */
+	private static ByteView exampleView() throws Exception{
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("1", 1000));
+		SAMRecord rec = new SAMRecord(header);
+		rec.setReadName("example");
+		rec.setReferenceName("1");
+		rec.setAlignmentStart(1);
+		rec.setCigarString("3M1I3M1D5M");
+		rec.setReadBases("ATCGATCGATCG".getBytes());
+		rec.setBaseQualities(new byte[12]);
+		rec.setAttribute("MD", "6^A5");
+		ConformedRead cr = BAMUtils.conformToReference(rec);
+		return cr.getSeqAlleleView(2, 15);
+	}
+
+	/**
+	 * The index of the first allele matching the view bytes [start, end), as the genotyper found it before the index.
+	 */
+	private static int scan(List<Allele> alleles, ByteView view, int start, int end){
+		for (int i = 0; i < alleles.size(); i++){
+			if (view.regionMatches(start, end, alleles.get(i))){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void assertSameAsScan(List<Allele> alleles, ByteView view){
+		AlleleIndex index = new AlleleIndex(alleles);
+		for (int start = 0; start <= view.length(); start++){
+			for (int end = start; end <= view.length(); end++){
+				assertEquals("[" + start + ", " + end + ") of " + view + " in " + alleles, scan(alleles, view, start, end), index.indexOf(view, start, end));
+			}
+		}
+	}
+
+	@Test
+	public void testRangeHash() throws Exception {
+		ByteView view = exampleView();
+		final byte[] bytes = view.toBytes();
+		assertTrue(view.toString().endsWith(".."));
+		assertFalse(view.contains(BAMUtils.unk));
+		assertEquals(new ByteView(bytes).hash64(), view.hash64());
+		for (int start = 0; start <= bytes.length; start++){
+			for (int end = start; end <= bytes.length; end++){
+				assertEquals("[" + start + ", " + end + ") of " + view, new ByteView(bytes, start, end).hash64(), view.hash64(start, end));
+				assertEquals(new ByteView(Arrays.copyOfRange(bytes, start, end)).hash64(), view.hash64(start, end));
+			}
+		}
+	}
+
+	@Test
+	public void testSameAsScan() throws Exception {
+		ByteView view = exampleView();
+		final String bases = view.toString();
+		List<Allele> alleles = new ArrayList<Allele>();
+		alleles.add(Allele.create(bases.substring(1, 4), true));
+		// the same bases as the reference, the reference is first so it is the one found
+		alleles.add(Allele.create(bases.substring(1, 4)));
+		alleles.add(Allele.create(bases.substring(0, 2)));
+		alleles.add(Allele.create(bases.substring(5, 9)));
+		alleles.add(Allele.create(bases.substring(5, 9)));
+		alleles.add(Allele.create(bases.substring(0, 1)));
+		alleles.add(Allele.create("<DEL>"));
+		alleles.add(Allele.create("<NON_REF>"));
+		assertSameAsScan(alleles, view);
+		assertEquals(0, new AlleleIndex(alleles).indexOf(view, 1, 4));
+		assertEquals(3, new AlleleIndex(alleles).indexOf(view, 5, 9));
+		// in the order the genotyper uses
+		Collections.sort(alleles);
+		assertSameAsScan(alleles, view);
+		Collections.reverse(alleles);
+		assertSameAsScan(alleles, view);
+	}
+
+	@Test
+	public void testSymbolic() throws Exception {
+		List<Allele> alleles = new ArrayList<Allele>();
+		alleles.add(Allele.create("A", true));
+		alleles.add(Allele.create("<DEL>"));
+		ByteView view = new ByteView("<DEL>A".getBytes());
+		assertSameAsScan(alleles, view);
+		assertEquals("Symbolic alleles are never found", -1, new AlleleIndex(alleles).indexOf(view, 0, 5));
+		assertEquals(0, new AlleleIndex(alleles).indexOf(view, 5, 6));
+	}
+
+	@Test
+	public void testHashCollision() throws Exception {
+		byte[][] colliding = Fixtures.collidingAlleles();
+		List<Allele> alleles = new ArrayList<Allele>();
+		alleles.add(Allele.create(colliding[0], true));
+		alleles.add(Allele.create(colliding[1]));
+		AlleleIndex index = new AlleleIndex(alleles);
+		assertEquals(0, index.indexOf(new ByteView(colliding[0]), 0, colliding[0].length));
+		assertEquals(1, index.indexOf(new ByteView(colliding[1]), 0, colliding[1].length));
+		assertEquals(-1, index.indexOf(new ByteView(colliding[1]), 1, colliding[1].length));
+	}
+}
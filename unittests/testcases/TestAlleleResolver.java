@@ -2,7 +2,25 @@ package testcases;
 
 import static org.junit.Assert.*;
 
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.variant.variantcontext.Allele;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bcm.hgsc.utils.AlleleResolver;
 import org.bcm.hgsc.utils.AlleleResolver.AlleleSet;
+import org.bcm.hgsc.utils.AlleleResolver.ResolutionType;
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
 import org.junit.Test;
 
 public class TestAlleleResolver {
@@ -92,4 +110,98 @@ public class TestAlleleResolver {
 		// KRC 10Nov2015
 	}
 
+	/**
+	 * Reads over a random reference for resolving the region [200, 200].  The expected allele sets are the ones the recursive
+	 * resolveAlleles gave before the region was settled in a loop.
+	 */
+	private static class Region {
+		final String sequence;
+		final IndexedFastaSequenceFile ref;
+		final SAMFileHeader header;
+		final List<ConformedRead> reads = new ArrayList<ConformedRead>();
+
+		Region() throws Exception{
+			this.sequence = Fixtures.randomBases(new Random(21), 400);
+			this.ref = new IndexedFastaSequenceFile(Fixtures.writeFasta(new String[] {"1"}, new String[] {this.sequence}, 60));
+			this.header = Fixtures.header("1", this.sequence.length());
+		}
+
+		/**
+		 * Adds a read that matches the reference apart from the CIGAR and a SNP at each of snps.
+		 */
+		Region read(int start, String cigar, int... snps) throws Exception{
+			final SAMRecord rec = Fixtures.record(this.header, "read" + this.reads.size(), start, cigar, new Random(this.reads.size()));
+			final StringBuilder bases = new StringBuilder();
+			int pos = start;
+			for (CigarElement ce : rec.getCigar().getCigarElements()){
+				for (int i = 0; i < ce.getLength(); i++){
+					if (ce.getOperator() == CigarOperator.M){
+						final char base = this.sequence.charAt(pos - 1);
+						bases.append(Arrays.binarySearch(snps, pos) >= 0 ? (base == 'A' ? 'C' : 'A') : base);
+					}
+					if (ce.getOperator().consumesReferenceBases()){ pos++; }
+				}
+			}
+			rec.setReadBases(bases.toString().getBytes());
+			this.reads.add(BAMUtils.conformToReference(rec, this.ref));
+			return this;
+		}
+
+		void assertResolved(ResolutionType resolution, int start, int end, int expansions, String reference, String... alts) throws Exception{
+			final long before = AlleleResolver.getExpansions();
+			final AlleleSet as = AlleleResolver.resolveAlleles(this.reads, "1", 200, 200, resolution, this.ref, 0);
+			assertEquals(resolution + " start", start, as.getStart());
+			assertEquals(resolution + " end", end, as.getEnd());
+			assertEquals(resolution + " expansions", expansions, AlleleResolver.getExpansions() - before);
+			final Set<Allele> expected = new HashSet<Allele>();
+			expected.add(Allele.create(reference, true));
+			for (String alt : alts){
+				expected.add(Allele.create(alt));
+			}
+			assertEquals(resolution + " alleles", expected, new HashSet<Allele>(as.getAlleles()));
+		}
+	}
+
+	@Test
+	public void testResolveRightWidening() throws Exception {
+		// a deletion of 201-203 reaches right of the region, only EXPANDING takes it in
+		Region region = new Region().read(101, "200M").read(101, "100M3D100M").read(101, "100M3D100M");
+		region.assertResolved(ResolutionType.EXPANDING, 200, 203, 1, "CTCG", "C");
+		region.assertResolved(ResolutionType.MINIMALEXPANDING, 200, 200, 0, "C");
+	}
+
+	@Test
+	public void testResolveLeftWidening() throws Exception {
+		// the first reads settle at 200 but not once the SNP at 199 widens the region, so the reads are checked again from the first
+		Region region = new Region().read(101, "200M", 195, 200).read(101, "200M", 195, 200).read(101, "200M")
+				.read(101, "200M", 199).read(101, "200M", 199);
+		region.assertResolved(ResolutionType.EXPANDING, 194, 200, 2, "GCGCACC", "GAGCACA", "GCGCAAC");
+		region.assertResolved(ResolutionType.MINIMALEXPANDING, 194, 200, 2, "GCGCACC", "GAGCACA", "GCGCAAC");
+	}
+
+	@Test
+	public void testResolveLeftThenRight() throws Exception {
+		// a deletion of 199-201 is anchored at 198, in the widened region it reaches right to 201
+		Region region = new Region().read(101, "200M").read(101, "98M3D100M").read(101, "98M3D100M").read(101, "100M3D100M");
+		region.assertResolved(ResolutionType.EXPANDING, 198, 201, 2, "ACCT", "A");
+		region.assertResolved(ResolutionType.MINIMALEXPANDING, 198, 200, 1, "ACC", "A");
+
+		region = new Region().read(101, "200M", 195, 200).read(101, "200M", 195, 200).read(101, "100M3D100M").read(101, "100M3D100M")
+				.read(101, "200M", 199).read(101, "200M", 199);
+		region.assertResolved(ResolutionType.EXPANDING, 194, 203, 3, "GCGCACCTCG", "GAGCACATCG", "GCGCAACTCG", "GCGCACC");
+		region.assertResolved(ResolutionType.MINIMALEXPANDING, 194, 200, 2, "GCGCACC", "GAGCACA", "GCGCAAC");
+	}
+
+	@Test
+	public void testResolveLongAlleles() throws Exception {
+		// EXPANDING leaves alleles of 50 or more bases to their own records, MINIMALEXPANDING always widens to the left
+		Region region = new Region().read(101, "200M").read(101, "99M50D100M").read(101, "99M50D100M");
+		region.assertResolved(ResolutionType.EXPANDING, 200, 200, 0, "C");
+		region.assertResolved(ResolutionType.MINIMALEXPANDING, 199, 200, 1, "CC", "C");
+
+		region = new Region().read(101, "200M").read(101, "99M49D100M").read(101, "99M49D100M");
+		region.assertResolved(ResolutionType.EXPANDING, 199, 248, 2, region.sequence.substring(198, 248), "C");
+		region.assertResolved(ResolutionType.MINIMALEXPANDING, 199, 200, 1, "CC", "C");
+	}
+
 }
@@ -0,0 +1,161 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.SamRecordFilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bcm.hgsc.utils.BAMInterface;
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.ReadFilter;
+import org.junit.Test;
+
+public class TestBAMInterface {
+
+	/**
+	 * A BAM of 200 reads at 1, 11, 21 ...
+	 */
+	private static BAMInterface writeBAM() throws Exception{
+		final Random r = new Random(5);
+		final SAMFileHeader header = Fixtures.header("1", 5000);
+		final List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 200; i++){
+			records.add(Fixtures.record(header, "read" + i, 1 + i * 10, "50M", r));
+		}
+		File bam = Fixtures.writeBAM(header, records);
+		return new BAMInterface(bam, "sample", "tumor");
+	}
+
+	private static CountDownLatch leaseLater(final BAMInterface bi, AtomicReference<SamReader> leased){
+		return Fixtures.callLater(new Callable<SamReader>(){
+			@Override
+			public SamReader call() throws Exception {
+				return bi.leaseSharedSamReader();
+			}
+		}, leased);
+	}
+
+	/**
+	 * A filter that fails on the given read, as a bad record would part way through a query.
+	 */
+	private static ReadFilter failingOn(final String name){
+		return new ReadFilter().and(new SamRecordFilter(){
+			@Override
+			public boolean filterOut(SAMRecord record) {
+				if (record.getReadName().equals(name)){
+					throw new IllegalStateException("bad record " + name);
+				}
+				return false;
+			}
+
+			@Override
+			public boolean filterOut(SAMRecord first, SAMRecord second) {
+				return filterOut(first) || filterOut(second);
+			}
+		});
+	}
+
+	private static List<String> names(List<SAMRecord> records){
+		List<String> names = new ArrayList<String>();
+		for (SAMRecord rec : records){
+			names.add(rec.getReadName());
+		}
+		return names;
+	}
+
+	@Test
+	public void testLimitBlocks() throws Exception {
+		BAMInterface bi = writeBAM();
+		bi.setSharedReaderLimit(2);
+		SamReader first = bi.leaseSharedSamReader();
+		SamReader second = bi.leaseSharedSamReader();
+		assertNotSame(first, second);
+		AtomicReference<SamReader> leased = new AtomicReference<SamReader>();
+		CountDownLatch done = leaseLater(bi, leased);
+		assertFalse("Both readers are leased", done.await(200, TimeUnit.MILLISECONDS));
+		bi.releaseSharedSamReader(second);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertSame("The released reader is reused", second, leased.get());
+		assertEquals(2, bi.getOpenCount());
+		assertEquals(1, bi.getReuseCount());
+
+		// raising the limit admits a waiter at once
+		done = leaseLater(bi, leased);
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		bi.setSharedReaderLimit(3);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(3, bi.getOpenCount());
+		bi.releaseSharedSamReader(first);
+		bi.releaseSharedSamReader(second);
+		bi.releaseSharedSamReader(leased.get());
+		assertSame("Idle readers are reused last released first", leased.get(), bi.leaseSharedSamReader());
+		assertEquals(3, bi.getOpenCount());
+		bi.releaseSharedSamReader(leased.get());
+		bi.closePooledReaders();
+	}
+
+	@Test
+	public void testReleaseAfterError() throws Exception {
+		BAMInterface bi = writeBAM();
+		bi.setSharedReaderLimit(1);
+		SamReader sam = bi.leaseSharedSamReader();
+		try {
+			BAMUtils.getRecords(sam, "1", 1, 5000, failingOn("read50"), null);
+			fail("The filter should have failed");
+		} catch (IllegalStateException e) {
+			// getRecords closes its query on the way out, so the reader can go back
+		}
+		bi.releaseSharedSamReader(sam);
+		SamReader again = bi.leaseSharedSamReader();
+		assertSame(sam, again);
+		List<SAMRecord> records = BAMUtils.getRecords(again, "1", 1001, 1100, new ReadFilter(), null);
+		assertEquals("read96", records.get(0).getReadName());
+		assertEquals("read109", records.get(records.size() - 1).getReadName());
+		bi.releaseSharedSamReader(again);
+		assertEquals(1, bi.getOpenCount());
+		assertEquals(0, bi.getDiscardCount());
+		bi.closePooledReaders();
+	}
+
+	@Test
+	public void testDiscardAfterError() throws Exception {
+		BAMInterface bi = writeBAM();
+		bi.setSharedReaderLimit(1);
+		SamReader sam = bi.leaseSharedSamReader();
+		AtomicReference<SamReader> leased = new AtomicReference<SamReader>();
+		CountDownLatch done = leaseLater(bi, leased);
+		try {
+			BAMUtils.getRecords(sam, "1", 1, 5000, failingOn("read50"), null);
+			fail("The filter should have failed");
+		} catch (IllegalStateException e) {
+			bi.discardSharedSamReader(sam);
+		}
+		assertTrue("Discarding makes room for a new reader", done.await(5, TimeUnit.SECONDS));
+		assertNotSame(sam, leased.get());
+		assertEquals(2, bi.getOpenCount());
+		assertEquals(1, bi.getDiscardCount());
+		List<SAMRecord> all = BAMUtils.getRecords(leased.get(), "1", 1, 5000, new ReadFilter(), null);
+		assertEquals(200, all.size());
+		assertEquals("read0", all.get(0).getReadName());
+		bi.releaseSharedSamReader(leased.get());
+
+		// an idle reader is closed with the pool, the next lease opens one
+		bi.closePooledReaders();
+		SamReader reopened = bi.leaseSharedSamReader();
+		assertEquals(3, bi.getOpenCount());
+		assertEquals(names(all).subList(95, 105), names(BAMUtils.getRecords(reopened, "1", 1000, 1045, new ReadFilter(), null)));
+		bi.releaseSharedSamReader(reopened);
+		bi.closePooledReaders();
+	}
+}
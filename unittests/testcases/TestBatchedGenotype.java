@@ -0,0 +1,96 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.util.SequenceUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.BAMUtils.Variant;
+import org.bcm.hgsc.utils.ByteContainer;
+import org.junit.Test;
+
+public class TestBatchedGenotype {
+	private static final int LENGTH = 3000;
+
+	private static void assertSameVariant(Variant expected, Variant actual){
+		final String site = expected.getChr() + ":" + expected.getPos();
+		assertEquals(site, expected.getPos(), actual.getPos());
+		assertEquals(site, expected.getTotCount(), actual.getTotCount());
+		assertEquals(site, expected.getReferences(), actual.getReferences());
+		assertEquals(site, expected.getVariants(), actual.getVariants());
+		for (ByteContainer allele : expected.getVariants()){
+			assertArrayEquals(site, expected.getAlleleQuals(allele), actual.getAlleleQuals(allele));
+		}
+		assertArrayEquals(site, expected.getQuals(), actual.getQuals());
+		assertArrayEquals(site, expected.getMapQuals(), actual.getMapQuals());
+	}
+
+	@Test
+	public void testMatchesSingleSite() throws Exception {
+		final String sequence = Fixtures.randomBases(new Random(21), LENGTH);
+		final byte[] bases = sequence.getBytes();
+		File fasta = Fixtures.writeFasta(new String[] {"1"}, new String[] {sequence}, 60);
+		SAMFileHeader header = Fixtures.header("1", LENGTH);
+		Random r = new Random(5);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 300; i++){
+			final String cigar = (10 + r.nextInt(30)) + "M" + (1 + r.nextInt(3)) + (r.nextBoolean() ? "I" : "D") + (10 + r.nextInt(30)) + "M";
+			SAMRecord rec = Fixtures.record(header, "read" + i, 100 + r.nextInt(2400), cigar, r);
+			rec.setReadNegativeStrandFlag(r.nextBoolean());
+			rec.setMappingQuality(r.nextInt(61));
+			if (r.nextInt(10) == 0){
+				rec.setDuplicateReadFlag(true);
+			} else if (r.nextInt(10) == 0){
+				rec.setNotPrimaryAlignmentFlag(true);
+			}
+			records.add(rec);
+		}
+		// both sites below are covered by this read
+		records.add(Fixtures.record(header, "shared", 1500, "40M", r));
+		for (SAMRecord rec : records){
+			// the single site genotype conforms from the MD tag
+			SequenceUtil.calculateMdAndNmTags(rec, bases, true, true);
+		}
+		SamReader sam = SamReaderFactory.makeDefault().open(Fixtures.writeBAM(header, records));
+
+		int[] positions = new int[103];
+		for (int i = 0; i < 98; i++){
+			positions[i] = 50 + r.nextInt(2600);
+		}
+		positions[98] = 1510;
+		positions[99] = 1520;
+		positions[100] = 1520;
+		// uncovered
+		positions[101] = 2950;
+		positions[102] = 1;
+		Arrays.sort(positions);
+
+		List<Variant> batched = BAMUtils.genotype(sam, "1", positions, 0, 1284, null);
+		IndexedFastaSequenceFile ref = new IndexedFastaSequenceFile(fasta);
+		List<Variant> conformed = BAMUtils.genotype(sam, "1", positions, 0, 1284, ref);
+		assertEquals(positions.length, batched.size());
+		assertEquals(positions.length, conformed.size());
+		boolean covered = false;
+		for (int i = 0; i < positions.length; i++){
+			final Variant single = BAMUtils.genotype(sam, "1", positions[i], null, 0, 1284);
+			assertSameVariant(single, batched.get(i));
+			assertSameVariant(single, conformed.get(i));
+			covered |= single.getTotCount() > 0;
+		}
+		assertTrue(covered);
+		assertEquals(0, batched.get(positions.length - 1).getTotCount());
+		ref.close();
+		sam.close();
+	}
+}
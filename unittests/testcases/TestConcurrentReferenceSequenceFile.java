@@ -0,0 +1,88 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+
+import java.io.File;
+import java.util.Random;
+
+import org.bcm.hgsc.utils.ConcurrentReferenceSequenceFile;
+import org.junit.Test;
+
+public class TestConcurrentReferenceSequenceFile {
+
+	/**
+	 * Writes a fasta of random bases with 60 bases per line and its index.
+	 */
+	private static File writeFasta(int[] lengths) throws Exception{
+		String[] headers = new String[lengths.length];
+		String[] sequences = new String[lengths.length];
+		Random r = new Random(7);
+		for (int c = 0; c < lengths.length; c++){
+			headers[c] = "chr" + c;
+			StringBuilder sequence = new StringBuilder(lengths[c]);
+			for (int i = 0; i < lengths[c]; i++){
+				sequence.append("ACGT".charAt(r.nextInt(4)));
+			}
+			sequences[c] = sequence.toString();
+		}
+		return Fixtures.writeFasta(headers, sequences, 60);
+	}
+
+	@Test
+	public void testMatchesIndexedFasta() throws Exception {
+		final int[] lengths = new int[] {1000, 357};
+		File fasta = writeFasta(lengths);
+		IndexedFastaSequenceFile expected = new IndexedFastaSequenceFile(fasta);
+		ConcurrentReferenceSequenceFile cached = new ConcurrentReferenceSequenceFile(fasta, 100, 3);
+		Random r = new Random(11);
+		for (int t = 0; t < 2000; t++){
+			String contig = "chr" + r.nextInt(2);
+			int length = lengths[contig.equals("chr0") ? 0 : 1];
+			long start = 1 + r.nextInt(length);
+			long stop = Math.min(length, start + r.nextInt(150));
+			assertArrayEquals(contig + ":" + start + "-" + stop, expected.getSubsequenceAt(contig, start, stop).getBases(),
+					cached.getSubsequenceAt(contig, start, stop).getBases());
+		}
+		assertEquals(1, cached.getSubsequenceAt("chr1", 1, 1).getContigIndex());
+		assertTrue(cached.getHits() > 0);
+		assertTrue(cached.getUncached() > 0);
+		cached.close();
+		expected.close();
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		File fasta = writeFasta(new int[] {5000});
+		IndexedFastaSequenceFile expected = new IndexedFastaSequenceFile(fasta);
+		final String sequence = new String(expected.getSequence("chr0").getBases());
+		expected.close();
+		final ConcurrentReferenceSequenceFile cached = new ConcurrentReferenceSequenceFile(fasta, 256, 4);
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++){
+			final int seed = i;
+			threads[i] = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for (int t = 0; t < 1000; t++){
+						int start = 1 + r.nextInt(4900);
+						int stop = start + r.nextInt(100);
+						String got = new String(cached.getSubsequenceAt("chr0", start, stop).getBases());
+						if (!got.equals(sequence.substring(start - 1, stop))){
+							failed[0] = true;
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads){
+			thread.join();
+		}
+		assertFalse(failed[0]);
+		cached.close();
+	}
+}
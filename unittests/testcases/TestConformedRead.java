@@ -0,0 +1,140 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+import org.bcm.hgsc.utils.ByteView;
+import org.junit.Test;
+
+public class TestConformedRead {
+
+	/**
+	 * The read from the {@link ConformedRead} documentation;
+	 * 	read;	ATCGATCGATCG
+	 * 	CIGAR;	3M1I3M1D5M
+	 * 	pos;	1
+	 */
+	private static ConformedRead exampleRead() throws Exception{
+		return BAMUtils.conformToReference(exampleRecord());
+	}
+
+	private static SAMRecord exampleRecord() throws Exception{
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("1", 1000));
+		SAMRecord rec = new SAMRecord(header);
+		rec.setReadName("example");
+		rec.setReferenceName("1");
+		rec.setAlignmentStart(1);
+		rec.setCigarString("3M1I3M1D5M");
+		rec.setReadBases("ATCGATCGATCG".getBytes());
+		byte[] qual = new byte[12];
+		for (int i = 0; i < qual.length; i++){
+			qual[i] = (byte) (20 + i);
+		}
+		rec.setBaseQualities(qual);
+		rec.setAttribute("MD", "6^A5");
+		return rec;
+	}
+
+	@Test
+	public void testPositions() throws Exception {
+		ConformedRead cr = exampleRead();
+		assertEquals(13, cr.length());
+		assertArrayEquals(new int[] {1, 2, 3, 4, 4, 5, 6, 7, 8, 9, 10, 11, 12}, cr.getPositions());
+		assertEquals("Insertion carries the next reference position", 3, cr.indexOfGenomicPos(4));
+		assertEquals(CigarOperator.INSERTION, cr.getCigarAtIndex(3));
+		assertEquals(7, cr.indexOfGenomicPos(7));
+		assertEquals(CigarOperator.DELETION, cr.getCigarAtIndex(7));
+		assertEquals(-1, cr.indexOfGenomicPos(13));
+		assertEquals(-1, cr.indexOfGenomicPos(0));
+	}
+
+	@Test
+	public void testGenomicRanges() throws Exception {
+		ConformedRead cr = exampleRead();
+		assertEquals("TCGAT", cr.getReadAtGenomicRange(2, 5).toString());
+		assertEquals("TC-AT", cr.getRefAtGenomicRange(2, 5).toString());
+		assertEquals("C-G", cr.getReadAtGenomicRange(6, 8).toString());
+		assertEquals("CG", cr.getSeqAllele(6, 8).toString());
+		assertEquals("Reads are padded with dots past their end", "CG..", cr.getReadAtGenomicRange(11, 14).toString());
+		assertEquals("", cr.getRefAtGenomicRange(13, 14).toString());
+		// deletions are skipped in qualities except at the start position
+		assertArrayEquals(new byte[] {26, 27}, cr.getQualityAtGenomicRange(6, 8).bytes);
+		assertArrayEquals(new byte[] {BAMUtils.unk, 27}, cr.getQualityAtGenomicRange(7, 8).bytes);
+		assertArrayEquals(new CigarOperator[] {CigarOperator.M, CigarOperator.M}, cr.getCigarAtGenomicRange(6, 8));
+		assertEquals(Byte.valueOf((byte) 23), cr.getQualAtGenomicPos(3));
+		assertEquals(Byte.valueOf(BAMUtils.unk), cr.getQualAtGenomicPos(6));
+		assertEquals(Byte.valueOf((byte) 27), cr.getQualAtGenomicPos(8));
+		assertNull(cr.getQualAtGenomicPos(20));
+	}
+
+	@Test
+	public void testUnpackedConstructor() throws Exception {
+		ConformedRead cr = exampleRead();
+		CigarOperator[] cigar = new CigarOperator[cr.length()];
+		for (int i = 0; i < cigar.length; i++){
+			cigar[i] = cr.getCigarAtIndex(i);
+		}
+		byte[] qual = new byte[] {20, 21, 22, 23, 24, 25, 26, BAMUtils.unk, 27, 28, 29, 30, 31};
+		ConformedRead copy = new ConformedRead(null, "1", 1, 12, cr.getRefAtGenomicRange(1, 12).bytes,
+				cr.getReadAtGenomicRange(1, 12).bytes, qual, cr.getPositions(), cigar, 60, true);
+		assertArrayEquals(cr.getPositions(), copy.getPositions());
+		assertEquals(cr.getReadAtGenomicRange(3, 9).toString(), copy.getReadAtGenomicRange(3, 9).toString());
+		assertArrayEquals(cr.getQualityAtGenomicRange(1, 12).bytes, copy.getQualityAtGenomicRange(1, 12).bytes);
+		assertArrayEquals(cr.getAlleleRangeAtGenomicPos(4), copy.getAlleleRangeAtGenomicPos(4));
+	}
+
+	@Test
+	public void testViews() throws Exception {
+		ConformedRead cr = exampleRead();
+		ByteView seq = cr.getSeqAlleleView(6, 8);
+		assertEquals("CG", seq.toString());
+		assertEquals(cr.getSeqAllele(6, 8).toString(), seq.toString());
+		assertEquals(new ByteView("CG".getBytes()), seq);
+		assertEquals(new ByteView("CG".getBytes()).hashCode(), seq.hashCode());
+		assertTrue(seq.regionMatches(1, 2, "G".getBytes()));
+		assertEquals("CG..", cr.getReadViewAtGenomicRange(11, 14).toString());
+		assertEquals(2, cr.getReadViewAtGenomicRange(11, 14).indexOfAny(new byte[] {BAMUtils.dot}));
+		assertEquals(26, cr.getQualityViewAtGenomicRange(6, 8).min());
+		assertTrue(cr.isReference(1, 3));
+		assertFalse(cr.isReference(3, 5));
+		assertFalse(cr.containsN(1, 12));
+	}
+
+	@Test
+	public void testSliceToIndex() throws Exception {
+		ConformedRead slice = exampleRead().sliceToIndex(2, 9);
+		assertArrayEquals(new int[] {3, 4, 4, 5, 6, 7, 8}, slice.getPositions());
+		assertEquals("CGATC-G", slice.getReadAtGenomicRange(3, 8).toString());
+		assertEquals(3, slice.readStart());
+		assertEquals(9, slice.readEnd());
+	}
+
+	@Test
+	public void testWindowedConformance() throws Exception {
+		ConformedRead full = exampleRead();
+		for (int start = 1; start <= 12; start++){
+			for (int end = start; end <= 12; end++){
+				ConformedRead window = BAMUtils.conformToReference(exampleRecord(), null, start, end, 1);
+				assertEquals(1, window.readStart());
+				assertEquals(12, window.readEnd());
+				for (int pos = start; pos <= end; pos++){
+					assertEquals(full.getReadAtGenomicPos(pos), window.getReadAtGenomicPos(pos));
+					assertEquals(full.getRefAtGenomicPos(pos), window.getRefAtGenomicPos(pos));
+					assertEquals(full.getQualAtGenomicPos(pos), window.getQualAtGenomicPos(pos));
+				}
+				assertEquals(full.getReadAtGenomicRange(start, end + 1), window.getReadAtGenomicRange(start, end + 1));
+				assertEquals(full.getSeqAllele(start, end).toString(), window.getSeqAllele(start, end).toString());
+			}
+		}
+		ConformedRead window = BAMUtils.conformToReference(exampleRecord(), null, 4, 4, 0);
+		assertArrayEquals("Insertion before the window position is included", new int[] {4, 4}, window.getPositions());
+		assertEquals(0, BAMUtils.conformToReference(exampleRecord(), null, 20, 30, 2).length());
+	}
+}
@@ -0,0 +1,135 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bcm.hgsc.utils.BAMInterface;
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.BAMUtils.ConformedRead;
+import org.bcm.hgsc.utils.ConformedReadCache;
+import org.bcm.hgsc.utils.ReadFilter;
+import org.junit.Test;
+
+public class TestConformedReadCache {
+	private static final String[] CIGARS = new String[] {"50M", "20M5D30M", "10S40M", "30M2I18M", "25M150N25M", "40M10S", "100M"};
+	private static final int[] LENGTHS = new int[] {3000, 1000};
+
+	private BAMInterface bi;
+	private IndexedFastaSequenceFile ref;
+
+	/**
+	 * Writes random reads over two contigs with a mix of CIGARs, every tenth a duplicate.
+	 */
+	private void writeFixtures() throws Exception{
+		final Random r = new Random(15);
+		final String[] names = new String[] {"1", "2"};
+		final String[] sequences = new String[] {Fixtures.randomBases(r, LENGTHS[0]), Fixtures.randomBases(r, LENGTHS[1])};
+		this.ref = new IndexedFastaSequenceFile(Fixtures.writeFasta(names, sequences, 60));
+		final SAMFileHeader header = Fixtures.header("1", LENGTHS[0]);
+		header.addSequence(new SAMSequenceRecord("2", LENGTHS[1]));
+		final List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 400; i++){
+			final int contig = i % 4 == 0 ? 1 : 0;
+			final SAMRecord rec = Fixtures.record(header, "read" + i, 1 + r.nextInt(LENGTHS[contig] - 300), CIGARS[r.nextInt(CIGARS.length)], r);
+			rec.setReferenceName(names[contig]);
+			rec.setDuplicateReadFlag(i % 10 == 0);
+			records.add(rec);
+		}
+		this.bi = new BAMInterface(Fixtures.writeBAM(header, records), "sample", "tumor");
+	}
+
+	private static List<String> describe(List<ConformedRead> reads){
+		List<String> described = new ArrayList<String>();
+		for (ConformedRead cr : reads){
+			described.add(cr.getReadName() + "\n" + cr.toString());
+		}
+		return described;
+	}
+
+	/**
+	 * The reads a plain query of the region gives.
+	 */
+	private List<String> query(String chr, int start, int end, ReadFilter filter) throws Exception{
+		SamReader sam = this.bi.getSamfilereader();
+		try {
+			return describe(BAMUtils.getConformedReads(sam, chr, start, end, filter, this.ref, -1, null));
+		} finally {
+			sam.close();
+		}
+	}
+
+	private void assertSameReads(ConformedReadCache cache, ReadFilter filter, int[][] regions) throws Exception{
+		for (int[] region : regions){
+			final String chr = Integer.toString(region[0]);
+			final String where = chr + ":" + region[1] + "-" + region[2];
+			final List<String> expected = query(chr, region[1], region[2], filter);
+			assertFalse("The fixture should have reads at " + where, expected.isEmpty());
+			assertEquals(where, expected, describe(cache.getReads(chr, region[1], region[2])));
+		}
+	}
+
+	@Test
+	public void testSameAsQuery() throws Exception {
+		writeFixtures();
+		final ReadFilter filter = ReadFilter.flags(0, ReadFilter.DUPLICATE);
+		for (int readAhead : new int[] {0, 4}){
+			ConformedReadCache cache = new ConformedReadCache(this.bi, filter, this.ref, readAhead);
+			assertSameReads(cache, filter, new int[][] {
+					// forward steps that overlap, then one inside the last and the same region again
+					{1, 100, 150}, {1, 120, 180}, {1, 170, 260}, {1, 200, 210}, {1, 200, 210},
+					// a gap far wider than the window
+					{1, 1500, 1550}, {1, 1560, 1700},
+					// a step back
+					{1, 300, 340}, {1, 320, 400},
+					// a new contig, and back to the first one past where it was left
+					{2, 50, 120}, {2, 400, 450}, {1, 2000, 2100}, {1, 2050, 2400}});
+			assertTrue("Overlapping regions reuse conformed reads", cache.getFetched() < cache.getServed());
+		}
+	}
+
+	@Test
+	public void testClearedAfterFailedFetch() throws Exception {
+		writeFixtures();
+		final AtomicBoolean failing = new AtomicBoolean(false);
+		// fails on the fetch of the new reads, after some of them may have been added to the window
+		final ReadFilter filter = ReadFilter.flags(0, ReadFilter.DUPLICATE).and(new SamRecordFilter(){
+			@Override
+			public boolean filterOut(SAMRecord record) {
+				if (failing.get() && record.getAlignmentStart() > 700){
+					throw new IllegalStateException("bad record " + record.getReadName());
+				}
+				return false;
+			}
+
+			@Override
+			public boolean filterOut(SAMRecord first, SAMRecord second) {
+				return filterOut(first) || filterOut(second);
+			}
+		});
+		// with read ahead the error reaches the caller instead of dropping the read
+		ConformedReadCache cache = new ConformedReadCache(this.bi, filter, this.ref, 4);
+		assertSameReads(cache, filter, new int[][] {{1, 500, 600}});
+		failing.set(true);
+		try {
+			cache.getReads("1", 550, 900);
+			fail("The fetch should have failed");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		failing.set(false);
+		// the regions start past the failed one, a stale window would be extended rather than fetched again
+		assertSameReads(cache, filter, new int[][] {{1, 560, 900}, {1, 600, 1000}});
+	}
+}
@@ -0,0 +1,79 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bcm.hgsc.utils.DepthSampler;
+import org.junit.Test;
+
+public class TestDepthSampler {
+
+	private static List<String> sample(List<String> names, int maxDepth){
+		DepthSampler<String> sampler = new DepthSampler<String>(maxDepth);
+		for (String name : names){
+			sampler.offer(name, name);
+		}
+		assertEquals(names.size(), sampler.getSeen());
+		return sampler.getSample();
+	}
+
+	@Test
+	public void testSameReadsInAnyOrder() throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++){
+			names.add("HWI-ST1:8:C0:1:1101:" + (1000 + i) + ":2000");
+		}
+		List<String> kept = sample(names, 100);
+		assertEquals(100, kept.size());
+		for (int seed = 0; seed < 5; seed++){
+			List<String> shuffled = new ArrayList<String>(names);
+			Collections.shuffle(shuffled, new Random(seed));
+			List<String> reordered = sample(shuffled, 100);
+			assertEquals(new HashSet<String>(kept), new HashSet<String>(reordered));
+			// the kept reads come back in the order they were offered
+			List<String> inOfferOrder = new ArrayList<String>(shuffled);
+			inOfferOrder.retainAll(reordered);
+			assertEquals(inOfferOrder, reordered);
+		}
+	}
+
+	@Test
+	public void testMatesKeptTogether() throws Exception {
+		DepthSampler<String> sampler = new DepthSampler<String>(200);
+		for (int i = 0; i < 500; i++){
+			sampler.offer("pair" + i, "pair" + i + "/1");
+		}
+		for (int i = 499; i >= 0; i--){
+			sampler.offer("pair" + i, "pair" + i + "/2");
+		}
+		assertEquals("The depth before capping", 1000, sampler.getSeen());
+		List<String> kept = sampler.getSample();
+		assertEquals(200, kept.size());
+		Set<String> keptSet = new HashSet<String>(kept);
+		for (int i = 0; i < 500; i++){
+			assertEquals("pair" + i, keptSet.contains("pair" + i + "/1"), keptSet.contains("pair" + i + "/2"));
+		}
+	}
+
+	@Test
+	public void testUnderTheCap() throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 10; i++){
+			names.add("read" + (9 - i));
+		}
+		assertEquals(names, sample(names, 10));
+		assertEquals(names, sample(names, 1000));
+		assertEquals(1, sample(names, 1).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroDepth() throws Exception {
+		new DepthSampler<String>(0);
+	}
+}
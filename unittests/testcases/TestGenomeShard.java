@@ -0,0 +1,60 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.bcm.hgsc.cancer.GenomeShard;
+import org.junit.Test;
+
+public class TestGenomeShard {
+
+	private static SAMSequenceDictionary dictionary(){
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		dict.addSequence(new SAMSequenceRecord("1", 1000));
+		dict.addSequence(new SAMSequenceRecord("2", 800));
+		dict.addSequence(new SAMSequenceRecord("3", 300));
+		dict.addSequence(new SAMSequenceRecord("4", 200));
+		return dict;
+	}
+
+	@Test
+	public void testShardSpec() throws Exception {
+		SAMSequenceDictionary dict = dictionary();
+		GenomeShard first = GenomeShard.fromShardSpec("1/2", dict);
+		GenomeShard second = GenomeShard.fromShardSpec("2/2", dict);
+		// 1 goes to the first shard, 2 and 3 to the second, 4 to the first
+		assertTrue(first.containsContig("1"));
+		assertTrue(first.containsContig("4"));
+		assertTrue(second.containsContig("2"));
+		assertTrue(second.containsContig("3"));
+		for (SAMSequenceRecord contig : dict.getSequences()){
+			assertTrue("Every contig is in exactly one shard", first.containsContig(contig.getSequenceName()) ^
+					second.containsContig(contig.getSequenceName()));
+		}
+		assertEquals("Regions come back in reference order", "4", first.getRegions(dict).get(1).getSequence());
+	}
+
+	@Test(expected = Exception.class)
+	public void testEmptyRegion() throws Exception {
+		GenomeShard.fromRegions(new String[] { "2:101-200", "1:1,001-1,000" }, dictionary());
+	}
+
+	@Test
+	public void testContains() throws Exception {
+		GenomeShard shard = GenomeShard.fromRegions(new String[] { "2:301-400", "2:101-200", "3" }, dictionary());
+		assertFalse(shard.contains("2", 100));
+		assertTrue(shard.contains("2", 101));
+		assertTrue(shard.contains("2", 200));
+		assertFalse(shard.contains("2", 250));
+		assertTrue(shard.contains("2", 400));
+		assertTrue(shard.contains("3", 300));
+		assertFalse(shard.contains("1", 150));
+	}
+
+	@Test(expected = Exception.class)
+	public void testBadShard() throws Exception {
+		GenomeShard.fromShardSpec("3/2", dictionary());
+	}
+}
@@ -0,0 +1,68 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import org.bcm.hgsc.utils.LatencyHistogram;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMeanMillis(), DELTA);
+		assertEquals(0, h.getPercentileMillis(0.5), DELTA);
+		assertEquals(0, h.getMaxMillis(), DELTA);
+		assertEquals("n=0 mean=0.00ms p50=0.00ms p95=0.00ms max=0.00ms", h.toString());
+	}
+
+	@Test
+	public void testBucketBoundaries() {
+		LatencyHistogram h = new LatencyHistogram();
+		// under a microsecond is bucket 0, 1 us starts bucket 1, 1023 us and 1024 us fall either side of a boundary
+		h.record(999);
+		h.record(1000);
+		h.record(1023000);
+		h.record(1024000);
+		h.record(10000000);
+		assertEquals(5, h.getCount());
+		assertEquals(0.001, h.getPercentileMillis(0.2), DELTA);
+		assertEquals(0.002, h.getPercentileMillis(0.4), DELTA);
+		assertEquals(1.024, h.getPercentileMillis(0.6), DELTA);
+		assertEquals(2.048, h.getPercentileMillis(0.8), DELTA);
+		// 10 ms is in [8.192, 16.384) but no latency was longer than the max
+		assertEquals(10, h.getPercentileMillis(1), DELTA);
+		assertEquals(10, h.getMaxMillis(), DELTA);
+		assertEquals((999 + 1000 + 1023000 + 1024000 + 10000000) / 5e6, h.getMeanMillis(), DELTA);
+	}
+
+	@Test
+	public void testPercentileRank() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(1000);
+		h.record(1000);
+		h.record(3000);
+		h.record(1000000);
+		// the rank is rounded up, so anything past three quarters is the last latency
+		assertEquals(0.002, h.getPercentileMillis(0.5), DELTA);
+		assertEquals(0.004, h.getPercentileMillis(0.75), DELTA);
+		assertEquals(1, h.getPercentileMillis(0.76), DELTA);
+		assertEquals("n=4 mean=0.25ms p50=0.00ms p95=1.00ms max=1.00ms", h.toString());
+	}
+
+	@Test
+	public void testOutOfRange() {
+		LatencyHistogram h = new LatencyHistogram();
+		// a clock that stepped back counts as no time at all
+		h.record(-5000);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getPercentileMillis(1), DELTA);
+		assertEquals(0, h.getMaxMillis(), DELTA);
+		// anything too long for the buckets goes in the last one
+		h.record(Long.MAX_VALUE / 2);
+		assertEquals((1L << 39) / 1e3, h.getPercentileMillis(1), DELTA);
+		assertEquals((Long.MAX_VALUE / 2) / 1e6, h.getMaxMillis(), 1);
+	}
+}
@@ -0,0 +1,72 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bcm.hgsc.utils.MDVariantExtractor;
+import org.bcm.hgsc.utils.VariantCall;
+import org.junit.Test;
+
+public class TestMDVariantExtractor {
+
+	/**
+	 * 	read;	ATCGATCGATCG
+	 * 	CIGAR;	2S1M1I3M1D5M
+	 * 	pos;	3 (unclipped 1)
+	 */
+	private static SAMRecord record(String cigar, String md){
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("1", 1000));
+		SAMRecord rec = new SAMRecord(header);
+		rec.setReadName("example");
+		rec.setReferenceName("1");
+		rec.setAlignmentStart(3);
+		rec.setCigarString(cigar);
+		rec.setReadBases("ATCGATCGATCG".getBytes());
+		byte[] qual = new byte[12];
+		for (int i = 0; i < qual.length; i++){
+			qual[i] = (byte) (20 + i);
+		}
+		rec.setBaseQualities(qual);
+		rec.setAttribute("MD", md);
+		return rec;
+	}
+
+	private static List<VariantCall> extract(SAMRecord rec){
+		final List<VariantCall> calls = new ArrayList<VariantCall>();
+		int n = MDVariantExtractor.extract(rec, new MDVariantExtractor.Consumer(){
+			@Override
+			public void accept(VariantCall call) {
+				calls.add(call);
+			}
+		});
+		assertEquals(n, calls.size());
+		return calls;
+	}
+
+	@Test
+	public void testCalls() throws Exception {
+		// C at 3 is a T in the reference, A deleted at 7, G at 8 is a C in the reference
+		List<VariantCall> calls = extract(record("2S1M1I3M1D5M", "T3^A0C4"));
+		assertEquals(4, calls.size());
+		assertEquals(new VariantCall("T", "C", 3, 3, 0, 22, 255), calls.get(0));
+		assertEquals(22, calls.get(0).getBaseQuality());
+		assertEquals("Insertion sits before the next reference base", new VariantCall("-", "G", 4, 5, 0, 23, 255), calls.get(1));
+		assertEquals(new VariantCall("A", "-", 7, 8, 0, 27, 255), calls.get(2));
+		assertEquals(27, calls.get(2).getBaseQuality());
+		assertEquals(new VariantCall("C", "G", 8, 8, 0, 27, 255), calls.get(3));
+		assertEquals("Only the indels without mismatches", 2, extract(record("2S1M1I3M1D5M", "4^A5")).size());
+	}
+
+	@Test(expected = SAMException.class)
+	public void testMismatchedMD() throws Exception {
+		extract(record("2S1M1I3M1D5M", "9"));
+	}
+}
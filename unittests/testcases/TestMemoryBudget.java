@@ -0,0 +1,88 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bcm.hgsc.utils.MemoryBudget;
+import org.junit.Test;
+
+public class TestMemoryBudget {
+
+	/**
+	 * Reserves on another thread, the latch is counted down once reserve returns.
+	 */
+	private static CountDownLatch reserveLater(final MemoryBudget budget, AtomicReference<Long> reserved){
+		return Fixtures.callLater(new Callable<Long>(){
+			@Override
+			public Long call() throws Exception {
+				return budget.reserve();
+			}
+		}, reserved);
+	}
+
+	@Test
+	public void testAdmitsWhenEmpty() throws Exception {
+		MemoryBudget budget = new MemoryBudget(100, 500);
+		assertEquals("A task over the limit runs when nothing else does", 500, budget.reserve());
+		assertEquals(500, budget.getUsed());
+		AtomicReference<Long> reserved = new AtomicReference<Long>();
+		CountDownLatch done = reserveLater(budget, reserved);
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		budget.release(500);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(500L, (long) reserved.get());
+		assertEquals(500, budget.getPeak());
+	}
+
+	@Test
+	public void testBlocksOverTheLimit() throws Exception {
+		MemoryBudget budget = new MemoryBudget(100, 40);
+		long first = budget.reserve();
+		long second = budget.reserve();
+		assertEquals(80, budget.getUsed());
+		AtomicReference<Long> reserved = new AtomicReference<Long>();
+		CountDownLatch done = reserveLater(budget, reserved);
+		assertFalse("80 + 40 is over the limit", done.await(200, TimeUnit.MILLISECONDS));
+		// settling smaller than reserved frees room and wakes the waiter
+		first = budget.settle(first, 10);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(90, budget.getUsed());
+		assertTrue(budget.getWaitMillis() >= 100);
+
+		// settling larger never blocks but holds back the next reservation
+		budget.settle(second, 200);
+		assertEquals(250, budget.getUsed());
+		done = reserveLater(budget, reserved);
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(56, budget.getEstimate());
+		budget.release(200);
+		assertFalse("50 + 56 is over the limit", done.await(200, TimeUnit.MILLISECONDS));
+		budget.release(first);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(56L, (long) reserved.get());
+		assertEquals(250, budget.getPeak());
+	}
+
+	@Test
+	public void testEstimate() throws Exception {
+		MemoryBudget budget = new MemoryBudget(1 << 20, 800);
+		assertEquals(800, budget.getEstimate());
+		// the estimate moves an eighth of the way to each settled size
+		long held = budget.settle(budget.reserve(), 1600);
+		assertEquals(1600, held);
+		assertEquals(900, budget.getEstimate());
+		budget.release(held);
+		assertEquals(900, budget.reserve());
+		budget.settle(900, 100);
+		assertEquals(800, budget.getEstimate());
+		assertEquals(100, budget.getUsed());
+		for (int i = 0; i < 100; i++){
+			budget.settle(0, 0);
+		}
+		assertEquals("Converges on the settled size", 0, budget.getEstimate());
+	}
+}
@@ -0,0 +1,219 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bcm.hgsc.cancer.MergeCheckpoint;
+import org.bcm.hgsc.cancer.VCFMergeAndAnnotate;
+import org.bcm.hgsc.utils.AlleleResolver;
+import org.bcm.hgsc.utils.BAMInterface;
+import org.bcm.hgsc.utils.PackedReferenceSequenceFile;
+import org.junit.Test;
+
+public class TestMergeCheckpoint {
+
+	private static File tempOutput() throws IOException{
+		File output = File.createTempFile("merged", ".vcf");
+		output.deleteOnExit();
+		MergeCheckpoint.checkpointFile(output).deleteOnExit();
+		return output;
+	}
+
+	private static void write(File file, String text) throws IOException{
+		PrintWriter out = new PrintWriter(file);
+		out.print(text);
+		out.close();
+	}
+
+	private static String read(File file) throws IOException{
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		File output = tempOutput();
+		new MergeCheckpoint(120, "3", 45678, 98765L, 20, "3:1-100000").write(output);
+		MergeCheckpoint checkpoint = MergeCheckpoint.read(output);
+		assertEquals(120, checkpoint.getContainers());
+		assertEquals("3", checkpoint.getChr());
+		assertEquals(45678, checkpoint.getStart());
+		assertEquals(98765L, checkpoint.getBytes());
+		assertEquals(20, checkpoint.getInterval());
+		assertEquals("3:1-100000", checkpoint.getShard());
+		// a later checkpoint replaces the earlier one, a whole genome run has no shard
+		new MergeCheckpoint(140, "4", 12, 100000L, 20, null).write(output);
+		checkpoint = MergeCheckpoint.read(output);
+		assertEquals(140, checkpoint.getContainers());
+		assertEquals("", checkpoint.getShard());
+		assertFalse("The temporary file is moved into place", new File(MergeCheckpoint.checkpointFile(output).getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void testReadRefused() throws Exception {
+		File output = tempOutput();
+		try {
+			MergeCheckpoint.read(output);
+			fail("There is no checkpoint");
+		} catch (Exception e) {
+			assertTrue(e.getMessage().startsWith("No checkpoint"));
+		}
+		write(MergeCheckpoint.checkpointFile(output), "containers=12\nchr=1\nstart=x\n");
+		try {
+			MergeCheckpoint.read(output);
+			fail("The checkpoint is malformed");
+		} catch (Exception e) {
+			assertTrue(e.getMessage().startsWith("Malformed checkpoint"));
+		}
+	}
+
+	@Test
+	public void testOutputTruncatedAndHeaderDiscarded() throws Exception {
+		File output = tempOutput();
+		final String written = "#header\nrecord 1\nrecord 2\n";
+		write(output, written + "partial rec");
+		MergeCheckpoint.Output out = MergeCheckpoint.Output.open(output, new MergeCheckpoint(2, "1", 10, written.length(), 1, null));
+		assertEquals(written.length(), out.getPosition());
+		assertEquals("Everything after the checkpoint is removed", written, read(output));
+		out.setDiscarding(true);
+		out.write("#header\n".getBytes());
+		out.setDiscarding(false);
+		assertEquals("Discarded writes are not counted", written.length(), out.getPosition());
+		out.write("record 3\n".getBytes());
+		out.write('x');
+		out.sync();
+		assertEquals(written.length() + 10, out.getPosition());
+		out.close();
+		assertEquals(written + "record 3\nx", read(output));
+
+		// a new run starts the output over
+		out = MergeCheckpoint.Output.open(output, null);
+		out.write("#new\n".getBytes());
+		out.close();
+		assertEquals("#new\n", read(output));
+	}
+
+	@Test(expected = IOException.class)
+	public void testOutputShorterThanCheckpoint() throws Exception {
+		File output = tempOutput();
+		write(output, "#header\n");
+		MergeCheckpoint.Output.open(output, new MergeCheckpoint(2, "1", 10, 100, 1, null));
+	}
+
+	/**
+	 * The inputs of a small merge, SNPs every 100 bases with reads over them.
+	 */
+	private static class Inputs {
+		final File fasta;
+		final File vcf;
+		final List<BAMInterface> bams;
+
+		Inputs() throws Exception{
+			final Random r = new Random(17);
+			final String sequence = Fixtures.randomBases(r, 3000);
+			this.fasta = Fixtures.writeFasta(new String[] {"1"}, new String[] {sequence}, 60);
+			File packed = new File(this.fasta.getAbsolutePath() + PackedReferenceSequenceFile.PACKEDEXTENSION);
+			packed.deleteOnExit();
+			PackedReferenceSequenceFile.pack(this.fasta, packed);
+			this.vcf = Fixtures.writeVCF(sequence, 50, 100);
+			final SAMFileHeader header = Fixtures.header("1", sequence.length());
+			final List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for (int i = 0; i < 600; i++){
+				final int start = 1 + r.nextInt(sequence.length() - 60);
+				final SAMRecord rec = Fixtures.record(header, "read" + i, start, "60M", r);
+				// mostly the reference, so the allele counts are not all noise
+				final byte[] bases = sequence.substring(start - 1, start + 59).getBytes();
+				if (i % 3 == 0){ bases[r.nextInt(60)] = 'T'; }
+				rec.setReadBases(bases);
+				records.add(rec);
+			}
+			this.bams = Arrays.asList(new BAMInterface(Fixtures.writeBAM(header, records), "sample", null));
+		}
+
+		void merge(File output, int interval, boolean resume) throws Exception{
+			VCFMergeAndAnnotate merger = new VCFMergeAndAnnotate();
+			merger.setMetricsInterval(0);
+			merger.setCheckpointInterval(interval);
+			merger.setResume(resume);
+			merger.run(this.bams, Arrays.asList(this.vcf), 20, this.fasta, output, AlleleResolver.ResolutionType.EXPANDING, 0, null, 0, 1284, 20);
+		}
+	}
+
+	/**
+	 * @return the length of the header and the first n records of the output
+	 */
+	private static int prefixLength(String output, int n){
+		int end = 0;
+		for (String line : output.split("(?<=\n)")){
+			if (!line.startsWith("#")){
+				if (n == 0){ break; }
+				n--;
+			}
+			end += line.length();
+		}
+		return end;
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		Inputs inputs = new Inputs();
+		File full = tempOutput();
+		inputs.merge(full, 4, false);
+		assertFalse("A finished run leaves no checkpoint", MergeCheckpoint.checkpointFile(full).exists());
+		final String expected = read(full);
+		int records = 0;
+		for (String line : expected.split("\n")){
+			if (!line.startsWith("#")){ records++; }
+		}
+		assertEquals("One record per allele set", 30, records);
+
+		// as if the run stopped after the checkpoint at 8 allele sets and part of the next record
+		File interrupted = tempOutput();
+		final int bytes = prefixLength(expected, 8);
+		write(interrupted, expected.substring(0, bytes) + "1\t850\t.\tA");
+		new MergeCheckpoint(8, "1", 750, bytes, 4, null).write(interrupted);
+		inputs.merge(interrupted, 0, true);
+		assertEquals(expected, read(interrupted));
+		assertFalse(MergeCheckpoint.checkpointFile(interrupted).exists());
+	}
+
+	private static void assertRefused(Inputs inputs, MergeCheckpoint checkpoint, String message) throws Exception{
+		File output = tempOutput();
+		FileOutputStream out = new FileOutputStream(output);
+		out.write(new byte[(int) checkpoint.getBytes()]);
+		out.close();
+		checkpoint.write(output);
+		try {
+			inputs.merge(output, 0, true);
+			fail("Resumed from " + checkpoint);
+		} catch (Exception e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+		}
+	}
+
+	@Test
+	public void testResumeRefused() throws Exception {
+		Inputs inputs = new Inputs();
+		assertRefused(inputs, new MergeCheckpoint(8, "1", 751, 2000, 4, null), "Checkpoint ends at 1:751");
+		assertRefused(inputs, new MergeCheckpoint(8, "2", 750, 2000, 4, null), "Checkpoint ends at 2:750");
+		assertRefused(inputs, new MergeCheckpoint(31, "1", 3050, 2000, 4, null), "Inputs have fewer allele sets");
+		assertRefused(inputs, new MergeCheckpoint(8, "1", 750, 2000, 4, "1:1-1000"), "Checkpoint is for 1:1-1000");
+		try {
+			inputs.merge(tempOutput(), 0, true);
+			fail("There is no checkpoint");
+		} catch (Exception e) {
+			assertTrue(e.getMessage().startsWith("No checkpoint"));
+		}
+	}
+}
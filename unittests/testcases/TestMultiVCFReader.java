@@ -0,0 +1,67 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bcm.hgsc.cancer.GenomeShard;
+import org.bcm.hgsc.cancer.MultiVCFReader;
+import org.bcm.hgsc.cancer.MultiVCFReader.AlleleContainer;
+import org.bcm.hgsc.utils.PackedReferenceSequenceFile;
+import org.junit.Test;
+
+public class TestMultiVCFReader {
+	private static final int LENGTH = 2000;
+
+	/**
+	 * @return the start of every record read from the shard, in order
+	 */
+	private static List<Integer> readStarts(String[] regions) throws Exception{
+		final String sequence = Fixtures.randomBases(new Random(31), LENGTH);
+		File fasta = Fixtures.writeFasta(new String[] {"1"}, new String[] {sequence}, 60);
+		File packed = new File(fasta.getAbsolutePath() + PackedReferenceSequenceFile.PACKEDEXTENSION);
+		packed.deleteOnExit();
+		PackedReferenceSequenceFile.pack(fasta, packed);
+		PackedReferenceSequenceFile ref = new PackedReferenceSequenceFile(packed);
+		GenomeShard shard = GenomeShard.fromRegions(regions, ref.getSequenceDictionary());
+		MultiVCFReader reader = new MultiVCFReader(Arrays.asList(Fixtures.writeVCF(sequence, 25, 50)), 0, 20, ref, shard);
+		List<Integer> starts = new ArrayList<Integer>();
+		while (reader.hasNext()){
+			AlleleContainer container = reader.nextAlleleSet();
+			for (VariantContext vc : container.getVariantContexts()){
+				starts.add(vc.getStart());
+			}
+		}
+		reader.close();
+		ref.close();
+		return starts;
+	}
+
+	private static List<Integer> everySNP(int first, int last){
+		List<Integer> starts = new ArrayList<Integer>();
+		for (int pos = 25; pos <= LENGTH; pos += 50){
+			if (pos >= first && pos <= last){ starts.add(pos); }
+		}
+		return starts;
+	}
+
+	@Test
+	public void testSeparateRegions() throws Exception {
+		List<Integer> expected = everySNP(100, 300);
+		expected.addAll(everySNP(1001, 1100));
+		assertEquals(expected, readStarts(new String[] {"1:1001-1100", "1:100-300"}));
+	}
+
+	@Test
+	public void testOverlappingRegions() throws Exception {
+		// the second region is inside the first and the third starts inside the first, each record is read once
+		assertEquals(everySNP(1, 1500), readStarts(new String[] {"1:1-1000", "1:100-200", "1:300-1500"}));
+		assertEquals(everySNP(1, 1600), readStarts(new String[] {"1:300-1500", "1:1-1000", "1:100-200", "1:1400-1600", "1:1450-1475"}));
+	}
+}
@@ -0,0 +1,73 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequence;
+
+import java.io.File;
+import java.util.Random;
+
+import org.bcm.hgsc.utils.PackedReferenceSequenceFile;
+import org.junit.Test;
+
+public class TestPackedReferenceSequenceFile {
+
+	/**
+	 * Writes an indexed fasta with soft masked stretches and runs of N and other ambiguity codes.
+	 */
+	private static File writeFasta(int[] lengths) throws Exception{
+		String[] headers = new String[lengths.length];
+		String[] sequences = new String[lengths.length];
+		Random r = new Random(3);
+		for (int c = 0; c < lengths.length; c++){
+			headers[c] = "contig" + c + " description";
+			StringBuilder sequence = new StringBuilder(lengths[c]);
+			boolean lower = false;
+			char special = 0;
+			for (int i = 0; i < lengths[c]; i++){
+				if (r.nextInt(40) == 0){ lower = !lower; }
+				if (r.nextInt(60) == 0){ special = special == 0 ? "NNNRY".charAt(r.nextInt(5)) : 0; }
+				char base = special != 0 ? special : "ACGT".charAt(r.nextInt(4));
+				sequence.append(lower ? Character.toLowerCase(base) : base);
+			}
+			sequences[c] = sequence.toString();
+		}
+		return Fixtures.writeFasta(headers, sequences, 50);
+	}
+
+	@Test
+	public void testMatchesIndexedFasta() throws Exception {
+		final int[] lengths = new int[] {2001, 1, 6};
+		File fasta = writeFasta(lengths);
+		File packed = new File(fasta.getAbsolutePath() + PackedReferenceSequenceFile.PACKEDEXTENSION);
+		packed.deleteOnExit();
+		PackedReferenceSequenceFile.pack(fasta, packed);
+		assertTrue(PackedReferenceSequenceFile.isPacked(packed));
+		assertFalse(PackedReferenceSequenceFile.isPacked(fasta));
+		assertTrue(PackedReferenceSequenceFile.openShared(fasta) instanceof PackedReferenceSequenceFile);
+
+		IndexedFastaSequenceFile expected = new IndexedFastaSequenceFile(fasta);
+		PackedReferenceSequenceFile ref = new PackedReferenceSequenceFile(packed);
+		assertEquals(lengths.length, ref.getSequenceDictionary().size());
+		for (int c = 0; c < lengths.length; c++){
+			String contig = "contig" + c;
+			assertEquals(lengths[c], ref.getSequenceDictionary().getSequence(contig).getSequenceLength());
+			assertArrayEquals(expected.getSequence(contig).getBases(), ref.getSequence(contig).getBases());
+		}
+		Random r = new Random(5);
+		for (int t = 0; t < 2000; t++){
+			long start = 1 + r.nextInt(lengths[0]);
+			long stop = Math.min(lengths[0], start + r.nextInt(100));
+			ReferenceSequence seq = ref.getSubsequenceAt("contig0", start, stop);
+			assertArrayEquals("contig0:" + start + "-" + stop, expected.getSubsequenceAt("contig0", start, stop).getBases(), seq.getBases());
+			assertEquals(0, seq.getContigIndex());
+		}
+		assertEquals(0, ref.getSubsequenceAt("contig2", 4, 3).length());
+		int n = 0;
+		while (ref.nextSequence() != null){ n++; }
+		assertEquals(lengths.length, n);
+		ref.close();
+		expected.close();
+	}
+}
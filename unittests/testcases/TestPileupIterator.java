@@ -0,0 +1,198 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.bcm.hgsc.utils.BAMUtils;
+import org.bcm.hgsc.utils.BAMUtils.Pileup;
+import org.bcm.hgsc.utils.PileupIterator;
+import org.junit.Test;
+
+public class TestPileupIterator {
+	private static final int LENGTH = 3000;
+
+	/**
+	 * The column at pos from walking the CIGAR of every read, in BAM order;  base, quality and orientation of each read that has an
+	 * aligned or deleted base there.
+	 */
+	private static String naiveColumn(List<SAMRecord> sorted, int pos){
+		StringBuilder column = new StringBuilder();
+		for (SAMRecord rec : sorted){
+			if (rec.getDuplicateReadFlag()){ continue; }
+			int refPos = rec.getAlignmentStart();
+			int readPos = 0;
+			for (CigarElement e : rec.getCigar().getCigarElements()){
+				for (int k = 0; k < e.getLength(); k++){
+					switch (e.getOperator()){
+					case M: case EQ: case X:
+						if (refPos == pos){
+							column.append(entry(rec.getReadBases()[readPos], rec.getBaseQualities()[readPos], rec.getReadNegativeStrandFlag() ? -1 : 1));
+						}
+						refPos++;
+						readPos++;
+						break;
+					case D:
+						if (refPos == pos){
+							column.append(entry(BAMUtils.unk, (byte) 0, rec.getReadNegativeStrandFlag() ? -1 : 1));
+						}
+						refPos++;
+						break;
+					case N:
+						refPos++;
+						break;
+					case I: case S:
+						readPos++;
+						break;
+					default:
+						break;
+					}
+				}
+			}
+		}
+		return column.toString();
+	}
+
+	private static String entry(byte base, byte qual, int orientation){
+		return (char) base + "," + qual + "," + orientation + ";";
+	}
+
+	private static String column(Pileup pileup){
+		StringBuilder column = new StringBuilder();
+		for (int i = 0; i < pileup.depth(); i++){
+			column.append(entry(pileup.getSeqAt(i), pileup.getQualAt(i), pileup.getOrientationAt(i)));
+		}
+		return column.toString();
+	}
+
+	/**
+	 * Checks every column of the iterator over [start, end] against the naive pileup and that no covered position is left out.
+	 * @return the columns by position
+	 */
+	private static TreeMap<Integer, String> checkPileup(SAMFileHeader header, List<SAMRecord> records, int start, int end) throws Exception{
+		final String sequence = Fixtures.randomBases(new Random(17), LENGTH);
+		ReferenceSequenceFile ref = new IndexedFastaSequenceFile(Fixtures.writeFasta(new String[] {"1"}, new String[] {sequence}, 60));
+		File bam = Fixtures.writeBAM(header, records);
+		SamReader sam = SamReaderFactory.makeDefault().open(bam);
+		List<SAMRecord> sorted = new ArrayList<SAMRecord>(records);
+		Collections.sort(sorted, new SAMRecordCoordinateComparator());
+
+		TreeMap<Integer, String> columns = new TreeMap<Integer, String>();
+		PileupIterator pileups = BAMUtils.getPileupIterator(sam, "1", start, end, 0, 1024, ref);
+		while (pileups.hasNext()){
+			Pileup pileup = pileups.next();
+			final int pos = (int) pileup.getPos();
+			assertTrue("Columns are in order", columns.isEmpty() || pos > columns.lastKey());
+			assertEquals("Reference at " + pos, sequence.charAt(pos - 1), (char) pileup.getRef());
+			assertEquals("Column at " + pos, naiveColumn(sorted, pos), column(pileup));
+			columns.put(pos, column(pileup));
+		}
+		pileups.close();
+		for (int pos = start; pos <= end; pos++){
+			if (!columns.containsKey(pos)){
+				assertEquals("Covered position " + pos + " has no column", "", naiveColumn(sorted, pos));
+			}
+		}
+		sam.close();
+		ref.close();
+		return columns;
+	}
+
+	@Test
+	public void testCigarOperators() throws Exception {
+		SAMFileHeader header = Fixtures.header("1", LENGTH);
+		Random r = new Random(1);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		// covers 100-111 with a deletion at 105-106
+		records.add(Fixtures.record(header, "deletion", 100, "5M2D5M", r));
+		// covers 100-109, the inserted bases are in no column
+		records.add(Fixtures.record(header, "insertion", 100, "5M3I5M", r));
+		// covers 98-105, the clipped bases are in no column
+		records.add(Fixtures.record(header, "clipped", 98, "4S8M2S", r));
+		// covers 100-102 and 123-126, skipping 103-122
+		SAMRecord skipped = Fixtures.record(header, "skipped", 100, "3M20N4M", r);
+		skipped.setReadNegativeStrandFlag(true);
+		records.add(skipped);
+		SAMRecord duplicate = Fixtures.record(header, "duplicate", 100, "20M", r);
+		duplicate.setDuplicateReadFlag(true);
+		records.add(duplicate);
+
+		TreeMap<Integer, String> columns = checkPileup(header, records, 1, 200);
+		assertEquals(98, (int) columns.firstKey());
+		assertTrue(columns.get(105).contains(entry(BAMUtils.unk, (byte) 0, 1)));
+		assertEquals("Deletion, insertion and clipped reads at 105", 3, columns.get(105).split(";").length);
+		assertFalse("Only the skipping read is active at 115", columns.containsKey(115));
+		assertEquals(1, columns.get(123).split(";").length);
+		assertEquals(126, (int) columns.lastKey());
+	}
+
+	@Test
+	public void testGaps() throws Exception {
+		SAMFileHeader header = Fixtures.header("1", LENGTH);
+		Random r = new Random(2);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		records.add(Fixtures.record(header, "first", 100, "20M", r));
+		records.add(Fixtures.record(header, "second", 1000, "20M", r));
+		records.add(Fixtures.record(header, "third", 2900, "20M", r));
+		TreeMap<Integer, String> columns = checkPileup(header, records, 50, 2000);
+		assertEquals(40, columns.size());
+		assertTrue(columns.containsKey(119));
+		assertTrue(columns.containsKey(1000));
+		assertFalse(columns.containsKey(120));
+		assertFalse("Reads past the region are not used", columns.containsKey(2900));
+	}
+
+	@Test
+	public void testRingGrowth() throws Exception {
+		SAMFileHeader header = Fixtures.header("1", LENGTH);
+		Random r = new Random(3);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 150; i++){
+			SAMRecord rec = Fixtures.record(header, "read" + i, 200 + i % 5, i % 3 == 0 ? "30M2D30M" : "60M", r);
+			rec.setReadNegativeStrandFlag(i % 2 == 0);
+			records.add(rec);
+		}
+		// joins the grown ring while the reads before it are being dropped
+		records.add(Fixtures.record(header, "late", 262, "20M", r));
+		TreeMap<Integer, String> columns = checkPileup(header, records, 150, 400);
+		assertEquals(150, columns.get(210).split(";").length);
+		assertEquals(1, columns.get(270).split(";").length);
+	}
+
+	@Test
+	public void testRandomReads() throws Exception {
+		SAMFileHeader header = Fixtures.header("1", LENGTH);
+		Random r = new Random(4);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 400; i++){
+			StringBuilder cigar = new StringBuilder();
+			if (r.nextInt(4) == 0){ cigar.append(1 + r.nextInt(5)).append("S"); }
+			cigar.append(5 + r.nextInt(20)).append("M");
+			for (int k = r.nextInt(3); k > 0; k--){
+				final String op = r.nextInt(5) == 0 ? "N" : r.nextBoolean() ? "I" : "D";
+				cigar.append(1 + r.nextInt(op.equals("N") ? 30 : 4)).append(op);
+				cigar.append(3 + r.nextInt(20)).append("M");
+			}
+			if (r.nextInt(4) == 0){ cigar.append(1 + r.nextInt(5)).append("S"); }
+			SAMRecord rec = Fixtures.record(header, "read" + i, 100 + r.nextInt(LENGTH - 400), cigar.toString(), r);
+			rec.setReadNegativeStrandFlag(r.nextBoolean());
+			rec.setDuplicateReadFlag(r.nextInt(10) == 0);
+			records.add(rec);
+		}
+		assertFalse(checkPileup(header, records, 500, 2500).isEmpty());
+	}
+}
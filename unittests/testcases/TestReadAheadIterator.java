@@ -0,0 +1,115 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bcm.hgsc.utils.ReadAheadIterator;
+import org.junit.Test;
+
+public class TestReadAheadIterator {
+
+	/**
+	 * Counts to count, blocking before the element at blockAt until the gate opens.
+	 */
+	private static class Source implements Iterator<Integer>, Closeable {
+		final int count;
+		final int blockAt;
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		volatile boolean closed = false;
+		int next = 0;
+
+		Source(int count, int blockAt){
+			this.count = count;
+			this.blockAt = blockAt;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.next == this.blockAt){
+				this.blocked.countDown();
+				try {
+					this.gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return this.next < this.count;
+		}
+
+		@Override
+		public Integer next() {
+			return this.next++;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.closed = true;
+		}
+	}
+
+	@Test
+	public void testReadsInOrder() throws Exception {
+		final long buffers = ReadAheadIterator.getTotalBuffers();
+		final long maxBuffered = ReadAheadIterator.getTotalMaxBuffered();
+		Source source = new Source(1000, -1);
+		ReadAheadIterator<Integer> it = new ReadAheadIterator<Integer>(source, 8);
+		for (int i = 0; i < 1000; i++){
+			assertTrue(it.hasNext());
+			assertEquals(i, (int) it.next());
+		}
+		assertFalse(it.hasNext());
+		assertTrue(it.getMaxBuffered() >= 1 && it.getMaxBuffered() <= 8);
+		it.close();
+		assertTrue(source.closed);
+		// closed buffers are counted so a run can report their depth
+		assertEquals(buffers + 1, ReadAheadIterator.getTotalBuffers());
+		assertEquals(maxBuffered + it.getMaxBuffered(), ReadAheadIterator.getTotalMaxBuffered());
+		assertTrue(ReadAheadIterator.getPeakBuffered() >= it.getMaxBuffered());
+	}
+
+	@Test
+	public void testCloseWhenInterrupted() throws Exception {
+		Source source = new Source(1000, 3);
+		ReadAheadIterator<Integer> it = new ReadAheadIterator<Integer>(source, 4);
+		assertEquals(0, (int) it.next());
+		assertTrue(source.blocked.await(5, TimeUnit.SECONDS));
+		Thread.currentThread().interrupt();
+		try {
+			it.close();
+			fail("The producer is still reading");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			assertTrue("The interrupt is kept", Thread.interrupted());
+			source.gate.countDown();
+		}
+		assertTrue("The source is closed even though the producer did not stop", source.closed);
+	}
+
+	@Test
+	public void testOnCallingThread() throws Exception {
+		final long buffers = ReadAheadIterator.getTotalBuffers();
+		Source source = new Source(5, -1);
+		ReadAheadIterator<Integer> it = new ReadAheadIterator<Integer>(source, 0);
+		int n = 0;
+		while (it.hasNext()){
+			assertEquals(n++, (int) it.next());
+		}
+		assertEquals(5, n);
+		it.close();
+		assertTrue(source.closed);
+		assertEquals(0, it.getMaxBuffered());
+		assertEquals("Only buffers that read ahead are counted", buffers, ReadAheadIterator.getTotalBuffers());
+	}
+}
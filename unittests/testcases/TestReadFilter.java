@@ -0,0 +1,112 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.filter.SamRecordFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bcm.hgsc.utils.ReadFilter;
+import org.junit.Test;
+
+public class TestReadFilter {
+
+	/**
+	 * Records the names of the reads it sees under its own name, and rejects the reads whose name is in reject.
+	 */
+	private static class RecordingFilter implements SamRecordFilter {
+		private final String name;
+		private final List<String> calls;
+		private final String reject;
+
+		private RecordingFilter(String name, List<String> calls, String reject){
+			this.name = name;
+			this.calls = calls;
+			this.reject = reject;
+		}
+
+		@Override
+		public boolean filterOut(SAMRecord record) {
+			this.calls.add(this.name + ":" + record.getReadName());
+			return record.getReadName().equals(this.reject);
+		}
+
+		@Override
+		public boolean filterOut(SAMRecord first, SAMRecord second) {
+			return this.filterOut(first) || this.filterOut(second);
+		}
+	}
+
+	private static SAMRecord read(String name, int start, String cigar, int flags, int mapQ){
+		SAMFileHeader header = Fixtures.header("1", 1000);
+		SAMRecord rec = Fixtures.record(header, name, start, cigar, new Random(1));
+		rec.setFlags(flags);
+		rec.setMappingQuality(mapQ);
+		return rec;
+	}
+
+	@Test
+	public void testFlagsFold() throws Exception {
+		ReadFilter filter = ReadFilter.flags(0x1, ReadFilter.DUPLICATE).excludeUnmapped().excludeSecondary().requireFlags(0x40)
+				.excludeDuplicates().excludeSupplementary();
+		assertEquals(0x41, filter.getRequiredFlags());
+		assertEquals(ReadFilter.DUPLICATE | ReadFilter.UNMAPPED | ReadFilter.SECONDARY | ReadFilter.SUPPLEMENTARY, filter.getExcludedFlags());
+		assertTrue(filter.passes(read("pass", 100, "10M", 0x41 | 0x20, 60)));
+		assertFalse("Missing a required flag", filter.passes(read("first", 100, "10M", 0x40, 60)));
+		assertFalse("Excluded by an earlier call", filter.passes(read("duplicate", 100, "10M", 0x41 | ReadFilter.DUPLICATE, 60)));
+		assertFalse("Excluded by a later call", filter.passes(read("supplementary", 100, "10M", 0x41 | ReadFilter.SUPPLEMENTARY, 60)));
+		assertTrue(filter.filterOut(read("secondary", 100, "10M", 0x41 | ReadFilter.SECONDARY, 60)));
+	}
+
+	@Test
+	public void testBounds() throws Exception {
+		// chained bounds narrow, [100, 150] for the start and [120, 200] for the end
+		ReadFilter filter = new ReadFilter().minMappingQuality(10).minMappingQuality(20).minMappingQuality(5)
+				.alignmentStartWithin(50, 150).alignmentStartWithin(100, 300)
+				.alignmentEndWithin(120, 400).alignmentEndWithin(0, 200);
+		assertTrue(filter.passes(read("pass", 100, "30M", 0, 20)));
+		assertFalse("Mapping quality", filter.passes(read("mapq", 100, "30M", 0, 19)));
+		assertFalse("Start before the bounds", filter.passes(read("early", 99, "30M", 0, 60)));
+		assertFalse("Start after the bounds", filter.passes(read("late", 151, "30M", 0, 60)));
+		assertTrue(filter.passes(read("last", 150, "51M", 0, 60)));
+		assertFalse("End after the bounds", filter.passes(read("long", 150, "52M", 0, 60)));
+		assertFalse("End before the bounds", filter.passes(read("short", 100, "10M", 0, 60)));
+		assertTrue("A deletion counts towards the end", filter.passes(read("deletion", 100, "10M15D5M", 0, 60)));
+	}
+
+	@Test
+	public void testSpanning() throws Exception {
+		// must cover [110, 130], then [105, 130]
+		ReadFilter filter = new ReadFilter().spanning(110, 130).spanning(105, 120);
+		assertTrue(filter.passes(read("exact", 105, "26M", 0, 60)));
+		assertFalse(filter.passes(read("start", 106, "25M", 0, 60)));
+		assertFalse(filter.passes(read("end", 105, "25M", 0, 60)));
+		assertTrue("Soft clips count towards the span", filter.passes(read("clipped", 107, "2S20M4S", 0, 60)));
+		assertFalse("A skip over the span conforms to dots", filter.passes(read("skipping", 100, "5M30N5M", 0, 60)));
+		assertFalse(filter.passes(read("skip end", 100, "30M1N5M", 0, 60)));
+		assertFalse(filter.passes(read("skip start", 90, "15M1N30M", 0, 60)));
+		assertTrue("Skips outside the span are fine", filter.passes(read("skip outside", 90, "10M5N26M5N5M", 0, 60)));
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		List<String> calls = new ArrayList<String>();
+		ReadFilter filter = ReadFilter.flags(0, ReadFilter.DUPLICATE).alignmentEndWithin(0, 200)
+				.and(new RecordingFilter("first", calls, "second"))
+				.and(new RecordingFilter("second", calls, null));
+		assertTrue(filter.passes(read("pass", 100, "10M", 0, 60)));
+		assertFalse(filter.passes(read("duplicate", 100, "10M", ReadFilter.DUPLICATE, 60)));
+		assertFalse(filter.passes(read("long", 100, "200M", 0, 60)));
+		assertFalse(filter.passes(read("second", 100, "10M", 0, 60)));
+		// the added filters run last, in the order added, and stop at the first rejection
+		List<String> expected = new ArrayList<String>();
+		expected.add("first:pass");
+		expected.add("second:pass");
+		expected.add("first:second");
+		assertEquals(expected, calls);
+	}
+}
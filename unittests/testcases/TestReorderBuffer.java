@@ -0,0 +1,118 @@
+package testcases;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bcm.hgsc.utils.ReorderBuffer;
+import org.bcm.hgsc.utils.ReorderBuffer.Entry;
+import org.bcm.hgsc.utils.ReorderBuffer.Ticket;
+import org.junit.Test;
+
+public class TestReorderBuffer {
+
+	/**
+	 * Takes one entry on another thread, the latch is counted down once take returns.
+	 */
+	private static CountDownLatch takeLater(final ReorderBuffer<String> buffer, AtomicReference<Entry<String>> taken){
+		return Fixtures.callLater(new Callable<Entry<String>>(){
+			@Override
+			public Entry<String> call() throws Exception {
+				return buffer.take();
+			}
+		}, taken);
+	}
+
+	@Test
+	public void testInOrder() throws Exception {
+		final ReorderBuffer<String> buffer = new ReorderBuffer<String>(10);
+		final Ticket[] tickets = new Ticket[5];
+		for (int i = 0; i < tickets.length; i++){
+			tickets[i] = buffer.submit();
+			assertEquals(i, tickets[i].getSequence());
+		}
+		final int[] order = new int[] {4, 2, 0, 3, 1};
+		Thread[] workers = new Thread[order.length];
+		for (int i = 0; i < order.length; i++){
+			final Ticket ticket = tickets[order[i]];
+			workers[i] = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					buffer.complete(ticket, ticket.getSequence() == 3 ? null : "result" + ticket.getSequence());
+				}
+			});
+			workers[i].start();
+			workers[i].join();
+		}
+		for (int i = 0; i < tickets.length; i++){
+			Entry<String> entry = buffer.take();
+			assertEquals(i, entry.getSequence());
+			assertEquals("A null result is still taken in its place", i == 3 ? null : "result" + i, entry.getValue());
+		}
+		assertEquals(0, buffer.getOutstanding());
+	}
+
+	@Test
+	public void testTakeWaitsForTheNextResult() throws Exception {
+		final ReorderBuffer<String> buffer = new ReorderBuffer<String>(10);
+		Ticket first = buffer.submit();
+		Ticket second = buffer.submit();
+		AtomicReference<Entry<String>> taken = new AtomicReference<Entry<String>>();
+		CountDownLatch done = takeLater(buffer, taken);
+		buffer.complete(second, "second");
+		assertFalse("Only a later result is complete", done.await(200, TimeUnit.MILLISECONDS));
+		buffer.complete(first, "first");
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("first", taken.get().getValue());
+		assertEquals("second", buffer.take().getValue());
+	}
+
+	@Test
+	public void testSubmitBlocksAtCapacity() throws Exception {
+		final ReorderBuffer<String> buffer = new ReorderBuffer<String>(2);
+		Ticket first = buffer.submit();
+		Ticket second = buffer.submit();
+		final AtomicReference<Ticket> third = new AtomicReference<Ticket>();
+		CountDownLatch submitted = Fixtures.callLater(new Callable<Ticket>(){
+			@Override
+			public Ticket call() throws Exception {
+				return buffer.submit();
+			}
+		}, third);
+		assertFalse("Two results are outstanding", submitted.await(200, TimeUnit.MILLISECONDS));
+		buffer.complete(second, "second");
+		assertFalse("Completed results still count until taken", submitted.await(200, TimeUnit.MILLISECONDS));
+		buffer.complete(first, "first");
+		buffer.take();
+		assertTrue(submitted.await(5, TimeUnit.SECONDS));
+		assertEquals(2, third.get().getSequence());
+		assertEquals(2, buffer.getOutstanding());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		final ReorderBuffer<String> buffer = new ReorderBuffer<String>(10);
+		Ticket first = buffer.submit();
+		Ticket second = buffer.submit();
+		buffer.complete(first, "first");
+		buffer.close();
+		try {
+			buffer.submit();
+			fail("Submitted to a closed buffer");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals("first", buffer.take().getValue());
+		AtomicReference<Entry<String>> taken = new AtomicReference<Entry<String>>();
+		CountDownLatch done = takeLater(buffer, taken);
+		assertFalse("A submitted result is outstanding", done.await(200, TimeUnit.MILLISECONDS));
+		buffer.complete(second, "second");
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("second", taken.get().getValue());
+		assertNull(buffer.take());
+		assertNull(buffer.take());
+	}
+}